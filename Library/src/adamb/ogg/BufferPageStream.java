@@ -0,0 +1,226 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.ogg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ Reads pages straight from the remaining bytes of a ByteBuffer, without an InputStream.
+ The buffer is taken to hold the beginning of a stream which may continue beyond it, so
+ a page cut off by the end of the buffer causes a {@link NeedMoreBytesException} rather
+ than an end of stream.  The given buffer's position is not changed.
+ */
+public class BufferPageStream
+	implements PageStream
+{
+	private ByteBuffer buffer;
+	private int start;
+	private boolean tolerant;
+	private boolean viewContent;
+	private OggCRC pageCRC;
+	
+	/**
+	 @param tolerant true to skip corrupt pages and junk between pages, as
+	 {@link ErrorTolerantPageStream} does.  False to throw InvalidHeaderException or
+	 ChecksumMismatchException, as {@link PhysicalPageStream} does.
+	 */
+	public BufferPageStream(ByteBuffer buffer, boolean tolerant)
+	{
+		this.buffer = buffer.duplicate();
+		start = this.buffer.position();
+		this.tolerant = tolerant;
+		pageCRC = new OggCRC();
+	}
+	
+	/**
+	 @param viewContent true to make each page's content a slice of the buffer instead of
+	 a copy.  The buffer's contents must then not change while the pages are in use.
+	 */
+	BufferPageStream(ByteBuffer buffer, boolean tolerant, boolean viewContent)
+	{
+		this(buffer, tolerant);
+		this.viewContent = viewContent;
+	}
+	
+	/**
+	 @return the number of bytes consumed from the buffer so far
+	 */
+	public int getBytesConsumed()
+	{
+		return buffer.position() - start;
+	}
+	
+	public Page next()
+		throws InvalidHeaderException, ChecksumMismatchException, NeedMoreBytesException, IOException
+	{
+		while (true)
+		{
+			int pageStart = buffer.position();
+			try
+			{
+				return readPage();
+			}
+			catch (InvalidHeaderException ihe)
+			{
+				if (!tolerant)
+					throw ihe;
+			}
+			catch (ChecksumMismatchException cme)
+			{
+				if (!tolerant)
+					throw cme;
+			}
+			catch (NeedMoreBytesException nmb)
+			{
+				if (!tolerant)
+					throw nmb;
+				
+				/*a capture pattern in junk can claim a page longer than the stream.  If a
+				 whole, valid page follows within the buffer then this was not a real page*/
+				int next = findValidPage(pageStart + 1);
+				if (next == -1)
+					throw nmb;
+				buffer.position(next);
+				continue;
+			}
+			
+			//search for the next capture pattern, skipping 1 byte so the search doesn't match immediately
+			int next = find(PhysicalPageStream.OGG_STREAM_CAPTURE_PATTERN, pageStart + 1);
+			if (next == -1)
+			{
+				//a capture pattern may begin in the last few bytes
+				buffer.position(Math.max(pageStart + 1, buffer.limit() - (PhysicalPageStream.OGG_STREAM_CAPTURE_PATTERN.length - 1)));
+				throw new NeedMoreBytesException(Page.FIXED_HEADER_SIZE);
+			}
+			buffer.position(next);
+		}
+	}
+	
+	/**
+	 Read the page at the current position.  The position is only advanced if a whole
+	 page was read.
+	 */
+	private Page readPage()
+		throws IOException
+	{
+		int pageStart = buffer.position();
+		int available = buffer.limit() - pageStart;
+		if (available < Page.FIXED_HEADER_SIZE)
+			throw new NeedMoreBytesException(Page.FIXED_HEADER_SIZE - available);
+		
+		byte[] header = new byte[Page.FIXED_HEADER_SIZE];
+		buffer.get(header);
+		buffer.position(pageStart);
+		
+		Page page = new Page();
+		int segmentCount = page.parseFixedHeaderValues(header);
+		int headerSize = Page.FIXED_HEADER_SIZE + segmentCount;
+		if (available < headerSize)
+			throw new NeedMoreBytesException(headerSize - available);
+		
+		byte[] segmentTable = new byte[segmentCount];
+		buffer.position(pageStart + Page.FIXED_HEADER_SIZE);
+		buffer.get(segmentTable);
+		buffer.position(pageStart);
+		int contentSize = page.parseSegmentTable(segmentTable);
+		if (available < headerSize + contentSize)
+			throw new NeedMoreBytesException(headerSize + contentSize - available);
+		
+		buffer.position(pageStart + headerSize);
+		if (viewContent)
+		{
+			ByteBuffer view = buffer.slice();
+			view.limit(contentSize);
+			page.setContentView(view);
+			buffer.position(pageStart + headerSize + contentSize);
+		}
+		else
+		{
+			page.content = new byte[contentSize];
+			buffer.get(page.content);
+		}
+		
+		//compute the CRC with the checksum field zeroed
+		System.arraycopy(new byte[4], 0, header, Page.HEADER_CHECKSUM_OFFSET, 4);
+		pageCRC.reset();
+		pageCRC.update(header);
+		pageCRC.update(segmentTable);
+		pageCRC.update(page.getContent());
+		if (page.checksum != pageCRC.getValue())
+		{
+			buffer.position(pageStart);
+			throw new ChecksumMismatchException();
+		}
+		
+		return page;
+	}
+	
+	/**
+	 @return the absolute index of the first complete page with a correct checksum at or after from, or -1
+	 */
+	private int findValidPage(int from)
+	{
+		int pos = buffer.position();
+		try
+		{
+			int i = from;
+			while ((i = find(PhysicalPageStream.OGG_STREAM_CAPTURE_PATTERN, i)) != -1)
+			{
+				buffer.position(i);
+				try
+				{
+					readPage();
+					return i;
+				}
+				catch (IOException ioe)
+				{
+					i++;
+				}
+			}
+			return -1;
+		}
+		finally
+		{
+			buffer.position(pos);
+		}
+	}
+	
+	/**
+	 @return the absolute index of the pattern at or after from, or -1
+	 */
+	private int find(byte[] pattern, int from)
+	{
+		int last = buffer.limit() - pattern.length;
+		outer:
+		for (int i = from; i <= last; i++)
+		{
+			for (int j = 0; j < pattern.length; j++)
+			{
+				if (buffer.get(i + j) != pattern[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,261 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.ogg;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Iterates over the pages of a memory-mapped file.  Each page's content is a read-only
+ slice of the mapping ({@link Page#getContent()}) rather than a copied array so a whole
+ file can be scanned without copying or allocating per page.
+ <p>
+ A single mapping can't exceed 2GB so the file is mapped in windows.  When a page is cut
+ off by the end of a window the next window is mapped starting at that page.  Pages from
+ earlier windows remain valid for as long as they are referenced.
+ </p>
+ */
+public class MappedPageStream
+	implements PageStream, Closeable
+{
+	/**the default window size: 1GB*/
+	static final long WINDOW_SIZE = 1L << 30;
+	
+	private FileChannel channel;
+	private boolean ownChannel;
+	private boolean tolerant;
+	private long fileSize;
+	private long windowSize;
+	private long windowStart;
+	private long windowLength;
+	private BufferPageStream window;
+	private long position;
+	
+	/**
+	 @param tolerant true to skip corrupt pages and junk between pages, as
+	 {@link ErrorTolerantPageStream} does.  False to throw InvalidHeaderException or
+	 ChecksumMismatchException, as {@link PhysicalPageStream} does.
+	 */
+	public MappedPageStream(File oggFile, boolean tolerant)
+		throws IOException
+	{
+		this(FileChannel.open(oggFile.toPath(), StandardOpenOption.READ), tolerant, WINDOW_SIZE);
+		ownChannel = true;
+	}
+	
+	/**
+	 Map pages from the current position of the channel to its end.  The channel's
+	 position is not changed and it is not closed by {@link #close()}.
+	 */
+	public MappedPageStream(FileChannel channel, boolean tolerant)
+		throws IOException
+	{
+		this(channel, tolerant, WINDOW_SIZE);
+	}
+	
+	MappedPageStream(FileChannel channel, boolean tolerant, long windowSize)
+		throws IOException
+	{
+		//a window must always be able to hold a whole page, even one beginning after junk
+		if (windowSize < 2 * Page.MAX_PAGE_SIZE || windowSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("windowSize");
+		
+		this.channel = channel;
+		this.tolerant = tolerant;
+		this.windowSize = windowSize;
+		fileSize = channel.size();
+		position = channel.position();
+	}
+	
+	/**
+	 @return the file offset following the last page returned
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+	
+	public Page next()
+		throws InvalidHeaderException, ChecksumMismatchException, EOFException, IOException
+	{
+		while (true)
+		{
+			if (window == null)
+			{
+				if (position >= fileSize)
+					return null;
+				map(position);
+			}
+			
+			try
+			{
+				Page page = window.next();
+				position = windowStart + window.getBytesConsumed();
+				return page;
+			}
+			catch (NeedMoreBytesException nmb)
+			{
+				long stopped = windowStart + window.getBytesConsumed();
+				if (windowStart + windowLength < fileSize)
+				{
+					//the page crosses the end of the window
+					map(stopped);
+					continue;
+				}
+				
+				//end of file
+				window = null;
+				position = fileSize;
+				if (stopped == fileSize || tolerant)
+					return null;
+				else
+					throw new EOFException("partial page due to eof");
+			}
+		}
+	}
+	
+	private void map(long start)
+		throws IOException
+	{
+		windowStart = start;
+		windowLength = Math.min(windowSize, fileSize - start);
+		MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+		window = new BufferPageStream(mbb, tolerant, true);
+	}
+	
+	/**
+	 Close the file if it was opened by this stream.  The mappings are released once
+	 the pages referencing them are garbage.
+	 */
+	public void close()
+		throws IOException
+	{
+		window = null;
+		if (ownChannel)
+			channel.close();
+	}
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		private static void assertSamePages(PageStream expected, MappedPageStream actual)
+			throws IOException
+		{
+			int n = 0;
+			Page e;
+			while ((e = expected.next()) != null)
+			{
+				Page a = actual.next();
+				assertNotNull(a);
+				assertNull(a.content);
+				assertTrue(a.getContent().isReadOnly());
+				assertTrue(e.equals(a, false, false));
+				n++;
+			}
+			assertNull(actual.next());
+			assertTrue(n > 0);
+		}
+		
+		@Test
+		public void mappedTest()
+			throws Exception
+		{
+			File errorFree = new File("test oggs", "error free.ogg");
+			MappedPageStream mps = new MappedPageStream(errorFree, false);
+			try
+			{
+				FileInputStream fis = new FileInputStream(errorFree);
+				try
+				{
+					assertSamePages(new PhysicalPageStream(new BufferedInputStream(fis)), mps);
+				}
+				finally
+				{
+					fis.close();
+				}
+				assertEquals(mps.getPosition(), errorFree.length());
+			}
+			finally
+			{
+				mps.close();
+			}
+			
+			//pages crossing window boundaries, with junk between the copies
+			File big = new File("deleteme mapped.ogg");
+			File garbage = new File("test oggs", "vorbis headers with garbage after both pages.ogg");
+			try
+			{
+				FileOutputStream fos = new FileOutputStream(big);
+				try
+				{
+					for (int i = 0; i < 16; i++)
+						fos.write(java.nio.file.Files.readAllBytes((i % 2 == 0 ? errorFree : garbage).toPath()));
+				}
+				finally
+				{
+					fos.close();
+				}
+				
+				RandomAccessFile raf = new RandomAccessFile(big, "r");
+				try
+				{
+					FileInputStream fis = new FileInputStream(big);
+					try
+					{
+						mps = new MappedPageStream(raf.getChannel(), true, 2 * Page.MAX_PAGE_SIZE);
+						assertSamePages(new ErrorTolerantPageStream(new PhysicalPageStream(new BufferedInputStream(fis))), mps);
+					}
+					finally
+					{
+						fis.close();
+					}
+					
+					//strict mode stops at the junk
+					mps = new MappedPageStream(raf.getChannel(), false, 2 * Page.MAX_PAGE_SIZE);
+					try
+					{
+						while (mps.next() != null);
+						fail("junk not detected");
+					}
+					catch (InvalidHeaderException | ChecksumMismatchException e)
+					{
+						//expected
+					}
+				}
+				finally
+				{
+					raf.close();
+				}
+			}
+			finally
+			{
+				big.delete();
+			}
+		}
+	}
+}
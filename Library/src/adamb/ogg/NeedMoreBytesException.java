@@ -0,0 +1,49 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.ogg;
+
+import java.io.EOFException;
+
+/**
+ Thrown when parsing from an in-memory buffer reaches the end of the buffer before the
+ item being parsed is complete.  The buffer is assumed to hold only the beginning of the
+ stream, so the caller may retry with more bytes.
+ */
+public class NeedMoreBytesException extends EOFException
+{
+	private int bytesNeeded;
+	
+	public NeedMoreBytesException(int bytesNeeded)
+	{
+		super("need more bytes: " + bytesNeeded);
+		this.bytesNeeded = bytesNeeded;
+	}
+	
+	/**
+	 @return the minimum number of bytes that must follow the buffer before parsing can get further.
+	 More may be needed after that.
+	 */
+	public int getBytesNeeded()
+	{
+		return bytesNeeded;
+	}
+}
@@ -75,6 +75,94 @@ public class OggCRC
 	{
 		update(bytes, 0, bytes.length);
 	}  
+	
+	/**
+	 Update with the buffer's remaining bytes.  The buffer's position is not changed.
+	 */
+	public void update(java.nio.ByteBuffer bb)
+	{
+		if (bb.hasArray())
+			update(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+		else
+		{
+			for (int i = bb.position(); i < bb.limit(); i++)
+			{
+				crc_reg=(crc_reg<<8)^crc_lookup[
+					((crc_reg>>>24)&0xff)^(bb.get(i)&0xff)];
+			}
+		}
+	}
+	
+	/**
+	 Advance the CRC as if count zero bytes had been given to update, in time logarithmic
+	 in count.  Since the Ogg CRC has no initial value or final xor it is linear:
+	 crc(a ^ b) = crc(a) ^ crc(b).  So when only a page's header changes its checksum can be
+	 corrected from the header difference followed by zeros, without reading the content.
+	 */
+	void updateZeros(long count)
+	{
+		for (int i = 0; count != 0; i++, count >>>= 1)
+		{
+			if ((count & 1) != 0)
+				crc_reg = gf2Times(zeroOperator(i), crc_reg);
+		}
+	}
+	
+	/**ZERO_OPERATORS[i] advances the CRC over 2^i zero bytes*/
+	private static final int[][] ZERO_OPERATORS = new int[64][];
+	
+	private static synchronized int[] zeroOperator(int i)
+	{
+		if (ZERO_OPERATORS[i] == null)
+		{
+			if (i == 0)
+			{
+				//one zero bit shifts the register left, feeding back the polynomial
+				int[] op = new int[32];
+				for (int n = 0; n < 31; n++)
+					op[n] = 1 << (n + 1);
+				op[31] = 0x04c11db7;
+				
+				//one zero byte is 8 zero bits
+				for (int n = 0; n < 3; n++)
+					op = gf2Square(op);
+				ZERO_OPERATORS[0] = op;
+			}
+			else
+				ZERO_OPERATORS[i] = gf2Square(zeroOperator(i - 1));
+		}
+		return ZERO_OPERATORS[i];
+	}
+	
+	/**
+	 @param mat a 32x32 bit matrix; mat[n] is the image of bit n
+	 */
+	private static int gf2Times(int[] mat, int vec)
+	{
+		int sum = 0;
+		for (int n = 0; vec != 0; n++, vec >>>= 1)
+		{
+			if ((vec & 1) != 0)
+				sum ^= mat[n];
+		}
+		return sum;
+	}
+	
+	private static int[] gf2Square(int[] mat)
+	{
+		int[] square = new int[32];
+		for (int n = 0; n < 32; n++)
+			square[n] = gf2Times(mat, mat[n]);
+		return square;
+	}
+	
+	/**
+	 Continue a CRC from a value previously returned by {@link #getValue()}.
+	 */
+	void setValue(int value)
+	{
+		crc_reg = value;
+	}
   
   public int getValue()
   {
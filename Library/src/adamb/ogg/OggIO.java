@@ -22,6 +22,18 @@ SOFTWARE.
 package adamb.ogg;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import adamb.util.ChannelInputStream;
+import adamb.util.DirectInputStream;
+import adamb.util.Util;
+import adamb.util.ByteBufferChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
 
 public class OggIO
 {
@@ -56,6 +68,31 @@ public class OggIO
 		}
 	}*/
 	
+	/**
+	 Read every page of a file and check its CRC.  Nightly verification of a whole library
+	 should pass directIO so the reads don't evict other files from the page cache.
+	 @param directIO true to read with {@link DirectInputStream} where the platform allows
+	 @return the number of pages
+	 @throws ChecksumMismatchException or InvalidHeaderException at the first corrupt page
+	 */
+	public static int verifyFile(File oggFile, boolean directIO)
+		throws IOException
+	{
+		InputStream is = directIO ? new DirectInputStream(oggFile) : new BufferedInputStream(new FileInputStream(oggFile), 1024 * 256);
+		try
+		{
+			PhysicalPageStream pps = new PhysicalPageStream(is);
+			int nPages = 0;
+			while (pps.next() != null)
+				nPages++;
+			return nPages;
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+	
 	public static void writePageToStream(Page page, OutputStream os, OggCRC oggCRC)
 		throws IOException
 	{
@@ -63,7 +100,8 @@ public class OggIO
 		 Assert that the segments match the content size.
 		 todo: if you can structure the code to disallow invalid page segmentation
 		 then this could be changed to an assert*/
-		if (page.calculateContentSizeFromSegments() != page.content.length)
+		page.loadContent();
+		if (page.calculateContentSizeFromSegments() != page.getContentLength())
 			throw new IOException("Incorrect Ogg page segmentation!  Computed size does not match size of content array.");
 
 		//compute the correct CRC
@@ -72,17 +110,209 @@ public class OggIO
 		oggCRC.update(page.getFixedHeaderBytes());
 		byte[] segmentTable = page.getSegmentTableBytes();
 		oggCRC.update(segmentTable);
-		oggCRC.update(page.content);
+		oggCRC.update(page.getContent());
 		page.checksum = oggCRC.getValue();
 		
 		//write out the data
 		os.write(page.getFixedHeaderBytes());  //Important: must call getFixedHeaderBytes again because the checksum has changed
 		os.write(segmentTable);
-		os.write(page.content);		
+		if (page.content != null)
+			os.write(page.content);
+		else
+		{
+			//copy a mapped view out in pieces rather than materialize it on the page
+			java.nio.ByteBuffer view = page.getContent();
+			byte[] chunk = new byte[Math.min(view.remaining(), 8192)];
+			while (view.hasRemaining())
+			{
+				int n = Math.min(chunk.length, view.remaining());
+				view.get(chunk, 0, n);
+				os.write(chunk, 0, n);
+			}
+		}
+	}
+	
+	/**
+	 Write only the fixed header of a page whose header fields, such as the sequence number,
+	 have changed since it was read.  The checksum is corrected without reading the content
+	 (see {@link OggCRC#updateZeros}) so the page's content may still be unloaded
+	 ({@link #renumberPages}).  The stream must be positioned at the start
+	 of the page and is left at the start of its segment table.
+	 @param oldHeader the page's fixed header as it was read, from {@link Page#getFixedHeaderBytes()}.
+	 The segment table must not have changed.
+	 */
+	public static void writePageHeader(Page page, byte[] oldHeader, OutputStream os, OggCRC oggCRC)
+		throws IOException
+	{
+		int oldChecksum = Util.asIntLE(oldHeader, Page.HEADER_CHECKSUM_OFFSET, 4);
+		page.checksum = 0;
+		byte[] header = page.getFixedHeaderBytes();
+		
+		//the CRC of the difference between the pages, which is zero beyond the header
+		oggCRC.reset();
+		for (int i = 0; i < header.length; i++)
+		{
+			boolean checksumField = i >= Page.HEADER_CHECKSUM_OFFSET && i < Page.HEADER_CHECKSUM_OFFSET + 4;
+			header[i] = checksumField ? 0 : (byte)(header[i] ^ oldHeader[i]);
+		}
+		oggCRC.update(header);
+		oggCRC.updateZeros(page.segments.size() + page.getContentLength());
+		page.checksum = oldChecksum ^ oggCRC.getValue();
+		
+		os.write(page.getFixedHeaderBytes());
+	}
+	
+	/**
+	 Add to the sequence number of every remaining page of a stream, rewriting each page's
+	 header in place.  Only the headers are read (see {@link PhysicalPageStream#setLazyContent}),
+	 so the page content is neither read nor checked: a corrupt page is renumbered like any
+	 other and, because its checksum is corrected incrementally, stays corrupt.
+	 @param pps the physical stream beneath pages, which must have been constructed from a
+	 channel open for writing.  It is left in lazy mode only for the duration of the call.
+	 @param pages the pages to renumber, read from pps, such as a {@link StreamSerialFilter}
+	 over an {@link ErrorTolerantPageStream}
+	 */
+	public static void renumberPages(PhysicalPageStream pps, PageStream pages, int sequenceAdjust)
+		throws IOException
+	{
+		ChannelInputStream cis = (ChannelInputStream)pps.getInputStream();
+		SeekableByteChannel channel = cis.getChannel();
+		OutputStream pageOut = Channels.newOutputStream(channel);
+		OggCRC oggCRC = new OggCRC();
+		
+		pps.setLazyContent(true);
+		try
+		{
+			/*IMPORTANT: remember that the page stream might not
+			 be continguous in the file if there is corruption or the
+			 stream is multiplexed*/
+			Page page = pages.next();
+			while (page != null)
+			{
+				byte[] oldHeader = page.getFixedHeaderBytes();
+				page.sequence += sequenceAdjust;
+				
+				//seek back to the start of the page and rewrite its header
+				long pageEnd = cis.position();
+				channel.position(pageEnd - page.size());
+				writePageHeader(page, oldHeader, pageOut, oggCRC);
+				cis.discardBuffer();
+				channel.position(pageEnd);
+				
+				page = pages.next();
+			}
+		}
+		finally
+		{
+			pps.setLazyContent(false);
+		}
 	}
 	
 	public OggIO()
 	{
 	}
-
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void lazyContentTest()
+			throws IOException
+		{
+			for (String name: new String[]{"error free.ogg", "pages from foreign stream.ogg", "vorbis headers with garbage after both pages.ogg"})
+			{
+				byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", name).toPath());
+				PageStream eager = new ErrorTolerantPageStream(new PhysicalPageStream(new ByteArrayInputStream(bytes)));
+				ByteBufferChannel ch = new ByteBufferChannel(bytes);
+				PhysicalPageStream pps = new PhysicalPageStream(ch);
+				pps.setLazyContent(true);
+				PageStream lazy = new ErrorTolerantPageStream(pps);
+				
+				OggCRC crc = new OggCRC();
+				int nPages = 0, nSkipped = 0;
+				Page e;
+				while ((e = eager.next()) != null)
+				{
+					Page p = lazy.next();
+					nPages++;
+					//pages followed by junk are verified immediately
+					boolean loaded = p.isContentLoaded();
+					if (!loaded)
+						nSkipped++;
+					assertEquals(p.getContentLength(), e.content.length);
+					
+					//a renumbered header matches a full rewrite without loading the content
+					byte[] oldHeader = p.getFixedHeaderBytes();
+					p.sequence += 7;
+					ByteArrayOutputStream header = new ByteArrayOutputStream();
+					writePageHeader(p, oldHeader, header, crc);
+					assertEquals(p.isContentLoaded(), loaded);
+					e.sequence += 7;
+					ByteArrayOutputStream full = new ByteArrayOutputStream();
+					writePageToStream(e, full, crc);
+					assertEquals(header.toByteArray(), Arrays.copyOf(full.toByteArray(), Page.FIXED_HEADER_SIZE));
+					
+					assertTrue(p.equals(e, false, false));
+					assertTrue(p.isContentLoaded());
+				}
+				assertNull(lazy.next());
+				if (name.equals("error free.ogg"))
+					assertEquals(nSkipped, nPages);
+			}
+			
+			//the checksum is verified when the content is loaded
+			byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+			bytes[bytes.length - 1] ^= 1;
+			PhysicalPageStream pps = new PhysicalPageStream(new ByteBufferChannel(bytes));
+			pps.setLazyContent(true);
+			Page p, last = null;
+			while ((p = pps.next()) != null)
+				last = p;
+			try
+			{
+				last.loadContent();
+				fail("corruption not detected");
+			}
+			catch (ChecksumMismatchException cme)
+			{
+				//expected
+			}
+		}
+		
+		@Test
+		public void renumberPagesTest()
+			throws IOException
+		{
+			byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+			ArrayList<Page> original = new ArrayList<Page>();
+			PageStream ps = new PhysicalPageStream(new ByteArrayInputStream(bytes));
+			Page p;
+			while ((p = ps.next()) != null)
+				original.add(p);
+			
+			//corrupt the content of a middle page
+			int corrupt = original.size() / 2;
+			long pos = 0;
+			for (int i = 0; i < corrupt; i++)
+				pos += original.get(i).size();
+			bytes[(int)pos + original.get(corrupt).size() - 1] ^= 1;
+			
+			//the corrupt page is renumbered rather than failing the traversal
+			ByteBufferChannel ch = new ByteBufferChannel(bytes);
+			PhysicalPageStream pps = new PhysicalPageStream(ch);
+			renumberPages(pps, new ErrorTolerantPageStream(pps), 3);
+			
+			//and is still detected as corrupt afterwards
+			ps = new ErrorTolerantPageStream(new PhysicalPageStream(new ByteArrayInputStream(ch.toByteArray())));
+			for (int i = 0; i < original.size(); i++)
+			{
+				if (i == corrupt)
+					continue;
+				p = ps.next();
+				assertEquals(p.sequence, original.get(i).sequence + 3);
+				assertEquals(p.getContentBytes(), original.get(i).content);
+			}
+			assertNull(ps.next());
+		}
+	}
 }
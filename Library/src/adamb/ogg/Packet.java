@@ -21,7 +21,6 @@ SOFTWARE.
  */
 package adamb.ogg;
 
-import adamb.*;
 import java.util.*;
 
 public class Packet
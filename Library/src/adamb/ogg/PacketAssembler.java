@@ -0,0 +1,77 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.ogg;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ The push counterpart of {@link PacketStream}: pages of one logical stream are added as
+ they arrive and packets are returned as soon as their last segment has been added.
+ */
+public class PacketAssembler
+{
+	private Packet packet;
+	private Segment prevSegment;
+	private LinkedList<Packet> packets;
+	
+	public PacketAssembler()
+	{
+		packet = new Packet();
+		packets = new LinkedList<Packet>();
+	}
+	
+	/**
+	 Add the next page of the logical stream.
+	 */
+	public void add(Page page)
+	throws IOException
+	{
+		for (Segment seg: page.segments)
+		{
+			//the same continuation rules as PacketStream
+			if (prevSegment != null)
+			{
+				if (prevSegment.getSourcePage() != page && !prevSegment.isLast() && !page.isContinued)
+					throw new InvalidHeaderException("Last page did not complete the packet and the new page is not marked as a continuation!");
+			}
+			else if (page.isContinued)
+				throw new InvalidHeaderException("First page marked as a continuation!");
+			
+			prevSegment = seg;
+			packet.segments.add(seg);
+			if (seg.isLast())
+			{
+				packets.add(packet);
+				packet = new Packet();
+			}
+		}
+	}
+	
+	/**
+	 @return the next complete packet or null if none is complete yet
+	 */
+	public Packet next()
+	{
+		return packets.poll();
+	}
+}
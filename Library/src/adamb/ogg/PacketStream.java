@@ -23,7 +23,6 @@ package adamb.ogg;
 
 import java.io.*;
 import java.util.*;
-import adamb.*;
 
 public class PacketStream
 {
@@ -50,14 +49,14 @@ public class PacketStream
 				{
 					//if previous was not the last in the packet then this new page must be marked as a continuation
 					if (!prevSegment.isLast() && !seg.getSourcePage().isContinued)
-						throw new IOException("Last page did not complete the packet and the new page is not marked as a continuation!");
+						throw new InvalidHeaderException("Last page did not complete the packet and the new page is not marked as a continuation!");
 				}
 			}
 			else
 			{
 				//this is the first segment from the first page and thus the page must not be marked as a continuation
 				if (seg.getSourcePage().isContinued)
-					throw new IOException("First page marked as a continuation!");
+					throw new InvalidHeaderException("First page marked as a continuation!");
 			}
 			
 			prevSegment = seg;
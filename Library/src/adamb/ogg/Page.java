@@ -25,7 +25,9 @@ import java.util.*;
 
 import adamb.util.Util;
 
+import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.ByteOrder;
 
 /**content is defined as the bytes after the header*/
@@ -72,7 +74,27 @@ public class Page
 	
 	/**The segments on this page.  A page may contain from 0 to 255 segments.*/
 	public ArrayList<Segment> segments;
+	/**
+	 The content bytes.
+	 <p>
+	 API change: this used to be non-null for every page read.  It is now null for pages
+	 from a {@link MappedPageStream}, whose content is a view of the mapped file, and for
+	 pages whose content was skipped by a lazy {@link PhysicalPageStream}.  Callers that
+	 may see such pages should use {@link #getContent()} or {@link #getContentBytes()},
+	 which work for every page.
+	 </p>
+	 */
 	public byte[] content;
+	/**the content when it is a slice of a larger buffer, such as a mapped file, and content is null*/
+	private ByteBuffer contentView;
+	/**where the content is read from by {@link #loadContent()} if it was skipped, otherwise null*/
+	private SeekableByteChannel contentChannel;
+	private long contentOffset;
+	private int contentLength;
+	/**the CRC of the header and segment table, to be continued over the content when it is loaded*/
+	private int headerCRC;
+	/**the checksum as read, which the header fields may no longer match*/
+	private int readChecksum;
 	
 	public Page()
 	{
@@ -85,6 +107,130 @@ public class Page
 		streamStructureVersion = 0;
 	}
 	
+	/**
+	 @return a read-only view of the content.  For pages from a {@link MappedPageStream}
+	 this is a slice of the mapped file rather than a copy.
+	 */
+	public ByteBuffer getContent()
+	{
+		if (!isContentLoaded())
+		{
+			try
+			{
+				loadContent();
+			}
+			catch (IOException ioe)
+			{
+				throw new UncheckedIOException(ioe);
+			}
+		}
+		
+		if (content != null)
+			return ByteBuffer.wrap(content).asReadOnlyBuffer();
+		else
+			return contentView.duplicate();
+	}
+	
+	public int getContentLength()
+	{
+		if (content != null)
+			return content.length;
+		else if (contentView != null)
+			return contentView.remaining();
+		else
+			return contentLength;
+	}
+	
+	/**
+	 @return false if the content was skipped by a {@link PhysicalPageStream} in lazy
+	 mode and has not been loaded yet
+	 */
+	public boolean isContentLoaded()
+	{
+		return content != null || contentChannel == null;
+	}
+	
+	/**
+	 Read skipped content from the channel, restoring the channel's position afterwards.
+	 Does nothing if the content is already loaded.  {@link #getContent()} and the other
+	 content accessors do this implicitly but throw UncheckedIOException on failure.
+	 @throws ChecksumMismatchException since the checksum can only be verified once the
+	 content is read
+	 */
+	public void loadContent()
+		throws IOException
+	{
+		if (isContentLoaded())
+			return;
+		
+		byte[] bytes = new byte[contentLength];
+		ByteBuffer bb = ByteBuffer.wrap(bytes);
+		long pos = contentChannel.position();
+		try
+		{
+			contentChannel.position(contentOffset);
+			while (bb.hasRemaining())
+			{
+				if (contentChannel.read(bb) == -1)
+					throw new EOFException("partial page content due to eos");
+			}
+		}
+		finally
+		{
+			contentChannel.position(pos);
+		}
+		
+		OggCRC crc = new OggCRC();
+		crc.setValue(headerCRC);
+		crc.update(bytes);
+		if (crc.getValue() != readChecksum)
+			throw new ChecksumMismatchException();
+		
+		content = bytes;
+		contentChannel = null;
+	}
+	
+	/**
+	 Leave the content in the channel until it is asked for.
+	 @param headerCRC the CRC of the fixed header, with the checksum zeroed, and segment table
+	 */
+	void setContentSource(SeekableByteChannel channel, long offset, int length, int headerCRC)
+	{
+		contentChannel = channel;
+		contentOffset = offset;
+		contentLength = length;
+		this.headerCRC = headerCRC;
+		readChecksum = checksum;
+		content = null;
+		contentView = null;
+	}
+	
+	/**
+	 @return the content as an array, which is copied out of the view the first time if
+	 the page has no {@link #content} array yet
+	 */
+	public byte[] getContentBytes()
+	{
+		getContent();  //load it
+		if (content == null)
+		{
+			content = new byte[contentView.remaining()];
+			contentView.duplicate().get(content);
+			contentView = null;
+		}
+		return content;
+	}
+	
+	/**
+	 Make the content a view of part of a larger buffer instead of an array.
+	 */
+	void setContentView(ByteBuffer view)
+	{
+		contentView = view.asReadOnlyBuffer();
+		content = null;
+		contentChannel = null;
+	}
+	
 	public byte[] getFixedHeaderBytes()
 	{
 		byte[] bytes = new byte[FIXED_HEADER_SIZE];
@@ -207,7 +353,7 @@ public class Page
 	 This includes the header and contents*/
 	public int size()
 	{
-		return FIXED_HEADER_SIZE + segments.size() + content.length;
+		return FIXED_HEADER_SIZE + segments.size() + getContentLength();
 	}
 	
 	/**
@@ -223,7 +369,7 @@ public class Page
 			&& streamSerialNumber == p.streamSerialNumber
 			&& (ignoreSequence || sequence == p.sequence)
 			&& (ignoreCRC || checksum == p.checksum)
-			&& Arrays.equals(content, p.content)
+			&& getContent().equals(p.getContent())
 			&& Arrays.equals(getSegmentTableBytes(), p.getSegmentTableBytes());
 	}	
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.ogg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ Assembles pages from chunks of an Ogg stream as they arrive, for example from a
+ non-blocking socket.  Bytes of a page that is not yet complete are kept until the rest
+ arrives; complete pages are queued and returned by {@link #next()}.  No call blocks.
+ <p>
+ Unlike other page streams {@link #next()} returning null means only that no page is
+ available yet.  After an exception the assembler should not be used further.
+ </p>
+ */
+public class PageAssembler
+	implements PageStream
+{
+	private boolean tolerant;
+	/**bytes received but not yet part of a queued page*/
+	private byte[] pending;
+	private int pendingLength;
+	/**stream offset of pending[0]*/
+	private long pendingOffset;
+	private LinkedList<Page> pages;
+	/**the stream offset just after each queued page*/
+	private LinkedList<Long> pageEnds;
+	private long position;
+	private int bytesNeeded;
+	
+	/**
+	 @param tolerant true to skip corrupt pages and junk, see {@link BufferPageStream}
+	 */
+	public PageAssembler(boolean tolerant)
+	{
+		this.tolerant = tolerant;
+		pending = new byte[1024 * 8];
+		pendingLength = 0;
+		pendingOffset = 0;
+		pages = new LinkedList<Page>();
+		pageEnds = new LinkedList<Long>();
+		position = 0;
+		bytesNeeded = Page.FIXED_HEADER_SIZE;
+	}
+	
+	/**
+	 Add the remaining bytes of a chunk, which are consumed entirely.  Pages are parsed
+	 only once enough bytes have arrived to complete one, except that when tolerating
+	 corruption a page claimed by junk may delay parsing until the pending bytes double.
+	 @throws InvalidHeaderException or ChecksumMismatchException if the assembler is not tolerant of corruption
+	 */
+	public void push(ByteBuffer chunk)
+		throws IOException
+	{
+		int n = chunk.remaining();
+		if (pendingLength + n > pending.length)
+		{
+			byte[] bigger = new byte[Math.max(pending.length * 2, pendingLength + n)];
+			System.arraycopy(pending, 0, bigger, 0, pendingLength);
+			pending = bigger;
+		}
+		chunk.get(pending, pendingLength, n);
+		pendingLength += n;
+		
+		if (pendingLength >= bytesNeeded)
+			parse();
+	}
+	
+	/**
+	 Tell the assembler no more bytes will arrive.  Anything pending is parsed one last time,
+	 which matters only for streams with corrupt pages; see {@link #push(ByteBuffer)}.
+	 */
+	public void endOfStream()
+		throws IOException
+	{
+		parse();
+	}
+	
+	/**
+	 Parse as many whole pages as have arrived.
+	 */
+	private void parse()
+		throws IOException
+	{
+		BufferPageStream bps = new BufferPageStream(ByteBuffer.wrap(pending, 0, pendingLength), tolerant);
+		try
+		{
+			while (true)
+			{
+				Page page = bps.next();
+				pages.add(page);
+				pageEnds.add(Long.valueOf(pendingOffset + bps.getBytesConsumed()));
+			}
+		}
+		catch (NeedMoreBytesException nmb)
+		{
+			int remaining = pendingLength - bps.getBytesConsumed();
+			int needed = nmb.getBytesNeeded();
+			/*junk can look like the start of a page longer than the stream.  When
+			 tolerant, look again each time the pending bytes double so a real page
+			 after the junk is found without rescanning on every push*/
+			if (tolerant)
+				needed = Math.min(needed, Math.max(Page.FIXED_HEADER_SIZE, remaining));
+			bytesNeeded = remaining + needed;
+		}
+		finally
+		{
+			//discard what has been parsed or skipped
+			int consumed = bps.getBytesConsumed();
+			System.arraycopy(pending, consumed, pending, 0, pendingLength - consumed);
+			pendingLength -= consumed;
+			pendingOffset += consumed;
+		}
+	}
+	
+	/**
+	 @return the next complete page or null if none has arrived yet
+	 */
+	public Page next()
+	{
+		Page page = pages.poll();
+		if (page != null)
+			position = pageEnds.poll().longValue();
+		return page;
+	}
+	
+	/**
+	 @return the stream offset just after the last page returned by {@link #next()}
+	 */
+	public long getPosition()
+	{
+		return position;
+	}
+	
+	/**
+	 @return the minimum number of further bytes needed to complete another page
+	 */
+	public int getBytesNeeded()
+	{
+		return Math.max(1, bytesNeeded - pendingLength);
+	}
+}
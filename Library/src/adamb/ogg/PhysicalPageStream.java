@@ -23,6 +23,8 @@ package adamb.ogg;
 
 import java.io.*;
 import adamb.util.Util;
+import adamb.util.ChannelInputStream;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  Iterates over all successive pages in an Ogg bitstream.  Each page may
@@ -38,6 +40,8 @@ public class PhysicalPageStream
   private OggCRC pageCRC;
 	/**true if the stream is currently positioned directly after the Ogg stream capture pattern*/
 	private boolean haveCapture;
+	/**true to skip page content instead of reading it*/
+	private boolean lazyContent;
   
   /**
    the 4 byte Ogg stream capture pattern "OggS"
@@ -52,6 +56,38 @@ public class PhysicalPageStream
 		haveCapture = false;
   }
 	
+	/**
+	 Read pages from the current position of a channel, such as a FileChannel, a
+	 memory-mapped or in-memory buffer ({@link adamb.util.ByteBufferChannel}) or a
+	 ranged remote object.  The stream supports mark and reset through the channel
+	 position so it may be wrapped with an {@link ErrorTolerantPageStream}.
+	 */
+	public PhysicalPageStream(SeekableByteChannel channel)
+	{
+		this(new ChannelInputStream(channel));
+	}
+	
+	/**
+	 In lazy mode only the header and segment table of each page are read and the channel
+	 is then positioned past the content.  The content is read if and when it is asked for
+	 ({@link Page#loadContent()}) and the checksum is only verified then, so a traversal
+	 that needs only headers, such as renumbering pages or skipping foreign pages, reads a
+	 small fraction of the file.  Lazy mode requires the stream to be constructed from a channel.
+	 <p>
+	 Lazy streams are for header-only traversals within this package, such as
+	 {@link OggIO#renumberPages}.  Since a corrupt page is only detected when its content is
+	 loaded, an {@link ErrorTolerantPageStream} can't drop it and the content accessors of
+	 {@link Page} would fail with an unchecked exception, so lazy pages must not be fed into
+	 a packet stream.
+	 </p>
+	 */
+	void setLazyContent(boolean lazy)
+	{
+		if (lazy && !(is instanceof ChannelInputStream))
+			throw new UnsupportedOperationException("Lazy content requires a channel");
+		lazyContent = lazy;
+	}
+	
   public Page next()
 		//Even though these are all IOExceptions I will declare them explicitly because the first 3 are recoverable (see implementation of ErrorTolerantPageStream)
 		throws InvalidHeaderException, ChecksumMismatchException, EOFException, IOException
@@ -60,8 +96,8 @@ public class PhysicalPageStream
 		Page page = new Page();
 		if (readPageFromStream(page))
 		{
-			//only return the page if it passes the CRC check
-			if (page.checksum == pageCRC.getValue())
+			//only return the page if it passes the CRC check (which is deferred for lazy content)
+			if (lazyContent || page.checksum == pageCRC.getValue())
 				return page;
 			else
 				throw new ChecksumMismatchException();
@@ -92,8 +128,25 @@ public class PhysicalPageStream
 				int contentSize = page.parseSegmentTable(segmentTable);
 
 				/*read the page contents*/
-				page.content = new byte[contentSize];
-				if (Util.readCompletely(is, page.content) == page.content.length)
+				SeekableByteChannel channel = null;
+				long contentPos = 0;
+				boolean haveContent;
+				if (lazyContent)
+				{
+					ChannelInputStream cis = (ChannelInputStream)is;
+					channel = cis.getChannel();
+					contentPos = cis.position();
+					haveContent = contentPos + contentSize <= channel.size();
+					if (haveContent)
+						cis.position(contentPos + contentSize);
+				}
+				else
+				{
+					page.content = new byte[contentSize];
+					haveContent = Util.readCompletely(is, page.content) == page.content.length;
+				}
+				
+				if (haveContent)
 				{
 					///compute the CRC
 					pageCRC.reset();
@@ -112,7 +165,17 @@ public class PhysicalPageStream
 
 					pageCRC.update(fixedHeaderBytes);
 					pageCRC.update(segmentTable);
-					pageCRC.update(page.content);
+					if (lazyContent)
+					{
+						page.setContentSource(channel, contentPos, contentSize, pageCRC.getValue());
+						
+						/*a capture pattern in junk can look like a valid header.  Unless another
+						 page or the end of the stream follows, verify the checksum now*/
+						if (!followedByPage((ChannelInputStream)is))
+							page.loadContent();
+					}
+					else
+						pageCRC.update(page.content);
 
 					return true;
 				}
@@ -130,6 +193,28 @@ public class PhysicalPageStream
 			throw new EOFException("partial header due to eos");		
 	}
 	
+	/**
+	 @return true if the stream is at its end or at a capture pattern.  The position is not changed.
+	 */
+	private static boolean followedByPage(ChannelInputStream cis)
+		throws IOException
+	{
+		long pos = cis.position();
+		if (pos == cis.getChannel().size())
+			return true;
+		
+		byte[] pattern = new byte[OGG_STREAM_CAPTURE_PATTERN.length];
+		try
+		{
+			Util.readCompletely(cis, pattern);
+		}
+		finally
+		{
+			cis.position(pos);
+		}
+		return java.util.Arrays.equals(pattern, OGG_STREAM_CAPTURE_PATTERN);
+	}
+	
 	/**
 	 @return the InputStream given in the constructor
 	 */
@@ -62,7 +62,14 @@ public class Segment
 	 */
 	public int getBytes(byte[] dest, int offset)
 	{
-		System.arraycopy(sourcePage.content, pageOffset, dest, offset, size);
+		if (sourcePage.content != null)
+			System.arraycopy(sourcePage.content, pageOffset, dest, offset, size);
+		else
+		{
+			java.nio.ByteBuffer view = sourcePage.getContent();
+			view.position(pageOffset);
+			view.get(dest, offset, size);
+		}
 		return size;
 	}
 	
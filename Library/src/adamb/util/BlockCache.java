@@ -0,0 +1,178 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.util;
+
+import java.util.*;
+
+/**
+ A least recently used cache of fixed size blocks from slow sources, bounded by the total
+ bytes held.  One cache may be shared by many {@link CachingChannel}s; blocks are keyed by
+ an object identifying the source, such as its URI or path, and the block number.
+ The cache is thread safe.
+ */
+public class BlockCache
+{
+	private static final class Key
+	{
+		final Object source;
+		final long block;
+		
+		Key(Object source, long block)
+		{
+			this.source = source;
+			this.block = block;
+		}
+		
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return block == k.block && source.equals(k.source);
+		}
+		
+		public int hashCode()
+		{
+			return source.hashCode() * 31 + (int)(block ^ (block >>> 32));
+		}
+	}
+	
+	private final int blockSize;
+	private final long capacity;
+	/**guarded by this; in access order, eldest first*/
+	private LinkedHashMap<Key, byte[]> blocks;
+	/**guarded by this*/
+	private long weight;
+	private long hits;
+	private long misses;
+	
+	/**
+	 @param capacityBytes the most block bytes to hold
+	 @param blockSize the size of each block, e.g. 64KB.  Reads from the source are aligned to this.
+	 */
+	public BlockCache(long capacityBytes, int blockSize)
+	{
+		if (blockSize < 1 || capacityBytes < blockSize)
+			throw new IllegalArgumentException("Capacity must hold at least one block");
+		this.blockSize = blockSize;
+		capacity = capacityBytes;
+		blocks = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+		weight = 0;
+	}
+	
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+	
+	/**
+	 @return the most block bytes the cache holds
+	 */
+	public long getCapacity()
+	{
+		return capacity;
+	}
+	
+	/**
+	 @return the block or null if it isn't cached.  The array must not be modified.
+	 */
+	public synchronized byte[] get(Object source, long block)
+	{
+		byte[] b = blocks.get(new Key(source, block));
+		if (b != null)
+			hits++;
+		else
+			misses++;
+		return b;
+	}
+	
+	/**
+	 @return true if the block is cached.  Unlike {@link #get(Object, long)} this doesn't count as a use.
+	 */
+	public synchronized boolean contains(Object source, long block)
+	{
+		return blocks.containsKey(new Key(source, block));
+	}
+	
+	/**
+	 Add a block, evicting the least recently used ones as needed.  The last block of a
+	 source may be shorter than the block size.
+	 */
+	public synchronized void put(Object source, long block, byte[] bytes)
+	{
+		assert bytes.length <= blockSize;
+		byte[] old = blocks.put(new Key(source, block), bytes);
+		if (old != null)
+			weight -= old.length;
+		weight += bytes.length;
+		
+		Iterator<byte[]> it = blocks.values().iterator();
+		while (weight > capacity && it.hasNext())
+		{
+			weight -= it.next().length;
+			it.remove();
+		}
+	}
+	
+	/**
+	 Drop every block of a source, for example after it has been modified.
+	 */
+	public synchronized void invalidate(Object source)
+	{
+		Iterator<Map.Entry<Key, byte[]>> it = blocks.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry<Key, byte[]> e = it.next();
+			if (e.getKey().source.equals(source))
+			{
+				weight -= e.getValue().length;
+				it.remove();
+			}
+		}
+	}
+	
+	public synchronized void clear()
+	{
+		blocks.clear();
+		weight = 0;
+	}
+	
+	/**
+	 @return the bytes held
+	 */
+	public synchronized long getWeight()
+	{
+		return weight;
+	}
+	
+	/**@return the number of lookups answered from the cache*/
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+	
+	/**@return the number of lookups for blocks not in the cache*/
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+}
@@ -0,0 +1,292 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+//#ifdef TEST
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+//#endif
+
+/**
+ A SeekableByteChannel over bytes held in memory.  Writing past the end grows the
+ channel, so it can stand in for a file when an Ogg stream is read or rewritten
+ entirely in memory.
+ */
+public class ByteBufferChannel
+	implements SeekableByteChannel
+{
+	private ByteBuffer buffer;
+	private int size;
+	private int position;
+	private boolean writable;
+	private boolean open;
+	
+	/**
+	 An empty, writable channel.
+	 */
+	public ByteBufferChannel()
+	{
+		this(ByteBuffer.allocate(1024 * 8), 0, true);
+	}
+	
+	/**
+	 A writable channel initially holding a copy of the given bytes.
+	 */
+	public ByteBufferChannel(byte[] bytes)
+	{
+		this(ByteBuffer.wrap(bytes.clone()), bytes.length, true);
+	}
+	
+	/**
+	 A read-only channel over the remaining bytes of the buffer, which is not copied.
+	 The buffer may be direct or a mapped file.
+	 */
+	public ByteBufferChannel(ByteBuffer buffer)
+	{
+		this(buffer.slice(), buffer.remaining(), false);
+	}
+	
+	private ByteBufferChannel(ByteBuffer buffer, int size, boolean writable)
+	{
+		this.buffer = buffer;
+		this.size = size;
+		this.writable = writable;
+		position = 0;
+		open = true;
+	}
+	
+	public int read(ByteBuffer dst)
+	throws IOException
+	{
+		ensureOpen();
+		if (position >= size)
+			return -1;
+		
+		int n = Math.min(dst.remaining(), size - position);
+		ByteBuffer src = buffer.duplicate();
+		src.limit(position + n).position(position);
+		dst.put(src);
+		position += n;
+		return n;
+	}
+	
+	public int write(ByteBuffer src)
+	throws IOException
+	{
+		ensureOpen();
+		if (!writable)
+			throw new NonWritableChannelException();
+		
+		int n = src.remaining();
+		long end = (long)position + n;
+		if (end > Integer.MAX_VALUE)
+			throw new IOException("Channel would exceed 2GB");
+		ensureCapacity((int)end);
+		
+		//writing beyond the end leaves zeros in the gap, as with a file
+		if (position > size)
+		{
+			for (int i = size; i < position; i++)
+				buffer.put(i, (byte)0);
+		}
+		
+		ByteBuffer dst = buffer.duplicate();
+		dst.limit((int)end).position(position);
+		dst.put(src);
+		position = (int)end;
+		size = Math.max(size, position);
+		return n;
+	}
+	
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > buffer.capacity())
+		{
+			int newCapacity = (int)Math.min(Integer.MAX_VALUE, Math.max((long)capacity, buffer.capacity() * 2L));
+			ByteBuffer bigger = ByteBuffer.allocate(newCapacity);
+			ByteBuffer old = buffer.duplicate();
+			old.limit(size).position(0);
+			bigger.put(old);
+			buffer = bigger;
+		}
+	}
+	
+	public long position()
+	throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+	
+	public SeekableByteChannel position(long newPosition)
+	throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		position = (int)Math.min(newPosition, Integer.MAX_VALUE);
+		return this;
+	}
+	
+	public long size()
+	throws IOException
+	{
+		ensureOpen();
+		return size;
+	}
+	
+	public SeekableByteChannel truncate(long newSize)
+	throws IOException
+	{
+		ensureOpen();
+		if (newSize < 0)
+			throw new IllegalArgumentException("Negative size: " + newSize);
+		if (!writable)
+			throw new NonWritableChannelException();
+		if (newSize < size)
+			size = (int)newSize;
+		if (position > newSize)
+			position = (int)newSize;
+		return this;
+	}
+	
+	public boolean isOpen()
+	{
+		return open;
+	}
+	
+	/**
+	 The contents remain available after closing.
+	 */
+	public void close()
+	{
+		open = false;
+	}
+	
+	/**
+	 @return a copy of the channel's contents
+	 */
+	public byte[] toByteArray()
+	{
+		byte[] bytes = new byte[size];
+		ByteBuffer src = buffer.duplicate();
+		src.limit(size).position(0);
+		src.get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 @return a read-only view of the channel's contents.  It is invalidated by writes that grow the channel.
+	 */
+	public ByteBuffer getBuffer()
+	{
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.limit(size).position(0);
+		return view;
+	}
+	
+	private void ensureOpen()
+	throws ClosedChannelException
+	{
+		if (!open)
+			throw new ClosedChannelException();
+	}
+	
+//#ifdef TEST
+	public static class Tester
+	{
+		@Test
+		public void channelTest()
+		throws IOException
+		{
+			ByteBufferChannel ch = new ByteBufferChannel();
+			byte[] data = new byte[20000];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte)i;
+			
+			//grow past the initial capacity
+			assertEquals(ch.write(ByteBuffer.wrap(data)), data.length);
+			assertEquals(ch.size(), data.length);
+			assertEquals(ch.toByteArray(), data);
+			
+			//read back from the middle
+			ch.position(100);
+			ByteBuffer dst = ByteBuffer.allocate(10);
+			assertEquals(ch.read(dst), 10);
+			assertEquals(dst.get(0), (byte)100);
+			assertEquals(ch.position(), 110);
+			
+			//writing beyond the end leaves a gap of zeros
+			ch.position(data.length + 5);
+			ch.write(ByteBuffer.wrap(new byte[]{7}));
+			assertEquals(ch.size(), data.length + 6);
+			assertEquals(ch.getBuffer().get(data.length + 2), (byte)0);
+			
+			ch.truncate(50);
+			assertEquals(ch.size(), 50);
+			assertEquals(ch.position(), 50);
+			assertEquals(ch.read(ByteBuffer.allocate(1)), -1);
+			
+			//FileInsert works in memory too
+			new FileInsert(16).insert(ch, 10, 20, new byte[]{1, 2, 3}, 0, 3);
+			assertEquals(ch.size(), 43);
+			byte[] b = ch.toByteArray();
+			assertEquals(b[9], (byte)9);
+			assertEquals(b[10], (byte)1);
+			assertEquals(b[13], (byte)20);
+			
+			//read-only views don't copy or allow writes
+			ByteBufferChannel ro = new ByteBufferChannel(ByteBuffer.wrap(data, 5, 10));
+			assertEquals(ro.size(), 10);
+			dst = ByteBuffer.allocate(20);
+			assertEquals(ro.read(dst), 10);
+			assertEquals(dst.get(0), (byte)5);
+			try
+			{
+				ro.write(ByteBuffer.wrap(data));
+				fail();
+			}
+			catch (NonWritableChannelException e)
+			{
+				//expected
+			}
+			
+			ch.close();
+			try
+			{
+				ch.size();
+				fail();
+			}
+			catch (ClosedChannelException e)
+			{
+				//expected
+			}
+		}
+	}
+//#endif
+}
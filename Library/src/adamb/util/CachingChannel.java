@@ -0,0 +1,306 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+//#ifdef TEST
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import adamb.vorbis.VorbisIO;
+import java.io.File;
+//#endif
+
+/**
+ A read-only channel which serves reads from a {@link BlockCache} and reads whole aligned
+ blocks from the source on a miss.  Adjacent missing blocks are fetched with one source
+ read, and the many small reads made while parsing pages are served from the same block,
+ so repeated header reads, seeks and error recovery rarely reach the source.  Use it
+ beneath a {@link adamb.ogg.PhysicalPageStream} for sources where each read is expensive.
+ <p>
+ A single source read is at most the cache's capacity.  A run of missing blocks larger
+ than a quarter of the cache, such as a bulk copy, is passed through without being cached
+ so it doesn't evict the hot header blocks.
+ </p>
+ <p>
+ The source is assumed not to change while cached; see {@link BlockCache#invalidate(Object)}.
+ Instances are not thread safe, but the cache may be shared.
+ </p>
+ */
+public class CachingChannel
+	implements SeekableByteChannel
+{
+	private SeekableByteChannel source;
+	private BlockCache cache;
+	private Object key;
+	private long size;
+	private long position;
+	private long sourceReads;
+	
+	/**
+	 @param key identifies the source in the cache.  Channels given equal keys share blocks.
+	 */
+	public CachingChannel(SeekableByteChannel source, BlockCache cache, Object key)
+	throws IOException
+	{
+		this.source = source;
+		this.cache = cache;
+		this.key = key;
+		size = source.size();
+		position = 0;
+	}
+	
+	public int read(ByteBuffer dst)
+	throws IOException
+	{
+		ensureOpen();
+		if (position >= size)
+			return -1;
+		
+		int blockSize = cache.getBlockSize();
+		int len = (int)Math.min(dst.remaining(), size - position);
+		long first = position / blockSize;
+		long last = (position + len - 1) / blockSize;
+		
+		//the longest run of blocks fetched by one source read, and the longest which is cached
+		long maxFetch = Math.max(1, cache.getCapacity() / blockSize);
+		long maxCached = Math.max(1, maxFetch / 4);
+		
+		int total = 0;
+		long b = first;
+		while (b <= last)
+		{
+			int from = (int)(position - b * blockSize);
+			byte[] block = cache.get(key, b);
+			ByteBuffer src;
+			long next;
+			if (block != null)
+			{
+				src = ByteBuffer.wrap(block);
+				next = b + 1;
+			}
+			else
+			{
+				//fetch this and the following missing blocks of the request in one read
+				next = b + 1;
+				while (next <= last && next - b < maxFetch && !cache.contains(key, next))
+					next++;
+				src = fetch(b, next, next - b <= maxCached);
+			}
+			
+			//serve the request straight from the block or fetched run
+			int n = Math.min(src.limit() - from, len - total);
+			src.position(from);
+			src.limit(from + n);
+			dst.put(src);
+			position += n;
+			total += n;
+			b = next;
+		}
+		
+		return total;
+	}
+	
+	/**
+	 Read blocks [first, end) from the source.
+	 @param cacheIt whether to add the blocks to the cache
+	 @return the bytes read
+	 */
+	private ByteBuffer fetch(long first, long end, boolean cacheIt)
+	throws IOException
+	{
+		int blockSize = cache.getBlockSize();
+		long start = first * blockSize;
+		int len = (int)Math.min((end - first) * blockSize, size - start);
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		source.position(start);
+		while (buf.hasRemaining())
+		{
+			if (source.read(buf) == -1)
+				throw new IOException("Source is shorter than its reported size");
+		}
+		sourceReads++;
+		buf.flip();
+		
+		if (cacheIt)
+		{
+			byte[] all = buf.array();
+			for (long b = first; b < end; b++)
+			{
+				int from = (int)((b - first) * blockSize);
+				byte[] block = new byte[Math.min(blockSize, len - from)];
+				System.arraycopy(all, from, block, 0, block.length);
+				cache.put(key, b, block);
+			}
+		}
+		return buf;
+	}
+	
+	public int write(ByteBuffer src)
+	{
+		throw new NonWritableChannelException();
+	}
+	
+	public long position()
+	throws IOException
+	{
+		ensureOpen();
+		return position;
+	}
+	
+	public SeekableByteChannel position(long newPosition)
+	throws IOException
+	{
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		position = newPosition;
+		return this;
+	}
+	
+	public long size()
+	throws IOException
+	{
+		ensureOpen();
+		return size;
+	}
+	
+	public SeekableByteChannel truncate(long size)
+	{
+		throw new NonWritableChannelException();
+	}
+	
+	public boolean isOpen()
+	{
+		return source.isOpen();
+	}
+	
+	/**
+	 Close the source.  Its blocks stay in the cache.
+	 */
+	public void close()
+	throws IOException
+	{
+		source.close();
+	}
+	
+	/**
+	 @return the number of reads made from the source
+	 */
+	public long getSourceReadCount()
+	{
+		return sourceReads;
+	}
+	
+	private void ensureOpen()
+	throws ClosedChannelException
+	{
+		if (!source.isOpen())
+			throw new ClosedChannelException();
+	}
+	
+//#ifdef TEST
+	public static class Tester
+	{
+		@Test
+		public void cacheTest()
+		throws IOException
+		{
+			byte[] ogg = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+			BlockCache cache = new BlockCache(64 * 1024, 4096);
+			
+			CachingChannel ch = new CachingChannel(new ByteBufferChannel(ogg), cache, "error free");
+			assertEquals(VorbisIO.readComments(ch).toPacket(), VorbisIO.readComments(new File("test oggs", "error free.ogg")).toPacket());
+			long reads = ch.getSourceReadCount();
+			//the header pages span a few blocks, each fetched once
+			assertTrue(reads > 0 && reads <= 3, "reads=" + reads);
+			
+			//a second reader of the same source never reaches it
+			CachingChannel ch2 = new CachingChannel(new ByteBufferChannel(ogg), cache, "error free");
+			VorbisIO.readIdHeader(ch2);
+			assertEquals(ch2.getSourceReadCount(), 0);
+			
+			//a large read fetches all its missing blocks at once and matches the source
+			cache.clear();
+			ByteBuffer all = ByteBuffer.allocate(ogg.length);
+			ch.position(0);
+			while (all.hasRemaining())
+				ch.read(all);
+			assertEquals(all.array(), ogg);
+			assertEquals(ch.getSourceReadCount(), reads + 1);
+			
+			//random reads match the source
+			java.util.Random rand = new java.util.Random(3);
+			for (int i = 0; i < 200; i++)
+			{
+				int pos = rand.nextInt(ogg.length);
+				ByteBuffer b = ByteBuffer.allocate(1 + rand.nextInt(10000));
+				ch.position(pos);
+				int n = ch.read(b);
+				assertEquals(n, Math.min(b.capacity(), ogg.length - pos));
+				for (int j = 0; j < n; j++)
+					assertEquals(b.get(j), ogg[pos + j]);
+			}
+			assertTrue(cache.getWeight() <= 64 * 1024);
+			
+			ch.position(ogg.length);
+			assertEquals(ch.read(ByteBuffer.allocate(1)), -1);
+			
+			cache.invalidate("error free");
+			assertEquals(cache.getWeight(), 0);
+		}
+		
+		@Test
+		public void largeReadTest()
+		throws IOException
+		{
+			byte[] data = new byte[1024 * 1024];
+			new java.util.Random(5).nextBytes(data);
+			BlockCache cache = new BlockCache(64 * 1024, 4096);
+			CachingChannel ch = new CachingChannel(new ByteBufferChannel(data), cache, "large");
+			
+			//the header blocks are cached
+			ch.read(ByteBuffer.allocate(100));
+			assertEquals(ch.getSourceReadCount(), 1);
+			
+			//a read sixteen times the cache's size is fetched a cache-full at a time
+			ByteBuffer all = ByteBuffer.allocate(data.length);
+			ch.position(0);
+			assertEquals(ch.read(all), data.length);
+			assertEquals(all.array(), data);
+			long reads = ch.getSourceReadCount() - 1;
+			assertTrue(reads == 16, "reads=" + reads);
+			
+			//without evicting the header blocks
+			assertTrue(cache.contains("large", 0));
+			assertTrue(cache.getWeight() <= 64 * 1024);
+			ch.position(10);
+			ch.read(ByteBuffer.allocate(50));
+			assertEquals(ch.getSourceReadCount(), reads + 1);
+		}
+	}
+//#endif
+}
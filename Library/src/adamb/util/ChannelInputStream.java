@@ -0,0 +1,353 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+//#ifdef TEST
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+//#endif
+
+/**
+ An InputStream reading from the current position of a seekable channel.  Unlike
+ {@link java.nio.channels.Channels#newInputStream} mark and reset are supported, by
+ remembering the channel position, so the stream can be used for error recovery
+ (see {@link adamb.ogg.ErrorTolerantPageStream}).
+ <p>
+ How reads are buffered depends on the channel (see {@link #defaultBufferSize}).  When
+ buffered the channel is read ahead of the stream, so use {@link #position()} rather than
+ the channel's position.  The channel may still be repositioned directly: the buffer is
+ discarded whenever the channel is not where the stream left it.  After writing to the
+ channel call {@link #discardBuffer()}.
+ </p>
+ The channel is not closed when the stream is.
+ */
+public class ChannelInputStream
+	extends InputStream
+{
+	/**The buffer size for file channels, where each read is a system call.*/
+	public static final int FILE_BUFFER_SIZE = 8 * 1024;
+	/**The buffer size for other channels, such as ranged remote objects, where each read may be a round trip.*/
+	public static final int REMOTE_BUFFER_SIZE = 64 * 1024;
+	/**the longest wait between reads of a channel which has no bytes ready*/
+	private static final long MAX_BACKOFF_MILLIS = 64;
+	
+	private SeekableByteChannel channel;
+	/**null when unbuffered.  Filled from index 0; the unread bytes are position to limit.*/
+	private ByteBuffer buffer;
+	/**the channel position just after the buffered bytes*/
+	private long bufferEnd;
+	private long markPos;
+	private byte[] one;
+	
+	public ChannelInputStream(SeekableByteChannel channel)
+	{
+		this(channel, defaultBufferSize(channel));
+	}
+	
+	/**
+	 @param bufferSize the size of the read-ahead buffer or 0 to read the channel directly
+	 */
+	public ChannelInputStream(SeekableByteChannel channel, int bufferSize)
+	{
+		this.channel = channel;
+		if (bufferSize > 0)
+		{
+			buffer = ByteBuffer.allocate(bufferSize);
+			buffer.limit(0);
+		}
+		markPos = -1;
+		one = new byte[1];
+	}
+	
+	/**
+	 @return the buffer size suited to a channel: none for a {@link ByteBufferChannel},
+	 whose bytes are already in memory, or a {@link CachingChannel}, which buffers in its
+	 cache, {@link #FILE_BUFFER_SIZE} for a FileChannel and {@link #REMOTE_BUFFER_SIZE}
+	 for anything else
+	 */
+	public static int defaultBufferSize(SeekableByteChannel channel)
+	{
+		if (channel instanceof ByteBufferChannel || channel instanceof CachingChannel)
+			return 0;
+		else if (channel instanceof FileChannel)
+			return FILE_BUFFER_SIZE;
+		else
+			return REMOTE_BUFFER_SIZE;
+	}
+	
+	public SeekableByteChannel getChannel()
+	{
+		return channel;
+	}
+	
+	/**
+	 @return the position in the channel of the next byte the stream will return
+	 */
+	public long position()
+	throws IOException
+	{
+		return hasBuffered() ? bufferEnd - buffer.remaining() : channel.position();
+	}
+	
+	/**
+	 Move the stream, keeping the buffered bytes if the new position is among them.
+	 */
+	public void position(long newPosition)
+	throws IOException
+	{
+		if (buffer != null && buffer.limit() > 0 && channel.position() == bufferEnd)
+		{
+			long start = bufferEnd - buffer.limit();
+			if (newPosition >= start && newPosition <= bufferEnd)
+			{
+				buffer.position((int)(newPosition - start));
+				return;
+			}
+		}
+		
+		if (buffer != null)
+			buffer.limit(0);
+		channel.position(newPosition);
+	}
+	
+	/**
+	 Forget the buffered bytes, for when the channel's content has changed.  The stream's
+	 position becomes the channel's.
+	 */
+	public void discardBuffer()
+	{
+		if (buffer != null)
+			buffer.limit(0);
+	}
+	
+	/**
+	 @return true if there are unread buffered bytes and the channel has not been moved
+	 since they were read.  Otherwise the buffer is discarded.
+	 */
+	private boolean hasBuffered()
+	throws IOException
+	{
+		if (buffer == null || !buffer.hasRemaining())
+			return false;
+		if (channel.position() != bufferEnd)
+		{
+			buffer.limit(0);
+			return false;
+		}
+		return true;
+	}
+	
+	public int read()
+	throws IOException
+	{
+		int n = read(one, 0, 1);
+		return n == 1 ? one[0] & 0xFF : -1;
+	}
+	
+	public int read(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (len == 0)
+			return 0;
+		
+		if (!hasBuffered())
+		{
+			//large reads gain nothing from the buffer
+			if (buffer == null || len >= buffer.capacity())
+				return readChannel(ByteBuffer.wrap(b, off, len));
+			
+			long start = channel.position();
+			buffer.clear();
+			int n = readChannel(buffer);
+			buffer.flip();
+			if (n == -1)
+				return -1;
+			bufferEnd = start + n;
+		}
+		
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+	
+	/**
+	 Read at least one byte unless at the end of the channel.  A channel may return 0 bytes
+	 without being at its end, such as a non-blocking or remote one with nothing ready yet,
+	 so wait a little, increasingly, between attempts rather than spin.
+	 */
+	private int readChannel(ByteBuffer dst)
+	throws IOException
+	{
+		long backoff = 1;
+		while (true)
+		{
+			int n = channel.read(dst);
+			if (n != 0)
+				return n;
+			
+			try
+			{
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the channel");
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+		}
+	}
+	
+	public long skip(long n)
+	throws IOException
+	{
+		if (n <= 0)
+			return 0;
+		long pos = position();
+		n = Math.min(n, Math.max(0, channel.size() - pos));
+		position(pos + n);
+		return n;
+	}
+	
+	public int available()
+	throws IOException
+	{
+		long amount = channel.size() - position();
+		return amount >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)Math.max(0, amount);
+	}
+	
+	public boolean markSupported()
+	{
+		return true;
+	}
+	
+	public synchronized void mark(int readlimit)
+	{
+		try
+		{
+			markPos = position();
+		}
+		catch (IOException ioe)
+		{
+			//reset will fail
+			markPos = -1;
+		}
+	}
+	
+	public synchronized void reset()
+	throws IOException
+	{
+		if (markPos == -1)
+			throw new IOException("Mark has not been set.");
+		position(markPos);
+	}
+	
+//#ifdef TEST
+	public static class Tester
+	{
+		/**
+		 A channel like a remote object: every other read returns nothing.
+		 */
+		private static class SlowChannel
+			extends ByteBufferChannel
+		{
+			int reads;
+			
+			SlowChannel(byte[] bytes)
+			{
+				super(bytes);
+			}
+			
+			public int read(ByteBuffer dst)
+			throws IOException
+			{
+				if (++reads % 2 == 1)
+					return 0;
+				return super.read(dst);
+			}
+		}
+		
+		@Test
+		public void bufferTest()
+		throws IOException
+		{
+			byte[] data = new byte[1000];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (byte)i;
+			SlowChannel ch = new SlowChannel(data);
+			assertEquals(defaultBufferSize(ch), 0);
+			ChannelInputStream cis = new ChannelInputStream(ch, 64);
+			
+			//small reads are served from the buffer, and empty channel reads are retried
+			byte[] b = new byte[10];
+			assertEquals(cis.read(b, 0, 10), 10);
+			assertEquals(b[9], (byte)9);
+			assertEquals(cis.position(), 10);
+			assertEquals(ch.position(), 64);
+			for (int i = 10; i < 64; i++)
+				assertEquals(cis.read(), i);
+			assertEquals(ch.reads, 2);
+			
+			//mark and reset within the buffer don't touch the channel
+			cis.mark(100);
+			assertEquals(cis.read(), 64);
+			cis.reset();
+			assertEquals(cis.read(), 64);
+			assertEquals(cis.skip(20), 20);
+			assertEquals(cis.read(), 85);
+			cis.position(70);
+			assertEquals(cis.read(), 70);
+			
+			//moving the channel directly discards the buffer
+			ch.position(500);
+			assertEquals(cis.read(), 500 & 0xFF);
+			assertEquals(cis.position(), 501);
+			
+			//after a write the buffer must be discarded explicitly
+			ch.position(501);
+			ch.write(ByteBuffer.wrap(new byte[] {42}));
+			ch.position(564);  //back where the stream left it
+			assertEquals(cis.read(), 501 & 0xFF);
+			cis.discardBuffer();
+			ch.position(501);
+			assertEquals(cis.read(), 42);
+			
+			//large reads bypass the buffer
+			cis.position(600);
+			byte[] big = new byte[200];
+			assertEquals(cis.read(big, 0, 200), 200);
+			assertEquals(big[0], (byte)600);
+			assertEquals(ch.position(), 800);
+			assertEquals(cis.available(), 200);
+			assertEquals(cis.skip(1000), 200);
+			assertEquals(cis.read(), -1);
+		}
+	}
+//#endif
+}
\ No newline at end of file
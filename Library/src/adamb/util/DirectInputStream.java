@@ -0,0 +1,370 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.util;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+//#ifdef TEST
+import org.testng.annotations.Test;
+import static org.testng.Assert.*;
+import adamb.ogg.*;
+import java.util.Arrays;
+//#endif
+
+/**
+ A sequential file InputStream that bypasses the operating system's page cache where
+ possible, so whole-library passes (verification, hashing, remuxing) don't evict the files
+ other processes are using.  The file is opened with
+ <code>com.sun.nio.file.ExtendedOpenOption.DIRECT</code> and read into a direct buffer
+ aligned to the file system's block size.
+ <p>
+ If the JVM lacks the option (before Java 10) or the file system refuses it, the file is
+ read normally through the same buffer; {@link #isDirect()} tells which happened.  Mark
+ and reset are not supported.
+ </p>
+ */
+public class DirectInputStream
+	extends InputStream
+{
+	/**ExtendedOpenOption.DIRECT or null if this JVM doesn't have it*/
+	private static final OpenOption DIRECT = directOption();
+	private static final int DEFAULT_ALIGNMENT = 4096;
+	
+	private Path path;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private boolean direct;
+	private int alignment;
+	/**the file position of the end of the buffer*/
+	private long filePosition;
+	private boolean eof;
+	
+	/**
+	 Equivalent to <code>DirectInputStream(f, 1024 * 1024)</code>.
+	 */
+	public DirectInputStream(File f)
+	throws IOException
+	{
+		this(f, 1024 * 1024);
+	}
+	
+	/**
+	 @param bufferSize the size of each read from the file, rounded up to the block size
+	 */
+	public DirectInputStream(File f, int bufferSize)
+	throws IOException
+	{
+		path = f.toPath();
+		alignment = 1;
+		if (DIRECT != null)
+		{
+			try
+			{
+				alignment = blockSize(path);
+				channel = FileChannel.open(path, StandardOpenOption.READ, DIRECT);
+				direct = true;
+			}
+			catch (IOException ioe)
+			{
+				//not supported by this file system
+			}
+			catch (UnsupportedOperationException uoe)
+			{
+				//not supported by this platform
+			}
+		}
+		if (channel == null)
+		{
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			alignment = 1;
+		}
+		
+		int size = (Math.max(bufferSize, alignment) + alignment - 1) / alignment * alignment;
+		buffer = ByteBuffer.allocateDirect(size + alignment - 1).alignedSlice(alignment);
+		buffer.limit(0);
+		filePosition = 0;
+		eof = false;
+	}
+	
+	/**
+	 @return true if the file is being read with direct I/O
+	 */
+	public boolean isDirect()
+	{
+		return direct;
+	}
+	
+	public int read()
+	throws IOException
+	{
+		if (!buffer.hasRemaining() && !fill())
+			return -1;
+		return buffer.get() & 0xFF;
+	}
+	
+	public int read(byte[] b, int off, int len)
+	throws IOException
+	{
+		if (len == 0)
+			return 0;
+		if (!buffer.hasRemaining() && !fill())
+			return -1;
+		
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+	
+	public long skip(long n)
+	throws IOException
+	{
+		if (n <= 0)
+			return 0;
+		
+		long skipped = Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + (int)skipped);
+		n -= skipped;
+		
+		//skip whole buffers without reading them, staying aligned
+		long whole = n / buffer.capacity() * buffer.capacity();
+		if (whole > 0 && !eof)
+		{
+			whole = Math.min(whole, Math.max(0, channel.size() - filePosition) / buffer.capacity() * buffer.capacity());
+			filePosition += whole;
+			channel.position(filePosition);
+			skipped += whole;
+			n -= whole;
+		}
+		
+		while (n > 0 && (buffer.hasRemaining() || fill()))
+		{
+			int k = (int)Math.min(n, buffer.remaining());
+			buffer.position(buffer.position() + k);
+			skipped += k;
+			n -= k;
+		}
+		
+		return skipped;
+	}
+	
+	public int available()
+	throws IOException
+	{
+		long amount = buffer.remaining() + Math.max(0, channel.size() - filePosition);
+		return amount >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)amount;
+	}
+	
+	public void close()
+	throws IOException
+	{
+		channel.close();
+	}
+	
+	/**
+	 @return false at the end of the file
+	 */
+	private boolean fill()
+	throws IOException
+	{
+		if (eof)
+			return false;
+		
+		/*a short read leaves the position unaligned, which direct reads can't continue from.
+		 It is usually the end of the file, but if not (the read was interrupted or the file
+		 is growing) continue without direct I/O*/
+		if (direct && filePosition % alignment != 0)
+		{
+			if (filePosition >= channel.size())
+			{
+				eof = true;
+				buffer.limit(0);
+				return false;
+			}
+			reopenWithoutDirect();
+		}
+		
+		buffer.clear();
+		int n;
+		try
+		{
+			n = channel.read(buffer);
+		}
+		catch (IOException ioe)
+		{
+			if (!direct)
+				throw ioe;
+			
+			//some file systems accept the flag but fail the reads; continue without it
+			reopenWithoutDirect();
+			buffer.clear();
+			n = channel.read(buffer);
+		}
+		
+		if (n <= 0)
+		{
+			eof = true;
+			buffer.limit(0);
+			return false;
+		}
+		
+		filePosition += n;
+		buffer.flip();
+		return true;
+	}
+	
+	private void reopenWithoutDirect()
+	throws IOException
+	{
+		channel.close();
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		channel.position(filePosition);
+		direct = false;
+	}
+	
+	private static OpenOption directOption()
+	{
+		try
+		{
+			Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			for (Object o: c.getEnumConstants())
+			{
+				if (((Enum<?>)o).name().equals("DIRECT"))
+					return (OpenOption)o;
+			}
+		}
+		catch (ClassNotFoundException cnfe)
+		{
+			//not a JDK which has it
+		}
+		return null;
+	}
+	
+	/**
+	 @return the file system's block size, which direct I/O must be aligned to
+	 */
+	private static int blockSize(Path p)
+	throws IOException
+	{
+		//FileStore.getBlockSize() was added in Java 10, along with the DIRECT option
+		try
+		{
+			Method m = FileStore.class.getMethod("getBlockSize");
+			long size = ((Long)m.invoke(Files.getFileStore(p))).longValue();
+			if (size > 0 && size <= 1024 * 1024 && Long.bitCount(size) == 1)
+				return (int)size;
+		}
+		catch (ReflectiveOperationException roe)
+		{
+			//use the default
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			//use the default
+		}
+		return DEFAULT_ALIGNMENT;
+	}
+	
+//#ifdef TEST
+	public static class Tester
+	{
+		@Test
+		public void directReadTest()
+		throws IOException
+		{
+			File f = new File("test oggs", "error free.ogg");
+			byte[] expected = java.nio.file.Files.readAllBytes(f.toPath());
+			
+			//a buffer smaller than the file so several reads are made
+			DirectInputStream dis = new DirectInputStream(f, 4096);
+			try
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] b = new byte[1000];
+				int n;
+				while ((n = dis.read(b)) != -1)
+					out.write(b, 0, n);
+				assertEquals(out.toByteArray(), expected);
+				assertEquals(dis.read(), -1);
+			}
+			finally
+			{
+				dis.close();
+			}
+			
+			dis = new DirectInputStream(f, 4096);
+			try
+			{
+				assertEquals(dis.skip(10000), 10000);
+				assertEquals(dis.read(), expected[10000] & 0xFF);
+				assertEquals(dis.skip(expected.length), expected.length - 10001);
+				assertEquals(dis.read(), -1);
+			}
+			finally
+			{
+				dis.close();
+			}
+			
+			//a short read which isn't the end of the file, here because the file grew, isn't taken as the end
+			File growing = new File("deleteme direct");
+			try
+			{
+				byte[] data = new byte[5000];
+				new java.util.Random(1).nextBytes(data);
+				java.nio.file.Files.write(growing.toPath(), Arrays.copyOf(data, 3000));
+				dis = new DirectInputStream(growing, 4096);
+				try
+				{
+					byte[] b = new byte[3000];
+					assertEquals(Util.readCompletely(dis, b), 3000);
+					java.nio.file.Files.write(growing.toPath(), Arrays.copyOfRange(data, 3000, 5000), StandardOpenOption.APPEND);
+					b = new byte[2001];
+					assertEquals(Util.readCompletely(dis, b), 2000);
+					assertEquals(Arrays.copyOf(b, 2000), Arrays.copyOfRange(data, 3000, 5000));
+				}
+				finally
+				{
+					dis.close();
+				}
+			}
+			finally
+			{
+				growing.delete();
+			}
+			
+			assertEquals(OggIO.verifyFile(f, true), OggIO.verifyFile(f, false));
+			try
+			{
+				OggIO.verifyFile(new File("test oggs", "corrupt page 2.ogg"), true);
+				fail();
+			}
+			catch (ChecksumMismatchException cme)
+			{
+				//expected
+			}
+		}
+	}
+//#endif
+}
@@ -24,6 +24,8 @@ package adamb.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 
 //#ifdef TEST
 import org.testng.annotations.Test;
@@ -60,13 +62,25 @@ public class FileInsert
 	 */
 	public void insert(RandomAccessFile file, long from, long to, byte[] newData, int offset, int len)
 	throws IOException
+	{
+		//the channel shares the file pointer with the RandomAccessFile
+		insert(file.getChannel(), from, to, newData, offset, len);
+	}
+	
+	/**
+	 Same as {@link #insert(RandomAccessFile, long, long, byte[], int, int)} for any
+	 seekable channel, such as a FileChannel or an in-memory {@link ByteBufferChannel}.
+	 The channel is left positioned after the new data.
+	 */
+	public void insert(SeekableByteChannel channel, long from, long to, byte[] newData, int offset, int len)
+	throws IOException
 	{
 		/*make sure the given interval is acceptable.
 		 
 			It is important to make sure that everything is in order before we
 			start modifying the file because the changes being made are not reversable!
 		 */
-		long fileLen = file.length();
+		long fileLen = channel.size();
 		if
 			(
 			//unacceptable interval?
@@ -110,15 +124,15 @@ public class FileInsert
 					stop = true;
 				}
 				
-				file.seek(lastPos);
+				channel.position(lastPos);
 				
 				//read the entire chunk
-				nRead = readCompletely(file, chunk, chunkSize);
+				nRead = readCompletely(channel, chunk, chunkSize);
 				if (nRead != chunkSize)
 					throw new IOException("Unexpected read shortage: " + nRead + " bytes instead of " + chunkSize + '!');
 				
-				file.seek(lastPos + excess);
-				file.write(chunk, 0, chunkSize);
+				channel.position(lastPos + excess);
+				writeCompletely(channel, chunk, 0, chunkSize);
 			}
 		}
 		//case 2: file must shrink
@@ -128,44 +142,50 @@ public class FileInsert
 			int nRead;
 			while (true)
 			{
-				file.seek(lastPos);
-				nRead = file.read(chunk);
+				channel.position(lastPos);
+				nRead = channel.read(ByteBuffer.wrap(chunk));
 				//are we done?
 				if (nRead == -1)
 					break;
-				file.seek(lastPos + excess);  //since excess is negative this will seek backwards from lastPos
-				file.write(chunk, 0, nRead);
+				channel.position(lastPos + excess);  //since excess is negative this will seek backwards from lastPos
+				writeCompletely(channel, chunk, 0, nRead);
 				lastPos += nRead;
 			}
 			
 			//truncate the file
-			file.setLength(fileLen + excess);  //since excess is negative the file will be truncated
+			channel.truncate(fileLen + excess);  //since excess is negative the file will be truncated
 		}
 		//case 3: file size does not change (no special action necessary)
 		
 		//finally write in the new data
-		file.seek(from);
-		file.write(newData, offset, len);
+		channel.position(from);
+		writeCompletely(channel, newData, offset, len);
 	}
 	
 	
-	/**block until the given byte array can be filled from the stream
-	 @return the number bytes actually read.  This will only be less than the length
-	 of the byte array if the end of the stream is reached.
+	/**block until the given byte array can be filled from the channel
+	 @return the number bytes actually read.  This will only be less than numToRead
+	 if the end of the channel is reached.
 	 */
-	private int readCompletely(RandomAccessFile is, byte[] bytes, int numToRead)
+	private int readCompletely(SeekableByteChannel channel, byte[] bytes, int numToRead)
 	throws IOException
 	{
-		int nRead = is.read(bytes, 0, numToRead);
-		while (nRead < numToRead)
+		ByteBuffer buf = ByteBuffer.wrap(bytes, 0, numToRead);
+		while (buf.hasRemaining())
 		{
-			if (nRead == -1)
+			if (channel.read(buf) == -1)
 				return 0;
-			else
-				nRead += is.read(bytes, nRead, numToRead - nRead);
 		}
 		
-		return nRead;
+		return numToRead;
+	}
+	
+	private static void writeCompletely(SeekableByteChannel channel, byte[] bytes, int offset, int len)
+	throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(bytes, offset, len);
+		while (buf.hasRemaining())
+			channel.write(buf);
 	}
 	
 //#ifdef TEST	
@@ -0,0 +1,584 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Reads the comments of the .ogg and .oga files inside zip and tar archives without
+ extracting them.  Each entry's bytes are pushed into a {@link VorbisHeaderParser} and
+ reading stops as soon as the comment header is complete.  The rest of the entry is then
+ skipped: zip entries are located through the central directory and tar entries through
+ their headers, so for an archive file on disk only the header pages are read.  A
+ compressed tar can only be skipped through by decompressing it.  Tar archives may be in
+ POSIX ustar, GNU or pax format; pax extended headers supply the path and size of the
+ entry that follows them.
+ <p>
+ Each result is reported as a {@link FileComments} whose file is the archive followed by
+ the entry's path, e.g. <code>delivery.zip/disc1/01.ogg</code>, and whose size and
+ modification time are the entry's.
+ </p>
+ */
+public class ArchiveScanner
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int TAR_BLOCK_SIZE = 512;
+	private static final int READ_SIZE = 8 * 1024;
+	/**the magic and version of a POSIX ustar header, which has a path prefix*/
+	private static final byte[] USTAR_MAGIC = "ustar\u0000".getBytes(UTF8);
+	/**the largest GNU long name or pax header accepted*/
+	private static final int MAX_EXTENDED_HEADER = 1024 * 1024;
+	
+	private boolean ignoreAllRecoverableErrorsAndWarnings;
+	private byte[] readBuffer;
+	
+	public ArchiveScanner()
+	{
+		this(true);
+	}
+	
+	/**
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link VorbisIO#readComments(File, boolean)}
+	 */
+	public ArchiveScanner(boolean ignoreAllRecoverableErrorsAndWarnings)
+	{
+		this.ignoreAllRecoverableErrorsAndWarnings = ignoreAllRecoverableErrorsAndWarnings;
+		readBuffer = new byte[READ_SIZE];
+	}
+	
+	/**
+	 Scan a .zip, .tar, .tar.gz or .tgz file.  Entries that can't be read are reported to
+	 the listener with the error.
+	 @throws IOException if the archive itself can't be read
+	 */
+	public void scan(File archive, BatchCommentReader.Listener listener)
+	throws IOException
+	{
+		String name = archive.getName().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".zip"))
+			scanZip(archive, listener);
+		else if (name.endsWith(".tar"))
+		{
+			FileInputStream fis = new FileInputStream(archive);
+			try
+			{
+				scanTar(fis, archive, listener);
+			}
+			finally
+			{
+				fis.close();
+			}
+		}
+		else if (name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+		{
+			InputStream is = new GZIPInputStream(new FileInputStream(archive), 64 * 1024);
+			try
+			{
+				scanTar(is, archive, listener);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		else
+			throw new IOException("Unsupported archive type: " + archive.getPath());
+	}
+	
+	private void scanZip(File archive, BatchCommentReader.Listener listener)
+	throws IOException
+	{
+		ZipFile zip = new ZipFile(archive);
+		try
+		{
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory() || !LibraryFiles.isCandidate(entry.getName()))
+					continue;
+				
+				FileComments fc;
+				InputStream is = zip.getInputStream(entry);
+				try
+				{
+					fc = read(is, Long.MAX_VALUE, new File(archive, entry.getName()));
+				}
+				finally
+				{
+					//the next entry is found through the central directory; the rest of this one is never read
+					is.close();
+				}
+				fc.size = entry.getSize();
+				fc.lastModified = entry.getTime();
+				listener.fileRead(fc);
+			}
+		}
+		finally
+		{
+			zip.close();
+		}
+	}
+	
+	/**
+	 Scan an uncompressed tar stream.  If the stream is a FileInputStream the unread part of
+	 each entry is skipped by moving the file position, otherwise it is read and discarded.
+	 @param archive the name to report entries under
+	 */
+	public void scanTar(InputStream is, File archive, BatchCommentReader.Listener listener)
+	throws IOException
+	{
+		FileChannel channel = is instanceof FileInputStream ? ((FileInputStream)is).getChannel() : null;
+		byte[] header = new byte[TAR_BLOCK_SIZE];
+		String longName = null;
+		//from a pax extended header, for the next entry
+		String paxPath = null;
+		long paxSize = -1;
+		
+		while (true)
+		{
+			if (Util.readCompletely(is, header) != TAR_BLOCK_SIZE)
+				throw new EOFException("Tar archive is truncated: " + archive.getPath());
+			//an empty block marks the end
+			if (isZero(header))
+				break;
+			if (tarChecksum(header) != parseOctal(header, 148, 8))
+				throw new IOException("Corrupt tar header in " + archive.getPath());
+			
+			long size = parseOctal(header, 124, 12);
+			long padded = (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+			char type = (char)header[156];
+			long consumed = 0;
+			
+			//GNU long name: the entry's data is the name of the next entry
+			if (type == 'L')
+			{
+				byte[] nameBytes = readExtendedHeader(is, size, padded, archive);
+				longName = string(nameBytes, 0, (int)size);
+				continue;
+			}
+			//pax extended header: records which override the next entry's header fields
+			else if (type == 'x')
+			{
+				Map<String, String> records = paxRecords(readExtendedHeader(is, size, padded, archive), (int)size, archive);
+				paxPath = records.get("path");
+				String paxSizeValue = records.get("size");
+				try
+				{
+					paxSize = paxSizeValue != null ? Long.parseLong(paxSizeValue) : -1;
+				}
+				catch (NumberFormatException nfe)
+				{
+					throw new IOException("Corrupt pax header in " + archive.getPath());
+				}
+				continue;
+			}
+			//pax global header or GNU long link name: nothing that names the next entry
+			else if (type == 'g' || type == 'K')
+			{
+				skip(is, channel, padded);
+				continue;
+			}
+			
+			String name = paxPath != null ? paxPath : longName != null ? longName : tarName(header);
+			if (paxSize >= 0)
+			{
+				size = paxSize;
+				padded = (size + TAR_BLOCK_SIZE - 1) / TAR_BLOCK_SIZE * TAR_BLOCK_SIZE;
+			}
+			longName = null;
+			paxPath = null;
+			paxSize = -1;
+			
+			//regular file?
+			if ((type == '0' || type == '\0') && LibraryFiles.isCandidate(name))
+			{
+				CountingInputStream entry = new CountingInputStream(is, size);
+				FileComments fc = read(entry, size, new File(archive, name));
+				fc.size = size;
+				fc.lastModified = parseOctal(header, 136, 12) * 1000;
+				consumed = entry.count;
+				listener.fileRead(fc);
+			}
+			
+			skip(is, channel, padded - consumed);
+		}
+	}
+	
+	/**
+	 Read the data of a GNU long name or pax header, including its padding.
+	 */
+	private static byte[] readExtendedHeader(InputStream is, long size, long padded, File archive)
+	throws IOException
+	{
+		if (size > MAX_EXTENDED_HEADER)
+			throw new IOException("Corrupt tar header in " + archive.getPath());
+		byte[] data = new byte[(int)padded];
+		if (Util.readCompletely(is, data) != data.length)
+			throw new EOFException("Tar archive is truncated: " + archive.getPath());
+		return data;
+	}
+	
+	/**
+	 Parse pax records, each "<i>length</i> <i>keyword</i>=<i>value</i>\n" where the
+	 length, in decimal, counts the whole record.  Values are UTF-8.
+	 */
+	private static Map<String, String> paxRecords(byte[] data, int size, File archive)
+	throws IOException
+	{
+		Map<String, String> records = new HashMap<String, String>();
+		int pos = 0;
+		while (pos < size)
+		{
+			int space = pos;
+			int length = 0;
+			while (space < size && data[space] >= '0' && data[space] <= '9' && length <= size)
+				length = length * 10 + (data[space++] - '0');
+			if (space == pos || space >= size || data[space] != ' ' || length <= space - pos + 1 || pos + length > size || data[pos + length - 1] != '\n')
+				throw new IOException("Corrupt pax header in " + archive.getPath());
+			
+			String record = new String(data, space + 1, pos + length - 1 - (space + 1), UTF8);
+			int equals = record.indexOf('=');
+			if (equals > 0)
+				records.put(record.substring(0, equals), record.substring(equals + 1));
+			pos += length;
+		}
+		return records;
+	}
+	
+	/**
+	 Read the comments of one entry, stopping at the end of the comment header.
+	 */
+	private FileComments read(InputStream is, long size, File f)
+	{
+		final VorbisCommentHeader[] comments = new VorbisCommentHeader[1];
+		VorbisHeaderParser parser = new VorbisHeaderParser(new VorbisHeaderParser.Listener()
+		{
+			public void idHeader(VorbisIDHeader header)
+			{
+			}
+			
+			public void commentHeader(VorbisCommentHeader c)
+			{
+				comments[0] = c;
+			}
+			
+			public void setupComplete(long audioOffset)
+			{
+			}
+		}, ignoreAllRecoverableErrorsAndWarnings);
+		
+		try
+		{
+			while (comments[0] == null)
+			{
+				int n = is.read(readBuffer, 0, (int)Math.min(readBuffer.length, Math.max(1, size)));
+				if (n == -1)
+				{
+					//throws because the comments are missing
+					parser.endOfStream();
+					break;
+				}
+				parser.push(ByteBuffer.wrap(readBuffer, 0, n));
+			}
+			return new FileComments(f, comments[0]);
+		}
+		catch (IOException ioe)
+		{
+			return new FileComments(f, ioe);
+		}
+	}
+	
+	private void skip(InputStream is, FileChannel channel, long n)
+	throws IOException
+	{
+		if (n <= 0)
+			return;
+		
+		if (channel != null)
+		{
+			long pos = channel.position() + n;
+			if (pos > channel.size())
+				throw new EOFException("Tar archive is truncated");
+			channel.position(pos);
+		}
+		else
+		{
+			while (n > 0)
+			{
+				int nRead = is.read(readBuffer, 0, (int)Math.min(readBuffer.length, n));
+				if (nRead == -1)
+					throw new EOFException("Tar archive is truncated");
+				n -= nRead;
+			}
+		}
+	}
+	
+	private static boolean isZero(byte[] block)
+	{
+		for (byte b: block)
+		{
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 @return the sum of the header bytes with the checksum field taken as spaces
+	 */
+	private static long tarChecksum(byte[] header)
+	{
+		long sum = 0;
+		for (int i = 0; i < header.length; i++)
+			sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+		return sum;
+	}
+	
+	private static long parseOctal(byte[] b, int offset, int length)
+	throws IOException
+	{
+		long value = 0;
+		int end = offset + length;
+		int i = offset;
+		while (i < end && (b[i] == ' ' || b[i] == 0))
+			i++;
+		for (; i < end && b[i] != ' ' && b[i] != 0; i++)
+		{
+			if (b[i] < '0' || b[i] > '7')
+				throw new IOException("Corrupt tar header");
+			value = (value << 3) + (b[i] - '0');
+		}
+		return value;
+	}
+	
+	private static String tarName(byte[] header)
+	{
+		String name = string(header, 0, 100);
+		/*ustar splits long paths into a prefix and a name.  GNU tar's magic, "ustar  ",
+		 has the same start but its header holds other fields where the prefix would be.*/
+		if (Util.intervalEquals(header, 257, USTAR_MAGIC))
+		{
+			String prefix = string(header, 345, 155);
+			if (prefix.length() > 0)
+				name = prefix + '/' + name;
+		}
+		return name;
+	}
+	
+	private static String string(byte[] b, int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && b[end] != 0)
+			end++;
+		return new String(b, offset, end - offset, UTF8);
+	}
+	
+	/**Reads at most the entry's bytes from the tar stream and counts them.*/
+	private static class CountingInputStream
+		extends FilterInputStream
+	{
+		long count;
+		private long limit;
+		
+		CountingInputStream(InputStream is, long limit)
+		{
+			super(is);
+			this.limit = limit;
+		}
+		
+		public int read()
+		throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+		
+		public int read(byte[] b, int off, int len)
+		throws IOException
+		{
+			if (count >= limit)
+				return -1;
+			int n = super.read(b, off, (int)Math.min(len, limit - count));
+			if (n > 0)
+				count += n;
+			return n;
+		}
+	}
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void archiveTest()
+		throws IOException
+		{
+			File zipFile = new File("deleteme archive.zip");
+			File tarFile = new File("deleteme archive.tar");
+			File tgzFile = new File("deleteme archive.tgz");
+			try
+			{
+				byte[] ogg = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+				byte[] bad = java.nio.file.Files.readAllBytes(new File("test oggs", "not really ogg.ogg").toPath());
+				VorbisCommentHeader expected = VorbisIO.readComments(new File("test oggs", "error free.ogg"));
+				
+				ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
+				try
+				{
+					//ogg files are usually stored since they don't compress
+					ZipEntry stored = new ZipEntry("disc1/01.ogg");
+					stored.setMethod(ZipEntry.STORED);
+					stored.setSize(ogg.length);
+					CRC32 crc = new CRC32();
+					crc.update(ogg);
+					stored.setCrc(crc.getValue());
+					zos.putNextEntry(stored);
+					zos.write(ogg);
+					zos.putNextEntry(new ZipEntry("disc1/02.ogg"));
+					zos.write(ogg);
+					zos.putNextEntry(new ZipEntry("readme.txt"));
+					zos.write(new byte[100]);
+					zos.putNextEntry(new ZipEntry("bad.ogg"));
+					zos.write(bad);
+				}
+				finally
+				{
+					zos.close();
+				}
+				
+				String longDir = "a-directory-name-long-enough-to-need-a-gnu-long-name-header-because-it-exceeds-one-hundred-bytes-of-path";
+				ByteArrayOutputStream tar = new ByteArrayOutputStream();
+				writeTarEntry(tar, "disc1/01.ogg", '0', ogg);
+				writeTarEntry(tar, "readme.txt", '0', new byte[700]);
+				writeTarEntry(tar, "././@LongLink", 'L', (longDir + "/02.ogg").getBytes(UTF8));
+				writeTarEntry(tar, longDir.substring(0, 90), '0', ogg);
+				writeTarEntry(tar, "bad.ogg", '0', bad);
+				//GNU format: the prefix field holds access and change times
+				byte[] gnu = tarHeader("disc2/03.ogg", '0', ogg.length, "ustar  \u0000".getBytes(UTF8));
+				System.arraycopy("14454407750".getBytes(UTF8), 0, gnu, 345, 11);
+				writeTarEntry(tar, gnu, ogg);
+				//pax: a global header, then a path too long and not ASCII for the header
+				writeTarEntry(tar, "pax_global_header", 'g', paxRecord("comment", "ignored"));
+				String paxPath = longDir + "/Bj\u00f6rk/04.ogg";
+				writeTarEntry(tar, "PaxHeaders/04.ogg", 'x', paxRecord("path", paxPath));
+				writeTarEntry(tar, longDir.substring(0, 90) + "/04.ogg", '0', ogg);
+				tar.write(new byte[TAR_BLOCK_SIZE * 2]);
+				java.nio.file.Files.write(tarFile.toPath(), tar.toByteArray());
+				GZIPOutputStream gz = new GZIPOutputStream(new FileOutputStream(tgzFile));
+				gz.write(tar.toByteArray());
+				gz.close();
+				
+				for (File archive: new File[]{zipFile, tarFile, tgzFile})
+				{
+					final List<FileComments> results = new ArrayList<FileComments>();
+					new ArchiveScanner().scan(archive, new BatchCommentReader.Listener()
+					{
+						public void fileRead(FileComments fc)
+						{
+							results.add(fc);
+						}
+					});
+					
+					boolean isTar = archive != zipFile;
+					assertEquals(results.size(), isTar ? 5 : 3, archive.getName());
+					if (isTar)
+					{
+						assertEquals(results.get(3).file, new File(archive, "disc2/03.ogg"));
+						assertEquals(results.get(4).file, new File(archive, paxPath));
+						assertEquals(results.get(4).comments.toPacket(), expected.toPacket());
+					}
+					assertEquals(results.get(0).file, new File(archive, "disc1/01.ogg"));
+					assertEquals(results.get(0).comments.toPacket(), expected.toPacket());
+					assertEquals(results.get(0).size, ogg.length);
+					assertTrue(results.get(1).file.getPath().endsWith("02.ogg"));
+					assertEquals(results.get(1).comments.toPacket(), expected.toPacket());
+					assertNotNull(results.get(2).error);
+				}
+			}
+			finally
+			{
+				zipFile.delete();
+				tarFile.delete();
+				tgzFile.delete();
+			}
+		}
+		
+		private static void writeTarEntry(OutputStream os, String name, char type, byte[] data)
+		throws IOException
+		{
+			writeTarEntry(os, tarHeader(name, type, data.length, "ustar\u000000".getBytes(UTF8)), data);
+		}
+		
+		private static void writeTarEntry(OutputStream os, byte[] header, byte[] data)
+		throws IOException
+		{
+			octal(header, 148, 8, tarChecksum(header));
+			os.write(header);
+			os.write(data);
+			os.write(new byte[(TAR_BLOCK_SIZE - data.length % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE]);
+		}
+		
+		/**
+		 @return a header without its checksum
+		 */
+		private static byte[] tarHeader(String name, char type, int size, byte[] magic)
+		{
+			byte[] header = new byte[TAR_BLOCK_SIZE];
+			byte[] nameBytes = name.getBytes(UTF8);
+			System.arraycopy(nameBytes, 0, header, 0, Math.min(100, nameBytes.length));
+			octal(header, 100, 8, 0644);
+			octal(header, 124, 12, size);
+			octal(header, 136, 12, 1200000000L);
+			header[156] = (byte)type;
+			System.arraycopy(magic, 0, header, 257, magic.length);
+			return header;
+		}
+		
+		private static byte[] paxRecord(String keyword, String value)
+		{
+			int length = keyword.getBytes(UTF8).length + value.getBytes(UTF8).length + 3;
+			//the length includes its own digits
+			int digits = String.valueOf(length).length();
+			if (String.valueOf(length + digits).length() > digits)
+				digits++;
+			return ((length + digits) + " " + keyword + "=" + value + "\n").getBytes(UTF8);
+		}
+		
+		private static void octal(byte[] b, int offset, int length, long value)
+		{
+			String s = Long.toOctalString(value);
+			while (s.length() < length - 1)
+				s = "0" + s;
+			System.arraycopy(s.getBytes(UTF8), 0, b, offset, length - 1);
+		}
+	}
+}
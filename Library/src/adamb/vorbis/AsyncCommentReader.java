@@ -0,0 +1,203 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.ogg.NeedMoreBytesException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ Reads the comment header with an {@link AsynchronousFileChannel}.  Chunks are read until
+ the bytes in memory contain the ID and comment headers and then parsed with the same
+ pipeline as {@link VorbisIO#readComments(File)}.  Opening the file, which may block on a
+ slow file system, is done on an executor and no thread blocks while waiting for the reads.
+ */
+class AsyncCommentReader
+	implements CompletionHandler<Integer, Void>
+{
+	/**
+	 The first read.  Large enough for the header pages of nearly all files so the parse
+	 usually happens exactly once.
+	 */
+	private static final int INITIAL_READ_SIZE = 16 * 1024;
+
+	/**Later reads double in size, up to this limit, so large comment headers (cover art) need few round trips.*/
+	private static final int MAX_READ_SIZE = 1024 * 1024;
+
+	private AsynchronousFileChannel channel;
+	private CompletableFuture<VorbisCommentHeader> future;
+	private ByteBuffer buffer;
+	private long fileSize;
+
+	private AsyncCommentReader(AsynchronousFileChannel channel, long fileSize, CompletableFuture<VorbisCommentHeader> future)
+	{
+		this.channel = channel;
+		this.fileSize = fileSize;
+		this.future = future;
+		buffer = ByteBuffer.allocate((int)Math.min(INITIAL_READ_SIZE, fileSize));
+	}
+
+	/**
+	 @param executor runs the open and stat of the file so they don't block the caller
+	 */
+	static CompletableFuture<VorbisCommentHeader> read(final File f, Executor executor)
+	{
+		final CompletableFuture<VorbisCommentHeader> future = new CompletableFuture<VorbisCommentHeader>();
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				AsyncCommentReader reader;
+				try
+				{
+					if (!f.exists())
+						throw new FileNotFoundException(f.getPath() + " does not exist!");
+
+					AsynchronousFileChannel channel = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ);
+					try
+					{
+						reader = new AsyncCommentReader(channel, channel.size(), future);
+					}
+					catch (IOException ioe)
+					{
+						channel.close();
+						throw ioe;
+					}
+				}
+				catch (IOException ioe)
+				{
+					future.completeExceptionally(ioe);
+					return;
+				}
+				catch (RuntimeException re)
+				{
+					future.completeExceptionally(re);
+					return;
+				}
+
+				reader.readMore();
+			}
+		});
+		return future;
+	}
+
+	private void readMore()
+	{
+		//an empty file, or one we have read completely, can't contain anything more
+		if (buffer.position() >= fileSize)
+			parse(true);
+		else
+			channel.read(buffer, buffer.position(), null, this);
+	}
+
+	public void completed(Integer nRead, Void attachment)
+	{
+		if (nRead.intValue() == -1)
+			parse(true);
+		//keep filling the current buffer before attempting a parse
+		else if (buffer.hasRemaining() && buffer.position() < fileSize)
+			readMore();
+		//give up once the buffer can't grow any further
+		else
+			parse(buffer.position() >= fileSize || buffer.capacity() == Integer.MAX_VALUE);
+	}
+
+	public void failed(Throwable t, Void attachment)
+	{
+		finish(null, t);
+	}
+
+	/**
+	 @param atEnd true if the whole file is in memory
+	 */
+	private void parse(boolean atEnd)
+	{
+		try
+		{
+			ByteBuffer read = buffer.duplicate();
+			read.flip();
+			
+			/*once the whole file is in memory parse it as a stream so a short file fails
+			 the same way as with readComments(File), rather than needing more bytes*/
+			if (atEnd)
+				finish(VorbisIO.readHeaders(new ByteArrayInputStream(read.array(), 0, read.limit()), true).getCommentHeader(), null);
+			else
+				finish(VorbisIO.readComments(read, true), null);
+		}
+		catch (NeedMoreBytesException nmb)
+		{
+			//the headers continue past what we have read so far
+			if (!atEnd)
+			{
+				grow(nmb.getBytesNeeded());
+				readMore();
+			}
+			else
+				finish(null, nmb);
+		}
+		catch (IOException ioe)
+		{
+			finish(null, ioe);
+		}
+		catch (RuntimeException re)
+		{
+			finish(null, re);
+		}
+	}
+
+	/**
+	 @param bytesNeeded the least the buffer must grow by for the parse to get further
+	 */
+	private void grow(int bytesNeeded)
+	{
+		int readSize = Math.max(Math.min(Math.max(buffer.capacity(), INITIAL_READ_SIZE), MAX_READ_SIZE), bytesNeeded);
+		long newCapacity = Math.min((long)buffer.capacity() + readSize, fileSize);
+		if (newCapacity > Integer.MAX_VALUE)
+			newCapacity = Integer.MAX_VALUE;
+
+		ByteBuffer bigger = ByteBuffer.allocate((int)newCapacity);
+		buffer.flip();
+		bigger.put(buffer);
+		buffer = bigger;
+	}
+
+	private void finish(VorbisCommentHeader comments, Throwable t)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ioe)
+		{
+			//the result is already known; a close failure doesn't change it
+		}
+
+		if (t != null)
+			future.completeExceptionally(t);
+		else
+			future.complete(comments);
+	}
+}
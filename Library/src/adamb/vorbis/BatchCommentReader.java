@@ -0,0 +1,180 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Reads the comments from many files concurrently.  Each file is read with
+ {@link VorbisIO#readComments(File, boolean)} semantics.
+ <p>
+ Header reads are small and spend nearly all their time waiting on the disk or network.
+ On high latency storage use {@link BatchExecutor#virtualThreads(int)} with a large
+ number of open files.  On spinning disks use few threads and a {@link #setOrder(FileOrder) locality order}
+ so the heads sweep across the platter instead of seeking at random.
+ </p>
+ */
+public class BatchCommentReader
+{
+	/**
+	 The initial read buffer for each file.  Much smaller than the single file default
+	 because many files are open at once.  {@link adamb.ogg.ErrorTolerantPageStream} marks
+	 a whole page ahead before every page, so the buffer grows, to at most
+	 {@link adamb.ogg.Page#MAX_PAGE_SIZE} plus a little, whenever a single page is larger than
+	 this.  Header pages rarely are.
+	 */
+	static final int BUFFER_SIZE = 16 * 1024;
+
+	/**Receives each file's comments as soon as they are read.  Called from worker threads.*/
+	public interface Listener
+	{
+		public void fileRead(FileComments result);
+	}
+
+	private BatchExecutor executor;
+	private boolean ignoreAllRecoverableErrorsAndWarnings;
+	private FileOrder order;
+	private TagCache cache;
+
+	/**
+	 Equivalent to {@link #BatchCommentReader(BatchExecutor, boolean) BatchCommentReader(executor, true)}.
+	 */
+	public BatchCommentReader(BatchExecutor executor)
+	{
+		this(executor, true);
+	}
+
+	/**
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link VorbisIO#readComments(File, boolean)}
+	 */
+	public BatchCommentReader(BatchExecutor executor, boolean ignoreAllRecoverableErrorsAndWarnings)
+	{
+		this.executor = executor;
+		this.ignoreAllRecoverableErrorsAndWarnings = ignoreAllRecoverableErrorsAndWarnings;
+		order = FileOrder.AS_GIVEN;
+	}
+	
+	/**
+	 Set the order files are read in.  Any order other than {@link FileOrder#AS_GIVEN}
+	 collects the files into a list before reading begins.
+	 */
+	public void setOrder(FileOrder order)
+	{
+		this.order = order;
+	}
+
+	/**
+	 Answer unchanged files from a cache instead of opening them.  The cache is only
+	 consulted when recoverable errors are ignored since that is how it reads files.
+	 @param cache the cache or null to always read the files
+	 */
+	public void setCache(TagCache cache)
+	{
+		this.cache = cache;
+	}
+	
+	/**
+	 Read the comments of every file and block until all are finished.  A failure on one file
+	 is reported to the listener and does not stop the batch.
+	 @param files the files to read.  May be lazily produced.
+	 @param listener a thread safe receiver of the results
+	 */
+	public void read(Iterable<File> files, final Listener listener)
+	throws InterruptedException
+	{
+		if (order != FileOrder.AS_GIVEN)
+			files = order.arrange(files);
+		
+		executor.run(files, new BatchExecutor.FileTask()
+		{
+			public void run(File f)
+			{
+				if (cache != null && ignoreAllRecoverableErrorsAndWarnings)
+					listener.fileRead(FileComments.read(f, cache));
+				else
+					listener.fileRead(FileComments.read(f, ignoreAllRecoverableErrorsAndWarnings));
+			}
+		});
+	}
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		private static void readAll(BatchExecutor executor)
+		throws Exception
+		{
+			List<File> files = new ArrayList<File>();
+			for (File f: new File("test oggs").listFiles())
+			{
+				if (f.getName().endsWith(".ogg"))
+					files.add(f);
+			}
+			
+			final Map<File, FileComments> results = Collections.synchronizedMap(new HashMap<File, FileComments>());
+			new BatchCommentReader(executor).read(files, new Listener()
+			{
+				public void fileRead(FileComments result)
+				{
+					assertNull(results.put(result.file, result));
+				}
+			});
+			
+			//every file is reported once with the same outcome as a single read
+			assertEquals(results.size(), files.size());
+			for (File f: files)
+			{
+				FileComments fc = results.get(f);
+				try
+				{
+					VorbisCommentHeader expected = VorbisIO.readComments(f, true);
+					assertNull(fc.error);
+					assertEquals(fc.comments.toPacket(), expected.toPacket());
+				}
+				catch (IOException ioe)
+				{
+					assertNull(fc.comments);
+					assertEquals(fc.error.getClass(), ioe.getClass());
+				}
+			}
+		}
+		
+		@Test
+		public void batchReadTest()
+		throws Exception
+		{
+			readAll(new BatchExecutor(3));
+			
+			//virtual threads need Java 21
+			if (BatchExecutor.isVirtualThreadSupported())
+			{
+				BatchExecutor virtual = BatchExecutor.virtualThreads(4);
+				assertTrue(virtual.isVirtual());
+				readAll(virtual);
+			}
+		}
+	}
+}
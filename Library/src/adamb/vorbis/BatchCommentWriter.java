@@ -0,0 +1,226 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Applies a {@link CommentUpdater} to many files concurrently.  Each file is updated
+ with {@link VorbisIO#writeComments(File, CommentUpdater)} semantics.
+ <p>
+ The CommentUpdater will be called from several threads at once and therefore must be
+ thread safe.  A file must not appear more than once in the same batch.
+ </p>
+ */
+public class BatchCommentWriter
+{
+	/**Receives the outcome of each file as soon as it is finished.  Called from worker threads.*/
+	public interface Listener
+	{
+		/**
+		 @param result the outcome or null if the update failed
+		 @param error the reason the update failed or null if it succeeded
+		 */
+		public void fileWritten(File f, CommentWriteResult result, Exception error);
+	}
+
+	/**Aggregate counters for a batch.  Safe to read while the batch is running.*/
+	public static class Summary
+	{
+		private AtomicInteger[] counts;
+		private AtomicInteger failures;
+
+		Summary()
+		{
+			counts = new AtomicInteger[CommentWriteResult.values().length];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new AtomicInteger();
+			failures = new AtomicInteger();
+		}
+
+		/**@return the number of files which finished with the given outcome*/
+		public int getCount(CommentWriteResult result)
+		{
+			return counts[result.ordinal()].get();
+		}
+
+		/**@return the number of files which could not be updated*/
+		public int getFailureCount()
+		{
+			return failures.get();
+		}
+
+		/**@return the total number of files processed, including failures*/
+		public int getFileCount()
+		{
+			int total = failures.get();
+			for (AtomicInteger count: counts)
+				total += count.get();
+			return total;
+		}
+
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder(128);
+			for (CommentWriteResult result: CommentWriteResult.values())
+			{
+				sb.append(result);
+				sb.append('=');
+				sb.append(getCount(result));
+				sb.append(' ');
+			}
+			sb.append("FAILED=");
+			sb.append(getFailureCount());
+			return sb.toString();
+		}
+	}
+
+	private BatchExecutor executor;
+
+	public BatchCommentWriter(BatchExecutor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 Equivalent to {@link #write(Iterable, CommentUpdater, Listener) write(files, commentUpdater, null)}.
+	 */
+	public Summary write(Iterable<File> files, CommentUpdater commentUpdater)
+	throws InterruptedException
+	{
+		return write(files, commentUpdater, null);
+	}
+
+	/**
+	 Update the comments of every file and block until all are finished.  A failure on
+	 one file does not stop the batch.
+
+	 @param files the files to update.  May be lazily produced.
+	 @param commentUpdater a thread safe hook deciding how each file's comments change
+	 @param listener notified of each file's outcome.  May be null.
+	 @return the aggregate counters
+	 */
+	public Summary write(Iterable<File> files, final CommentUpdater commentUpdater, final Listener listener)
+	throws InterruptedException
+	{
+		final Summary summary = new Summary();
+
+		executor.run(files, new BatchExecutor.FileTask()
+		{
+			public void run(File f)
+			{
+				CommentWriteResult result = null;
+				Exception error = null;
+				try
+				{
+					result = VorbisIO.writeComments(f, null, commentUpdater);
+					summary.counts[result.ordinal()].incrementAndGet();
+				}
+				catch (Exception e)
+				{
+					error = e;
+					summary.failures.incrementAndGet();
+				}
+
+				if (listener != null)
+					listener.fileWritten(f, result, error);
+			}
+		});
+
+		return summary;
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void batchWriteTest()
+		throws Exception
+		{
+			final File dir = new File("test oggs");
+			File tmpDir = new File("deleteme (batchWriteTest)");
+			tmpDir.mkdir();
+
+			try
+			{
+				//a few copies of a good file and one that is not Ogg at all
+				List<File> files = new ArrayList<File>();
+				for (int i = 0; i < 6; i++)
+				{
+					File f = new File(tmpDir, i + ".ogg");
+					Util.copyFile(new File(dir, "2 audio pages.ogg"), f);
+					files.add(f);
+				}
+				File bad = new File(tmpDir, "bad.ogg");
+				Util.copyFile(new File(dir, "not really ogg.ogg"), bad);
+				files.add(bad);
+
+				//add a field unless the file already has one
+				CommentUpdater updater = new CommentUpdater()
+				{
+					public boolean updateComments(VorbisCommentHeader comments)
+					{
+						if (comments.fields.size() > 0)
+							return false;
+
+						comments.fields.add(new CommentField("A", "b"));
+						return true;
+					}
+				};
+
+				BatchCommentWriter writer = new BatchCommentWriter(new BatchExecutor(3));
+				final List<File> failed = Collections.synchronizedList(new ArrayList<File>());
+				Summary summary = writer.write(files, updater, new Listener()
+				{
+					public void fileWritten(File f, CommentWriteResult result, Exception error)
+					{
+						if (error != null)
+							failed.add(f);
+					}
+				});
+
+				assertEquals(summary.getFileCount(), 7);
+				assertEquals(summary.getFailureCount(), 1);
+				assertEquals(failed.get(0), bad);
+				for (int i = 0; i < 6; i++)
+					assertEquals(VorbisIO.readComments(files.get(i)).fields.get(0).value, "b");
+
+				//a second pass changes nothing
+				summary = writer.write(files.subList(0, 6), updater);
+				assertEquals(summary.getCount(CommentWriteResult.UNCHANGED), 6);
+			}
+			finally
+			{
+				for (File f: tmpDir.listFiles())
+					f.delete();
+				tmpDir.delete();
+			}
+		}
+	}
+}
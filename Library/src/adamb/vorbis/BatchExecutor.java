@@ -0,0 +1,188 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ Runs one task per file with a bound on how many files are being processed at once.
+ Used by the batch readers and writers in this package.
+ <p>
+ Two execution modes are available.  The {@link #BatchExecutor(int) default} uses a
+ fixed pool of platform threads which suits CPU bound work and local disks.
+ {@link #virtualThreads(int)} starts one virtual thread per file (Java 21+) which suits
+ latency bound header reads, such as on network file systems, where many files must be
+ open at once to hide the cost of each open.
+ </p>
+ */
+public class BatchExecutor
+{
+	/**A unit of work performed on a single file.  Implementations must handle their own exceptions.*/
+	interface FileTask
+	{
+		public void run(File f);
+	}
+
+	/**Executors.newVirtualThreadPerTaskExecutor() or null if this JVM does not have virtual threads*/
+	private static final Method NEW_VIRTUAL_THREAD_EXECUTOR;
+	static
+	{
+		Method m;
+		try
+		{
+			m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		}
+		catch (NoSuchMethodException nsme)
+		{
+			m = null;
+		}
+		NEW_VIRTUAL_THREAD_EXECUTOR = m;
+	}
+
+	private int nThreads;
+	private boolean virtual;
+	private int maxOpenFiles;
+
+	/**
+	 @param nThreads the number of files to process concurrently.  For local disks a value
+	 near the number of processors is usually best.
+	 */
+	public BatchExecutor(int nThreads)
+	{
+		if (nThreads < 1)
+			throw new IllegalArgumentException("nThreads must be at least 1");
+		this.nThreads = nThreads;
+		virtual = false;
+		//don't queue more than a couple of files per thread
+		maxOpenFiles = nThreads * 2;
+	}
+
+	private BatchExecutor()
+	{
+	}
+
+	/**
+	 Create an executor that runs each file on its own virtual thread.
+	 @param maxOpenFiles the maximum number of files processed (and thus open) at once.  This
+	 may be in the thousands but should stay below the process file descriptor limit.
+	 @throws UnsupportedOperationException if the JVM does not support virtual threads
+	 */
+	public static BatchExecutor virtualThreads(int maxOpenFiles)
+	{
+		if (!isVirtualThreadSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		if (maxOpenFiles < 1)
+			throw new IllegalArgumentException("maxOpenFiles must be at least 1");
+
+		BatchExecutor be = new BatchExecutor();
+		be.virtual = true;
+		be.nThreads = maxOpenFiles;
+		be.maxOpenFiles = maxOpenFiles;
+		return be;
+	}
+
+	/**
+	 @return true if {@link #virtualThreads(int)} can be used in this JVM
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+	}
+
+	/**
+	 @return true if each file runs on its own virtual thread
+	 */
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	/**
+	 @return the maximum number of files processed concurrently
+	 */
+	public int getConcurrency()
+	{
+		return nThreads;
+	}
+
+	private ExecutorService createExecutorService()
+	{
+		if (virtual)
+		{
+			try
+			{
+				return (ExecutorService)NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+			}
+			catch (Exception e)  //can't happen if the method exists
+			{
+				throw new RuntimeException(e);
+			}
+		}
+		else
+			return Executors.newFixedThreadPool(nThreads);
+	}
+
+	/**
+	 Run the task on every file and block until all tasks have finished.  Files are handed to
+	 the task in iteration order but may complete in any order.
+	 */
+	void run(Iterable<File> files, final FileTask task)
+	throws InterruptedException
+	{
+		ExecutorService pool = createExecutorService();
+
+		/*Limit the number of files queued or open.  This keeps memory flat when the iterable
+		 is large or lazily produced and, in virtual mode, keeps us below the file descriptor
+		 limit since a thread is started for every file.*/
+		final Semaphore inFlight = new Semaphore(maxOpenFiles);
+
+		try
+		{
+			for (final File f: files)
+			{
+				inFlight.acquire();
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							task.run(f);
+						}
+						finally
+						{
+							inFlight.release();
+						}
+					}
+				});
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+				;
+		}
+	}
+}
@@ -0,0 +1,771 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ An append-only store for the comments of a very large number of files which keeps them
+ out of the Java heap.  Each comment header is stored as a compact record in fixed size
+ segments of direct or memory-mapped memory and is identified by the int id returned by
+ {@link #add(VorbisCommentHeader)}.  The only per-record heap cost is one long in the
+ offset index.  Field names and vendor strings, which repeat across a library, are stored
+ once in a dictionary and referred to by number.  Vendor strings are trimmed, since
+ {@link VorbisIO#writeComments(File, VorbisCommentHeader)} pads them with spaces.
+ <p>
+ Records are read through a {@link View}, a reusable flyweight which decodes only the
+ strings actually asked for.  Comparing field names doesn't decode them at all.
+ </p>
+ <p>
+ A catalog opened on a file keeps its records in that file, mapped in segments, and
+ writes its index and dictionary next to it (<i>file</i>.idx) on {@link #close()} so it
+ can be reopened quickly.  Dictionary entries are also written to the file, ahead of the
+ first record using them, so if the catalog was not closed the index is rebuilt by
+ scanning the records.  Adding is synchronized.  Views may be used concurrently with adding,
+ one view per thread, to read any id already returned by {@link #add}.
+ </p>
+ */
+public class CommentCatalog
+	implements Closeable
+{
+	private static final int INDEX_MAGIC = 0x4A564349;  //"JVCI"
+	private static final int INDEX_VERSION = 2;
+	private static final int DATA_MAGIC = 0x4A564344;  //"JVCD"
+	private static final int DATA_VERSION = 1;
+	/**the magic and version at the start of the first segment*/
+	private static final int DATA_HEADER_SIZE = 8;
+	/**
+	 Each entry in a segment begins with its kind.  A zero kind marks the end of the entries
+	 in a segment.  The kind is written last so an entry is only seen once complete.
+	 */
+	private static final int KIND_RECORD = 1;
+	private static final int KIND_NAME = 2;
+	private static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int segmentSize;
+	private final File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	/**written under the catalog's lock, read without it; only ever appended to*/
+	private volatile ByteBuffer[] segments;
+	private volatile long[] offsets;
+	private volatile int count;
+	private volatile String[] names;
+	private int nameCount;
+	private HashMap<String, Integer> nameIds;
+	/**where the next record goes, in the last segment*/
+	private int writeOffset;
+
+	/**
+	 Create an empty catalog in direct (off-heap) memory.
+	 */
+	public CommentCatalog()
+	{
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	CommentCatalog(int segmentSize)
+	{
+		this.segmentSize = segmentSize;
+		this.file = null;
+		init();
+	}
+
+	/**
+	 Open a catalog stored in a memory-mapped file, creating it if necessary.  If the file
+	 exists without its index (the catalog was not closed) the index is rebuilt from the
+	 file; records after the first incomplete one are dropped.
+	 @throws IOException if the file is not a catalog
+	 */
+	public CommentCatalog(File file)
+	throws IOException
+	{
+		this(file, DEFAULT_SEGMENT_SIZE);
+	}
+
+	CommentCatalog(File file, int segmentSize)
+	throws IOException
+	{
+		this.segmentSize = segmentSize;
+		this.file = file;
+		init();
+
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		File indexFile = getIndexFile();
+		try
+		{
+			if (raf.length() > 0)
+			{
+				if (raf.readInt() != DATA_MAGIC || raf.readInt() != DATA_VERSION)
+					throw new IOException("Not a comment catalog or incompatible version");
+				
+				boolean loaded = false;
+				if (indexFile.exists())
+				{
+					try
+					{
+						loadIndex(indexFile);
+						loaded = true;
+					}
+					catch (IOException ioe)
+					{
+						init();
+					}
+				}
+				
+				if (!loaded)
+					rebuildIndex();
+			}
+		}
+		catch (IOException ioe)
+		{
+			raf.close();
+			throw ioe;
+		}
+		
+		//the index is only valid until the next modification
+		indexFile.delete();
+	}
+
+	private void init()
+	{
+		segments = new ByteBuffer[0];
+		offsets = new long[1024];
+		count = 0;
+		names = new String[64];
+		nameCount = 0;
+		nameIds = new HashMap<String, Integer>();
+		writeOffset = segmentSize;  //forces a new segment on the first add
+	}
+
+	private File getIndexFile()
+	{
+		return new File(file.getPath() + ".idx");
+	}
+
+	/**
+	 Store a comment header.
+	 @return the id of the record, which is the number of records added before it
+	 @throws IllegalArgumentException if the encoded comments are larger than a segment
+	 */
+	public synchronized int add(VorbisCommentHeader comments)
+	throws IOException
+	{
+		//encode the strings first to learn the record size
+		int nFields = comments.fields.size();
+		byte[][] values = new byte[nFields][];
+		int size = 12;
+		for (int i = 0; i < nFields; i++)
+		{
+			values[i] = comments.fields.get(i).value.getBytes(UTF8);
+			size += 8 + values[i].length;
+		}
+		if (size > segmentSize - DATA_HEADER_SIZE)
+			throw new IllegalArgumentException("Comments too large for the catalog (" + size + " bytes)");
+
+		//define any new names first so they precede the record in the file
+		int vendorId = nameId(comments.vendor.trim());
+		int[] fieldNameIds = new int[nFields];
+		for (int i = 0; i < nFields; i++)
+			fieldNameIds[i] = nameId(comments.fields.get(i).name);
+
+		int start = reserve(size);
+		int segment = segments.length - 1;
+		ByteBuffer buf = segments[segment];
+		int pos = start + 4;
+		buf.putInt(pos, vendorId);
+		buf.putInt(pos + 4, nFields);
+		pos += 8;
+		for (int i = 0; i < nFields; i++)
+		{
+			buf.putInt(pos, fieldNameIds[i]);
+			buf.putInt(pos + 4, values[i].length);
+			pos += 8;
+			ByteBuffer dst = buf.duplicate();
+			dst.position(pos);
+			dst.put(values[i]);
+			pos += values[i].length;
+		}
+		buf.putInt(start, KIND_RECORD);
+
+		addOffset(((long)segment << 32) | (start + 4));
+		count++;  //publishes the record
+
+		return count - 1;
+	}
+	
+	private void addOffset(long offset)
+	{
+		long[] offs = offsets;
+		if (count == offs.length)
+		{
+			offs = Arrays.copyOf(offs, offs.length * 2);
+			offsets = offs;
+		}
+		offs[count] = offset;
+	}
+	
+	/**
+	 Make room for an entry in the last segment, adding a segment if it doesn't fit.
+	 @return the entry's offset in the last segment
+	 */
+	private int reserve(int size)
+	throws IOException
+	{
+		if (writeOffset + size > segmentSize)
+			addSegment();
+		int pos = writeOffset;
+		writeOffset += size;
+		return pos;
+	}
+
+	private void addSegment()
+	throws IOException
+	{
+		ByteBuffer seg;
+		if (channel != null)
+			seg = channel.map(FileChannel.MapMode.READ_WRITE, (long)segments.length * segmentSize, segmentSize);
+		else
+			seg = ByteBuffer.allocateDirect(segmentSize);
+
+		writeOffset = 0;
+		if (segments.length == 0)
+		{
+			seg.putInt(0, DATA_MAGIC);
+			seg.putInt(4, DATA_VERSION);
+			writeOffset = DATA_HEADER_SIZE;
+		}
+		
+		ByteBuffer[] segs = Arrays.copyOf(segments, segments.length + 1);
+		segs[segs.length - 1] = seg;
+		segments = segs;
+	}
+
+	/**
+	 @return the id of a name, adding it to the dictionary and the data if it is new
+	 */
+	private int nameId(String name)
+	throws IOException
+	{
+		Integer id = nameIds.get(name);
+		if (id != null)
+			return id.intValue();
+		
+		byte[] b = name.getBytes(UTF8);
+		if (8 + b.length > segmentSize - DATA_HEADER_SIZE)
+			throw new IllegalArgumentException("Name too large for the catalog (" + b.length + " bytes)");
+		int start = reserve(8 + b.length);
+		ByteBuffer buf = segments[segments.length - 1];
+		buf.putInt(start + 4, b.length);
+		ByteBuffer dst = buf.duplicate();
+		dst.position(start + 8);
+		dst.put(b);
+		buf.putInt(start, KIND_NAME);
+		
+		return intern(name);
+	}
+	
+	/**
+	 Add a name to the in-memory dictionary.
+	 */
+	private int intern(String name)
+	{
+		if (nameCount == names.length)
+			names = Arrays.copyOf(names, names.length * 2);
+		names[nameCount] = name;
+		Integer id = Integer.valueOf(nameCount);
+		nameIds.put(name, id);
+		nameCount++;
+		return id.intValue();
+	}
+	
+	/**
+	 Recreate the index and dictionary by scanning the entries of every segment.  Scanning
+	 stops at the first entry which is incomplete or inconsistent; everything after it is
+	 discarded.
+	 */
+	private void rebuildIndex()
+	throws IOException
+	{
+		init();
+		int nSegments = (int)(raf.length() / segmentSize);
+		for (int s = 0; s < nSegments; s++)
+		{
+			addSegment();
+			ByteBuffer buf = segments[s];
+			int pos = writeOffset;
+			boolean valid = true;
+			while (pos + 4 <= segmentSize)
+			{
+				int kind = buf.getInt(pos);
+				int end;
+				if (kind == KIND_RECORD)
+					end = recordEnd(buf, pos + 4);
+				else if (kind == KIND_NAME)
+				{
+					int len = pos + 8 <= segmentSize ? buf.getInt(pos + 4) : -1;
+					end = len >= 0 && len <= segmentSize - pos - 8 ? pos + 8 + len : -1;
+					if (end != -1)
+					{
+						byte[] b = new byte[len];
+						ByteBuffer src = buf.duplicate();
+						src.position(pos + 8);
+						src.get(b);
+						intern(new String(b, UTF8));
+					}
+				}
+				else
+				{
+					//the end of this segment's entries
+					valid = kind == 0;
+					break;
+				}
+				
+				if (end == -1)
+				{
+					valid = false;
+					break;
+				}
+				if (kind == KIND_RECORD)
+				{
+					addOffset(((long)s << 32) | (pos + 4));
+					count++;
+				}
+				pos = end;
+			}
+			writeOffset = pos;
+			
+			if (!valid)
+			{
+				//clear the damage so it isn't mistaken for entries later, and drop what follows
+				for (int i = pos; i < segmentSize; i++)
+					buf.put(i, (byte)0);
+				raf.setLength((long)(s + 1) * segmentSize);
+				break;
+			}
+		}
+	}
+	
+	/**
+	 @param pos the position of a record's vendor id
+	 @return the end of the record or -1 if it is not a complete, consistent record
+	 */
+	private int recordEnd(ByteBuffer buf, int pos)
+	{
+		if (pos + 8 > segmentSize)
+			return -1;
+		int vendorId = buf.getInt(pos);
+		int nFields = buf.getInt(pos + 4);
+		if (vendorId < 0 || vendorId >= nameCount || nFields < 0)
+			return -1;
+		pos += 8;
+		for (int i = 0; i < nFields; i++)
+		{
+			if (pos + 8 > segmentSize)
+				return -1;
+			int nameId = buf.getInt(pos);
+			int len = buf.getInt(pos + 4);
+			if (nameId < 0 || nameId >= nameCount || len < 0 || len > segmentSize - pos - 8)
+				return -1;
+			pos += 8 + len;
+		}
+		return pos;
+	}
+
+	/**
+	 @return the number of records
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 @return the number of bytes of off-heap or mapped memory in use, including unused space
+	 at the end of the last segment
+	 */
+	public long getStorageSize()
+	{
+		return (long)segments.length * segmentSize;
+	}
+
+	/**
+	 @return a new view, positioned on no record
+	 */
+	public View view()
+	{
+		return new View();
+	}
+
+	/**
+	 Write the index and dictionary (for a file backed catalog) and release the memory.
+	 The catalog and its views must not be used afterwards.
+	 */
+	public synchronized void close()
+	throws IOException
+	{
+		if (channel != null)
+		{
+			for (ByteBuffer seg: segments)
+				((MappedByteBuffer)seg).force();
+			saveIndex();
+			raf.close();
+			channel = null;
+		}
+		segments = new ByteBuffer[0];
+	}
+
+	private void saveIndex()
+	throws IOException
+	{
+		File indexFile = getIndexFile();
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeInt(segmentSize);
+			out.writeInt(segments.length);
+			out.writeInt(writeOffset);
+			out.writeInt(nameCount);
+			for (int i = 0; i < nameCount; i++)
+			{
+				byte[] b = names[i].getBytes(UTF8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(count);
+			for (int i = 0; i < count; i++)
+				out.writeLong(offsets[i]);
+			out.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (!tmp.renameTo(indexFile))
+		{
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile))
+				throw new IOException("Unable to replace " + indexFile.getPath());
+		}
+	}
+
+	private void loadIndex(File indexFile)
+	throws IOException
+	{
+		FileInputStream fis = new FileInputStream(indexFile);
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 64 * 1024));
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+				throw new IOException("Not a catalog index or incompatible version");
+			if (in.readInt() != segmentSize)
+				throw new IOException("Catalog segment size differs");
+
+			int nSegments = in.readInt();
+			int endOffset = in.readInt();
+			if ((long)nSegments * segmentSize > raf.length())
+				throw new IOException("Catalog file is truncated");
+
+			int nNames = in.readInt();
+			for (int i = 0; i < nNames; i++)
+			{
+				int len = in.readInt();
+				if (len < 0 || len > segmentSize)
+					throw new IOException("Catalog index is corrupt");
+				byte[] b = new byte[len];
+				in.readFully(b);
+				intern(new String(b, UTF8));
+			}
+
+			int n = in.readInt();
+			long[] offs = new long[Math.max(n, 1024)];
+			for (int i = 0; i < n; i++)
+				offs[i] = in.readLong();
+
+			for (int i = 0; i < nSegments; i++)
+				addSegment();
+			writeOffset = endOffset;
+			offsets = offs;
+			count = n;
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	/**
+	 A reusable cursor over the records of the catalog.  Moving to a record only locates its
+	 fields; strings are decoded when asked for.  Not thread safe.
+	 */
+	public class View
+	{
+		private ByteBuffer buf;
+		private int id = -1;
+		private int nFields;
+		/**offset of each field's name id*/
+		private int[] fieldPos = new int[32];
+		private byte[] bytes = new byte[256];
+
+		/**
+		 Position the view on a record.
+		 @throws IndexOutOfBoundsException if there is no such record
+		 */
+		public View moveTo(int id)
+		{
+			if (id < 0 || id >= count)
+				throw new IndexOutOfBoundsException(String.valueOf(id));
+
+			long off = offsets[id];
+			buf = segments[(int)(off >>> 32)];
+			int pos = (int)off;
+			this.id = id;
+			nFields = buf.getInt(pos + 4);
+			if (fieldPos.length < nFields + 1)
+				fieldPos = new int[Math.max(nFields + 1, fieldPos.length * 2)];
+
+			//fieldPos[0] is the vendor
+			fieldPos[0] = pos;
+			pos += 8;
+			for (int i = 1; i <= nFields; i++)
+			{
+				fieldPos[i] = pos;
+				pos += 8 + buf.getInt(pos + 4);
+			}
+
+			return this;
+		}
+
+		/**@return the id of the current record*/
+		public int getId()
+		{
+			return id;
+		}
+
+		public String getVendor()
+		{
+			return names[buf.getInt(fieldPos[0])];
+		}
+
+		public int getFieldCount()
+		{
+			return nFields;
+		}
+
+		/**@return the name of the field at the given index, in the order the fields were added*/
+		public String getFieldName(int index)
+		{
+			return names[buf.getInt(fieldPos[checkIndex(index) + 1])];
+		}
+
+		public String getFieldValue(int index)
+		{
+			int pos = fieldPos[checkIndex(index) + 1];
+			int len = buf.getInt(pos + 4);
+			if (len > bytes.length)
+				bytes = new byte[Math.max(len, bytes.length * 2)];
+
+			ByteBuffer src = buf.duplicate();
+			src.position(pos + 8);
+			src.get(bytes, 0, len);
+			return new String(bytes, 0, len, UTF8);
+		}
+
+		/**
+		 @return the value of the first field with the given name (case sensitive) or null
+		 */
+		public String getFirst(String name)
+		{
+			int index = indexOf(name, 0);
+			return index != -1 ? getFieldValue(index) : null;
+		}
+
+		/**
+		 Find a field by name without decoding any strings.
+		 @return the index of the first field at or after fromIndex with the name or -1
+		 */
+		public int indexOf(String name, int fromIndex)
+		{
+			Integer nameId;
+			synchronized (CommentCatalog.this)
+			{
+				nameId = nameIds.get(name);
+			}
+
+			if (nameId != null)
+			{
+				int want = nameId.intValue();
+				for (int i = Math.max(fromIndex, 0); i < nFields; i++)
+				{
+					if (buf.getInt(fieldPos[i + 1]) == want)
+						return i;
+				}
+			}
+
+			return -1;
+		}
+
+		/**
+		 @return a new comment header with a copy of the current record
+		 */
+		public VorbisCommentHeader toCommentHeader()
+		{
+			VorbisCommentHeader vch = new VorbisCommentHeader();
+			vch.vendor = getVendor();
+			for (int i = 0; i < nFields; i++)
+				vch.fields.add(new CommentField(getFieldName(i), getFieldValue(i)));
+			return vch;
+		}
+
+		private int checkIndex(int index)
+		{
+			if (index < 0 || index >= nFields)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			return index;
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void catalogTest()
+		throws IOException
+		{
+			//small segments so records are spread over several
+			CommentCatalog catalog = new CommentCatalog(256);
+			fill(catalog, 100);
+			check(catalog, 100);
+			assertTrue(catalog.getStorageSize() > 256);
+			catalog.close();
+
+			File f = new File("deleteme.catalog");
+			try
+			{
+				catalog = new CommentCatalog(f, 256);
+				fill(catalog, 50);
+				catalog.close();
+
+				catalog = new CommentCatalog(f, 256);
+				check(catalog, 50);
+				fill(catalog, 100);  //adds 50 more with ids 50 to 99
+				check(catalog, 100);
+				//padded vendors share dictionary entries
+				assertEquals(catalog.nameCount, 5);
+				catalog.close();
+
+				//without the index, as after a crash, the records are recovered from the file
+				assertTrue(new File(f.getPath() + ".idx").delete());
+				catalog = new CommentCatalog(f, 256);
+				check(catalog, 100);
+				fill(catalog, 120);
+				catalog.close();
+				assertTrue(new File(f.getPath() + ".idx").delete());
+				catalog = new CommentCatalog(f, 256);
+				check(catalog, 120);
+				catalog.close();
+
+				try
+				{
+					catalog = new CommentCatalog(f, 256);
+					VorbisCommentHeader big = new VorbisCommentHeader();
+					big.fields.add(new CommentField("X", new String(new char[300])));
+					catalog.add(big);
+					fail();
+				}
+				catch (IllegalArgumentException iae)
+				{
+				}
+				finally
+				{
+					catalog.close();
+				}
+
+				//a file that isn't a catalog is left alone
+				long length = f.length();
+				RandomAccessFile other = new RandomAccessFile(f, "rw");
+				other.writeInt(0x12345678);
+				other.close();
+				try
+				{
+					new CommentCatalog(f, 256);
+					fail();
+				}
+				catch (IOException ioe)
+				{
+				}
+				assertEquals(f.length(), length);
+			}
+			finally
+			{
+				f.delete();
+				new File(f.getPath() + ".idx").delete();
+			}
+		}
+
+		private static void fill(CommentCatalog catalog, int n)
+		throws IOException
+		{
+			for (int i = catalog.size(); i < n; i++)
+			{
+				VorbisCommentHeader vch = new VorbisCommentHeader();
+				vch.vendor = "vendor " + (i % 3) + "     ".substring(i % 5);
+				vch.fields.add(new CommentField("ARTIST", "Artist " + i));
+				if (i % 2 == 0)
+					vch.fields.add(new CommentField("TITLE", "T\u00edtulo " + i));
+				assertEquals(catalog.add(vch), i);
+			}
+		}
+
+		private static void check(CommentCatalog catalog, int n)
+		{
+			assertEquals(catalog.size(), n);
+			View v = catalog.view();
+			for (int i = 0; i < n; i++)
+			{
+				v.moveTo(i);
+				assertEquals(v.getVendor(), "vendor " + (i % 3));
+				assertEquals(v.getFieldCount(), i % 2 == 0 ? 2 : 1);
+				assertEquals(v.getFirst("ARTIST"), "Artist " + i);
+				assertEquals(v.getFirst("TITLE"), i % 2 == 0 ? "T\u00edtulo " + i : null);
+				assertEquals(v.indexOf("NOPE", 0), -1);
+				assertEquals(v.toCommentHeader().fields.get(0).toString(), "ARTIST=Artist " + i);
+			}
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ A compact binary encoding of {@link VorbisCommentHeader} for caches and for passing tags
+ between processes.  It is much smaller and faster than Java serialization and does not
+ depend on the classes' layout.
+ <p>
+ A record is the Vorbis comment structure itself (the comment header packet without the
+ packet type, "vorbis" and framing bit) in a 5 byte envelope:
+ <pre>
+ byte    format (currently 1)
+ int32   length of the comment structure in bytes, little endian
+ byte[]  the comment structure:
+           int32 vendor length, vendor (UTF-8), int32 field count,
+           then for each field an int32 length and "NAME=value" (UTF-8)
+ </pre>
+ Records can be decoded straight from a {@link ByteBuffer}, heap or direct, without first
+ copying them into an array.  {@link Writer} and {@link Reader} stream any number of
+ records to and from a file or socket.
+ </p>
+ */
+public final class CommentCodec
+{
+	/**The format byte which begins each record.*/
+	public static final int FORMAT = 1;
+	/**The size of the envelope before the comment structure.*/
+	public static final int ENVELOPE_SIZE = 5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private CommentCodec()
+	{
+	}
+
+	/**
+	 @return a new array containing the encoded record
+	 */
+	public static byte[] encode(VorbisCommentHeader comments)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(encodedSize(comments));
+		encode(comments, buf);
+		return buf.array();
+	}
+
+	/**
+	 Encode a record at the buffer's position, advancing it.
+	 @throws BufferOverflowException if there are fewer than {@link #encodedSize} bytes remaining
+	 */
+	public static void encode(VorbisCommentHeader comments, ByteBuffer buf)
+	{
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			int start = buf.position();
+			buf.put((byte)FORMAT);
+			buf.putInt(0);  //patched below
+
+			byte[] utf8 = comments.vendor.getBytes(UTF8);
+			buf.putInt(utf8.length);
+			buf.put(utf8);
+			buf.putInt(comments.fields.size());
+			for (CommentField field: comments.fields)
+			{
+				utf8 = field.toString().getBytes(UTF8);
+				buf.putInt(utf8.length);
+				buf.put(utf8);
+			}
+
+			buf.putInt(start + 1, buf.position() - start - ENVELOPE_SIZE);
+		}
+		finally
+		{
+			buf.order(order);
+		}
+	}
+
+	/**
+	 @return the number of bytes {@link #encode} will produce
+	 */
+	public static int encodedSize(VorbisCommentHeader comments)
+	{
+		int size = ENVELOPE_SIZE + 4 + utf8Length(comments.vendor) + 4;
+		for (CommentField field: comments.fields)
+			size += 4 + utf8Length(field.name) + 1 + utf8Length(field.value);
+		return size;
+	}
+
+	/**
+	 Encode the comment structure of a comment header packet (as returned by
+	 {@link VorbisCommentHeader#toPacket()}) without parsing its strings.  Padding after the
+	 structure is dropped.
+	 @throws IOException if the packet's comment structure is corrupt
+	 */
+	static byte[] encodePacket(byte[] packet)
+	throws IOException
+	{
+		int start = 1 + VorbisPacketStream.VORBIS.length;
+		int end = VorbisCommentHeader.getCommentStructureLength(packet);
+		if (end == -1)
+			throw new IOException("Vorbis comment header is incomplete.");
+
+		ByteBuffer buf = ByteBuffer.allocate(ENVELOPE_SIZE + end - start).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte)FORMAT);
+		buf.putInt(end - start);
+		buf.put(packet, start, end - start);
+		return buf.array();
+	}
+
+	/**
+	 Decode the record at the buffer's position and advance past it.  The buffer's byte
+	 order is ignored.
+	 @throws IOException if the record is truncated, corrupt or of an unknown format.  The
+	 buffer's position is unchanged.
+	 */
+	public static VorbisCommentHeader decode(ByteBuffer buf)
+	throws IOException
+	{
+		ByteBuffer structure = structure(buf);
+		VorbisCommentHeader comments = decodeStructure(structure);
+		buf.position(buf.position() + ENVELOPE_SIZE + structure.capacity());
+		return comments;
+	}
+
+	/**
+	 Decode a record from an array.
+	 */
+	public static VorbisCommentHeader decode(byte[] record)
+	throws IOException
+	{
+		return decode(ByteBuffer.wrap(record));
+	}
+
+	/**
+	 Skip over the record at the buffer's position without decoding it.
+	 */
+	public static void skip(ByteBuffer buf)
+	throws IOException
+	{
+		buf.position(buf.position() + ENVELOPE_SIZE + structure(buf).capacity());
+	}
+
+	/**
+	 @return a little endian view of the comment structure of the record at the buffer's
+	 position.  The buffer's position is unchanged.
+	 */
+	static ByteBuffer structure(ByteBuffer buf)
+	throws IOException
+	{
+		int pos = buf.position();
+		if (buf.remaining() < ENVELOPE_SIZE)
+			throw new EOFException("Comment record is incomplete.");
+		if (buf.get(pos) != FORMAT)
+			throw new IOException("Unknown comment record format " + buf.get(pos));
+
+		ByteBuffer view = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int len = view.getInt(pos + 1);
+		if (len < 0 || len > buf.remaining() - ENVELOPE_SIZE)
+			throw new EOFException("Comment record is incomplete.");
+
+		view.position(pos + ENVELOPE_SIZE);
+		view.limit(pos + ENVELOPE_SIZE + len);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 Decode a comment structure occupying all of the given buffer.
+	 */
+	static VorbisCommentHeader decodeStructure(ByteBuffer s)
+	throws IOException
+	{
+		CharsetDecoder decoder = UTF8.newDecoder();
+		VorbisCommentHeader comments = new VorbisCommentHeader();
+		comments.vendor = getString(s, decoder);
+
+		int nFields = getInt(s);
+		if (nFields < 0 || nFields > s.remaining() / 4)
+			throw new IOException("Comment record field count is corrupt.");
+		for (int i = 0; i < nFields; i++)
+			comments.fields.add(new CommentField(getString(s, decoder)));
+
+		return comments;
+	}
+
+	/**
+	 Decode a length prefixed UTF-8 string without copying the bytes out of the buffer.
+	 */
+	static String getString(ByteBuffer s, CharsetDecoder decoder)
+	throws IOException
+	{
+		int len = getInt(s);
+		if (len < 0 || len > s.remaining())
+			throw new IOException("Comment record is corrupt.");
+
+		int end = s.position() + len;
+		int limit = s.limit();
+		s.limit(end);
+		try
+		{
+			return decoder.reset().decode(s).toString();
+		}
+		catch (CharacterCodingException cce)
+		{
+			throw new IOException("Invalid UTF-8 in comment record");
+		}
+		finally
+		{
+			s.limit(limit);
+			s.position(end);
+		}
+	}
+
+	private static int getInt(ByteBuffer s)
+	throws IOException
+	{
+		if (s.remaining() < 4)
+			throw new IOException("Comment record is corrupt.");
+		return s.getInt();
+	}
+
+	private static int utf8Length(String s)
+	{
+		int len = 0;
+		int n = s.length();
+		for (int i = 0; i < n; i++)
+		{
+			char c = s.charAt(i);
+			if (c < 0x80)
+				len++;
+			else if (c < 0x800)
+				len += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1)))
+			{
+				len += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c))  //unpaired; String.getBytes writes '?'
+				len++;
+			else
+				len += 3;
+		}
+		return len;
+	}
+
+	/**
+	 Writes a stream of records preceded by a short stream header.  Not thread safe.
+	 */
+	public static class Writer
+		implements Closeable, Flushable
+	{
+		static final int MAGIC = 0x4A564353;  //"JVCS"
+
+		private OutputStream out;
+		private ByteBuffer buf;
+		private long count;
+
+		/**
+		 Write the stream header.  The stream is buffered internally.
+		 */
+		public Writer(OutputStream out)
+		throws IOException
+		{
+			this.out = new BufferedOutputStream(out, 64 * 1024);
+			buf = ByteBuffer.allocate(4096);
+			buf.putInt(MAGIC);
+			flushBuffer();
+		}
+
+		public void write(VorbisCommentHeader comments)
+		throws IOException
+		{
+			int size = encodedSize(comments);
+			if (size > buf.capacity())
+				buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+
+			encode(comments, buf);
+			flushBuffer();
+			count++;
+		}
+
+		/**
+		 Write an already encoded record.
+		 */
+		public void write(byte[] record)
+		throws IOException
+		{
+			structure(ByteBuffer.wrap(record));  //validate the envelope
+			out.write(record);
+			count++;
+		}
+
+		private void flushBuffer()
+		throws IOException
+		{
+			out.write(buf.array(), 0, buf.position());
+			buf.clear();
+		}
+
+		/**@return the number of records written*/
+		public long getCount()
+		{
+			return count;
+		}
+
+		public void flush()
+		throws IOException
+		{
+			out.flush();
+		}
+
+		public void close()
+		throws IOException
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 Reads a stream of records written by {@link Writer}.  Not thread safe.
+	 */
+	public static class Reader
+		implements Closeable
+	{
+		private DataInputStream in;
+		private byte[] buf;
+
+		/**
+		 Read the stream header.
+		 @throws IOException if the stream was not written by {@link Writer}
+		 */
+		public Reader(InputStream in)
+		throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+			buf = new byte[4096];
+			if (this.in.readInt() != Writer.MAGIC)
+				throw new IOException("Not a comment record stream");
+		}
+
+		/**
+		 @return the next record or null at the end of the stream
+		 @throws EOFException if the stream ends part way through a record
+		 */
+		public VorbisCommentHeader read()
+		throws IOException
+		{
+			int format = in.read();
+			if (format == -1)
+				return null;
+			else if (format != FORMAT)
+				throw new IOException("Unknown comment record format " + format);
+
+			int len = Integer.reverseBytes(in.readInt());
+			if (len < 0)
+				throw new IOException("Comment record is corrupt.");
+			if (len > buf.length)
+				buf = new byte[Math.max(len, buf.length * 2)];
+
+			in.readFully(buf, 0, len);
+			return decodeStructure(ByteBuffer.wrap(buf, 0, len).slice().order(ByteOrder.LITTLE_ENDIAN));
+		}
+
+		public void close()
+		throws IOException
+		{
+			in.close();
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void codecTest()
+		throws IOException
+		{
+			VorbisCommentHeader vch = new VorbisCommentHeader();
+			vch.vendor = "vendor \u00e9\u4e2d\ud83c\udfb5";
+			vch.fields.add(new CommentField("ARTIST", "Beatles"));
+			vch.fields.add(new CommentField("TITLE", "\u00dcber \ud83c\udfb5"));
+			vch.fields.add(new CommentField("", "no name"));
+
+			byte[] record = encode(vch);
+			assertEquals(record.length, encodedSize(vch));
+			assertEquals(record.length, encodePacket(vch.toPacket()).length);
+			assertTrue(Arrays.equals(record, encodePacket(vch.toPacket())));
+			assertSame(decode(record), vch, "heap");
+
+			//direct buffer, at an offset, among other records
+			ByteBuffer direct = ByteBuffer.allocateDirect(3 * record.length + 7).order(ByteOrder.BIG_ENDIAN);
+			direct.put(new byte[7]);
+			encode(new VorbisCommentHeader(), direct);
+			encode(vch, direct);
+			direct.flip();
+			direct.position(7);
+			skip(direct);
+			assertSame(decode(direct), vch, "direct");
+			assertEquals(direct.remaining(), 0);
+			assertEquals(direct.order(), ByteOrder.BIG_ENDIAN);
+
+			//truncated records are rejected without moving the position
+			ByteBuffer truncated = ByteBuffer.wrap(record, 0, record.length - 1);
+			try
+			{
+				decode(truncated);
+				fail();
+			}
+			catch (EOFException eof)
+			{
+				assertEquals(truncated.position(), 0);
+			}
+
+			//streaming
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			Writer w = new Writer(bos);
+			for (int i = 0; i < 1000; i++)
+			{
+				vch.fields.get(0).value = "Beatles " + i;
+				w.write(vch);
+			}
+			w.write(record);
+			w.close();
+			assertEquals(w.getCount(), 1001);
+
+			Reader r = new Reader(new ByteArrayInputStream(bos.toByteArray()));
+			for (int i = 0; i < 1000; i++)
+				assertEquals(r.read().fields.get(0).value, "Beatles " + i);
+			assertEquals(r.read().fields.get(0).value, "Beatles");
+			assertNull(r.read());
+			r.close();
+		}
+
+		private static void assertSame(VorbisCommentHeader actual, VorbisCommentHeader expected, String msg)
+		{
+			assertEquals(actual.vendor, expected.vendor, msg);
+			assertEquals(actual.fields.size(), expected.fields.size(), msg);
+			for (int i = 0; i < expected.fields.size(); i++)
+				assertEquals(actual.fields.get(i).toString(), expected.fields.get(i).toString(), msg);
+		}
+	}
+}
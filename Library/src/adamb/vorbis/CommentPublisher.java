@@ -0,0 +1,568 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Publishes the comments of many files to a {@link Flow.Subscriber}.  Files are read with
+ {@link VorbisIO#readComments(File)} semantics on the given executor.
+ <p>
+ Downstream demand is honored: a file is not opened until the subscriber has requested a
+ result for it, and no more than <code>maxInFlight</code> files are read ahead.  A slow
+ subscriber therefore throttles file reading instead of letting results pile up in memory.
+ </p>
+ <p>
+ A file which can't be read is published as a {@link FileComments} with an error; it does
+ not terminate the stream.  If iterating the source fails, the files already being read
+ are published before onError is signaled.  Each subscription iterates the source from
+ the beginning.
+ </p>
+ */
+public class CommentPublisher
+	implements Flow.Publisher<FileComments>
+{
+	/**The order results are published in.*/
+	public enum Order
+	{
+		/**Results are published in the order of the source files.  A slow file holds back
+		 the files behind it, up to the in-flight limit.*/
+		SOURCE,
+		/**Results are published as soon as each file has been read.*/
+		COMPLETION
+	}
+
+	private Iterable<File> files;
+	private Executor executor;
+	private int maxInFlight;
+	private Order order;
+
+	/**
+	 @param files the files to read.  May be lazily produced.
+	 @param executor runs the (blocking) file reads
+	 @param maxInFlight the maximum number of files being read or waiting to be published
+	 */
+	public CommentPublisher(Iterable<File> files, Executor executor, int maxInFlight, Order order)
+	{
+		if (maxInFlight < 1)
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+
+		this.files = files;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.order = order;
+	}
+
+	/**
+	 Publish every .ogg and .oga file beneath the directory.  The tree is walked lazily, only
+	 as fast as the subscriber requests results.
+	 */
+	public static CommentPublisher forDirectory(File root, Executor executor, int maxInFlight, Order order)
+	{
+		return new CommentPublisher(LibraryFiles.iterate(root), executor, maxInFlight, order);
+	}
+
+	public void subscribe(Flow.Subscriber<? super FileComments> subscriber)
+	{
+		if (subscriber == null)
+			throw new NullPointerException();
+
+		Iterator<File> source;
+		try
+		{
+			source = files.iterator();
+		}
+		catch (RuntimeException re)
+		{
+			subscriber.onSubscribe(new Flow.Subscription()
+			{
+				public void request(long n) {}
+				public void cancel() {}
+			});
+			subscriber.onError(re);
+			return;
+		}
+
+		Subscription s = new Subscription(subscriber, source);
+		subscriber.onSubscribe(s);
+	}
+
+	/**A read which has been started.  result is null until the read finishes.*/
+	private static class Slot
+	{
+		File file;
+		FileComments result;
+
+		Slot(File file)
+		{
+			this.file = file;
+		}
+	}
+
+	private class Subscription
+		implements Flow.Subscription
+	{
+		private Flow.Subscriber<? super FileComments> subscriber;
+		private Iterator<File> source;
+
+		///state guarded by 'this'
+		private long demand;
+		/**reads started but not yet published.  In SOURCE order this is also the publishing queue.*/
+		private ArrayDeque<Slot> started;
+		/**finished reads waiting to be published in COMPLETION order*/
+		private ArrayDeque<FileComments> finished;
+		private boolean sourceDone;
+		private boolean cancelled;
+		/**ends the stream once the reads already started have been published*/
+		private Throwable sourceError;
+		/**a protocol violation by the subscriber, which ends the stream at once*/
+		private Throwable requestError;
+
+		/**ensures only one thread publishes at a time (Flow requires signals to be serial)*/
+		private AtomicInteger drainRequests;
+		private boolean terminated;
+
+		Subscription(Flow.Subscriber<? super FileComments> subscriber, Iterator<File> source)
+		{
+			this.subscriber = subscriber;
+			this.source = source;
+			started = new ArrayDeque<Slot>(maxInFlight);
+			finished = new ArrayDeque<FileComments>(maxInFlight);
+			drainRequests = new AtomicInteger();
+		}
+
+		public void request(long n)
+		{
+			synchronized (this)
+			{
+				if (n <= 0)
+					requestError = new IllegalArgumentException("Flow.Subscription.request: n must be positive (rule 3.9)");
+				else
+				{
+					demand += n;
+					if (demand < 0)  //overflow means unbounded demand
+						demand = Long.MAX_VALUE;
+				}
+			}
+
+			drain();
+		}
+
+		public void cancel()
+		{
+			synchronized (this)
+			{
+				cancelled = true;
+				started.clear();
+				finished.clear();
+			}
+		}
+
+		private void finished(Slot slot, FileComments result)
+		{
+			synchronized (this)
+			{
+				if (cancelled)
+					return;
+
+				if (order == Order.SOURCE)
+					slot.result = result;
+				else
+				{
+					started.remove(slot);
+					finished.add(result);
+				}
+			}
+
+			drain();
+		}
+
+		/**
+		 Publish what can be published, start reads for outstanding demand and signal
+		 completion.  Any thread may call this; the work is done by one thread at a time.
+		 */
+		private void drain()
+		{
+			if (drainRequests.getAndIncrement() != 0)
+				return;
+
+			do
+			{
+				while (publishOne())
+					;
+
+				startReads();
+
+				Throwable error = null;
+				boolean complete = false;
+				synchronized (this)
+				{
+					if (!terminated && !cancelled)
+					{
+						if (requestError != null)
+						{
+							terminated = true;
+							error = requestError;
+						}
+						else if (sourceDone && started.isEmpty() && finished.isEmpty())
+						{
+							terminated = true;
+							error = sourceError;
+							complete = error == null;
+						}
+					}
+				}
+
+				if (error != null)
+					subscriber.onError(error);
+				else if (complete)
+					subscriber.onComplete();
+			}
+			while (drainRequests.decrementAndGet() != 0);
+		}
+
+		/**
+		 @return true if a result was published
+		 */
+		private boolean publishOne()
+		{
+			FileComments result = null;
+			synchronized (this)
+			{
+				if (cancelled || terminated || demand == 0)
+					return false;
+
+				if (order == Order.SOURCE)
+				{
+					Slot head = started.peek();
+					if (head != null && head.result != null)
+					{
+						started.poll();
+						result = head.result;
+					}
+				}
+				else
+					result = finished.poll();
+
+				if (result != null && demand != Long.MAX_VALUE)
+					demand--;
+			}
+
+			if (result != null)
+			{
+				subscriber.onNext(result);
+				return true;
+			}
+			else
+				return false;
+		}
+
+		private void startReads()
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					if (cancelled || terminated || sourceDone)
+						return;
+				}
+
+				/*Check for the end of the source even when there is no demand so that completion
+				 can be signaled promptly.  The iterator may list directories so don't hold the
+				 lock while it runs.*/
+				final Slot slot;
+				try
+				{
+					if (!source.hasNext())
+					{
+						synchronized (this)
+						{
+							sourceDone = true;
+						}
+						return;
+					}
+
+					synchronized (this)
+					{
+						int unpublished = started.size() + finished.size();
+						if (unpublished >= maxInFlight || unpublished >= demand)
+							return;
+					}
+
+					slot = new Slot(source.next());
+				}
+				catch (RuntimeException re)
+				{
+					synchronized (this)
+					{
+						sourceDone = true;
+						sourceError = re;
+					}
+					return;
+				}
+
+				synchronized (this)
+				{
+					started.add(slot);
+				}
+
+				try
+				{
+					executor.execute(new Runnable()
+					{
+						public void run()
+						{
+							//every started slot must finish or the stream never terminates
+							FileComments result;
+							try
+							{
+								result = FileComments.read(slot.file, true);
+							}
+							catch (Throwable t)
+							{
+								result = new FileComments(slot.file, new IOException(t));
+							}
+							finished(slot, result);
+						}
+					});
+				}
+				catch (RejectedExecutionException ree)
+				{
+					synchronized (this)
+					{
+						started.remove(slot);
+						sourceDone = true;
+						sourceError = ree;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		/**Records every signal in order.*/
+		private static class Recorder
+			implements Flow.Subscriber<FileComments>
+		{
+			Flow.Subscription subscription;
+			List<FileComments> items = Collections.synchronizedList(new ArrayList<FileComments>());
+			List<String> signals = Collections.synchronizedList(new ArrayList<String>());
+			Throwable error;
+			CountDownLatch terminated = new CountDownLatch(1);
+
+			public void onSubscribe(Flow.Subscription s)
+			{
+				subscription = s;
+				signals.add("subscribe");
+			}
+
+			public void onNext(FileComments item)
+			{
+				items.add(item);
+				signals.add("next");
+			}
+
+			public void onError(Throwable t)
+			{
+				error = t;
+				signals.add("error");
+				terminated.countDown();
+			}
+
+			public void onComplete()
+			{
+				signals.add("complete");
+				terminated.countDown();
+			}
+
+			void awaitItems(int n)
+			throws InterruptedException
+			{
+				long deadline = System.currentTimeMillis() + 30000;
+				while (items.size() < n && System.currentTimeMillis() < deadline)
+					Thread.sleep(5);
+				assertEquals(items.size(), n);
+			}
+		}
+
+		@Test
+		public void publisherTest()
+		throws Exception
+		{
+			File root = new File("deleteme publisher");
+			List<File> expected = new ArrayList<File>();
+			ExecutorService pool = Executors.newFixedThreadPool(3);
+			try
+			{
+				for (int i = 0; i < 6; i++)
+				{
+					File f = new File(root, "dir" + (i % 2) + "/" + i + ".ogg");
+					f.getParentFile().mkdirs();
+					Util.copyFile(new File("test oggs", "error free.ogg"), f);
+				}
+				Util.copyFile(new File("test oggs", "not really ogg.ogg"), new File(root, "bad.oga"));
+				Util.copyFile(new File("test oggs", "error free.ogg"), new File(root, "not audio.txt"));
+				for (File f: LibraryFiles.iterate(root))
+					expected.add(f);
+				assertEquals(expected.size(), 7);
+
+				//count the reads started
+				final AtomicInteger reads = new AtomicInteger();
+				final Executor executor = pool;
+				Executor counting = new Executor()
+				{
+					public void execute(Runnable r)
+					{
+						reads.incrementAndGet();
+						executor.execute(r);
+					}
+				};
+
+				//nothing is read until requested, then only what was requested
+				Recorder rec = new Recorder();
+				forDirectory(root, counting, 4, Order.SOURCE).subscribe(rec);
+				Thread.sleep(100);
+				assertEquals(reads.get(), 0);
+				rec.subscription.request(2);
+				rec.awaitItems(2);
+				Thread.sleep(100);
+				assertEquals(rec.items.size(), 2);
+				assertEquals(reads.get(), 2);
+
+				//the rest, in source order, then completion exactly once
+				rec.subscription.request(Long.MAX_VALUE);
+				assertTrue(rec.terminated.await(30, TimeUnit.SECONDS));
+				assertNull(rec.error);
+				assertEquals(rec.items.size(), 7);
+				assertEquals(rec.signals.get(0), "subscribe");
+				assertEquals(rec.signals.get(rec.signals.size() - 1), "complete");
+				assertEquals(rec.signals.size(), 9);
+				for (int i = 0; i < 7; i++)
+				{
+					FileComments fc = rec.items.get(i);
+					assertEquals(fc.file, expected.get(i));
+					assertEquals(fc.error != null, fc.file.getName().equals("bad.oga"));
+				}
+
+				//completion order publishes the same files
+				rec = new Recorder();
+				forDirectory(root, pool, 2, Order.COMPLETION).subscribe(rec);
+				rec.subscription.request(100);
+				assertTrue(rec.terminated.await(30, TimeUnit.SECONDS));
+				Set<File> seen = new HashSet<File>();
+				for (FileComments fc: rec.items)
+					seen.add(fc.file);
+				assertEquals(new TreeSet<File>(seen), new TreeSet<File>(expected));
+
+				//nothing is signaled after cancel
+				rec = new Recorder();
+				forDirectory(root, pool, 4, Order.SOURCE).subscribe(rec);
+				rec.subscription.request(1);
+				rec.awaitItems(1);
+				rec.subscription.cancel();
+				rec.subscription.request(10);
+				Thread.sleep(200);
+				assertEquals(rec.items.size(), 1);
+				assertEquals(rec.terminated.getCount(), 1);
+
+				//a non-positive request is an error, signaled after what was already published
+				rec = new Recorder();
+				forDirectory(root, pool, 4, Order.SOURCE).subscribe(rec);
+				rec.subscription.request(1);
+				rec.awaitItems(1);
+				rec.subscription.request(0);
+				assertTrue(rec.terminated.await(30, TimeUnit.SECONDS));
+				assertTrue(rec.error instanceof IllegalArgumentException);
+				assertEquals(rec.signals, Arrays.asList("subscribe", "next", "error"));
+
+				//a failing source ends the stream with onError after the files before it
+				final Iterator<File> it = expected.subList(0, 2).iterator();
+				Iterable<File> failing = new Iterable<File>()
+				{
+					public Iterator<File> iterator()
+					{
+						return new Iterator<File>()
+						{
+							public boolean hasNext()
+							{
+								if (!it.hasNext())
+									throw new IllegalStateException("listing failed");
+								return true;
+							}
+
+							public File next()
+							{
+								return it.next();
+							}
+						};
+					}
+				};
+				rec = new Recorder();
+				new CommentPublisher(failing, pool, 1, Order.SOURCE).subscribe(rec);
+				rec.subscription.request(Long.MAX_VALUE);
+				assertTrue(rec.terminated.await(30, TimeUnit.SECONDS));
+				assertTrue(rec.error instanceof IllegalStateException);
+				assertEquals(rec.signals, Arrays.asList("subscribe", "next", "next", "error"));
+				
+				//a rejected read ends the stream with onError after the reads already started
+				final AtomicInteger accepted = new AtomicInteger();
+				Executor rejecting = new Executor()
+				{
+					public void execute(Runnable r)
+					{
+						if (accepted.incrementAndGet() > 2)
+							throw new RejectedExecutionException("shut down");
+						executor.execute(r);
+					}
+				};
+				rec = new Recorder();
+				forDirectory(root, rejecting, 4, Order.SOURCE).subscribe(rec);
+				rec.subscription.request(Long.MAX_VALUE);
+				assertTrue(rec.terminated.await(30, TimeUnit.SECONDS));
+				assertTrue(rec.error instanceof RejectedExecutionException);
+				assertEquals(rec.signals, Arrays.asList("subscribe", "next", "next", "error"));
+			}
+			finally
+			{
+				pool.shutdown();
+				for (File f: expected)
+					f.delete();
+				new File(root, "not audio.txt").delete();
+				new File(root, "dir0").delete();
+				new File(root, "dir1").delete();
+				root.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.ogg.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ Copies an Ogg Vorbis stream while replacing its comment header.  Only the header pages,
+ and any pages of other streams among them, are held in memory; every later page is
+ renumbered, if the header now takes a different number of pages, and written as soon as
+ it is read.  Pages of other streams keep their position relative to the Vorbis pages.
+ <p>
+ The input is read through an {@link ErrorTolerantPageStream}, so corrupt pages and junk
+ between pages are silently left out of the copy.
+ </p>
+ @see VorbisIO#writeComments(InputStream, OutputStream, VorbisCommentHeader)
+ */
+class CommentRewriter
+{
+	private static final int[] HEADER_TYPES = {VorbisPacketStream.ID_HEADER_TYPE, VorbisPacketStream.COMMENT_HEADER_TYPE, VorbisPacketStream.SETUP_HEADER_TYPE};
+	
+	private CommentRewriter()
+	{
+	}
+	
+	/**
+	 @param newComments the new comments or null if commentUpdater is given
+	 */
+	static CommentWriteResult copy(InputStream in, OutputStream os, VorbisCommentHeader newComments, CommentUpdater commentUpdater)
+	throws IOException
+	{
+		assert newComments != null || commentUpdater != null;
+		
+		PageStream ps = new ErrorTolerantPageStream(new PhysicalPageStream(new BufferedInputStream(in, 64 * 1024)));
+		BufferedOutputStream out = new BufferedOutputStream(os, 64 * 1024);
+		OggCRC oggCRC = new OggCRC();
+		
+		//collect the pages holding the three header packets and those of other streams among them, in order
+		ArrayList<Page> headerPages = new ArrayList<Page>(4);
+		PacketAssembler packets = new PacketAssembler();
+		Packet[] headers = new Packet[3];
+		int nHeaders = 0;
+		int serialNumber = 0;
+		Page page;
+		while (nHeaders < 3)
+		{
+			page = ps.next();
+			if (page == null)
+				throw new EOFException("Incomplete Vorbis stream!  Missing " + (3 - nHeaders) + " of the 3 required header packets.");
+			
+			if (headerPages.isEmpty())
+				serialNumber = page.streamSerialNumber;
+			headerPages.add(page);
+			//pages of other streams are kept in place
+			if (page.streamSerialNumber != serialNumber)
+				continue;
+			
+			packets.add(page);
+			Packet packet;
+			while (nHeaders < 3 && (packet = packets.next()) != null)
+			{
+				VorbisPacketStream.validateHeaderPacket(packet, HEADER_TYPES[nHeaders]);
+				headers[nHeaders++] = packet;
+			}
+		}
+		
+		Packet comments = headers[1];
+		if (commentUpdater != null)
+		{
+			newComments = new VorbisCommentHeader(comments);
+			if (!commentUpdater.updateComments(newComments))
+				newComments = null;
+		}
+		
+		CommentWriteResult result = CommentWriteResult.UNCHANGED;
+		int pageSequenceAdjust = 0;
+		byte[] newCommentPacket = newComments != null ? VorbisIO.commentPacket(newComments, comments.getBytes().length) : null;
+		if (newCommentPacket == null || Arrays.equals(newCommentPacket, comments.getBytes()))
+		{
+			for (Page p: headerPages)
+				OggIO.writePageToStream(p, out, oggCRC);
+		}
+		else
+		{
+			/*keep the ID header's page and replace the rest, as VorbisIO.writeComments does.
+			 The new pages go where the first replaced page was.*/
+			Page commentPage = comments.getStartingPage();
+			ArrayList<Page> pages = VorbisIO.headerPages(headers[0].getStartingPage(), newCommentPacket, headers[2].getBytes());
+			int oldSize = 0;
+			int newSize = 0;
+			boolean replaced = false;
+			for (Page p: headerPages)
+			{
+				if (p.streamSerialNumber != serialNumber || p.sequence < commentPage.sequence)
+					OggIO.writePageToStream(p, out, oggCRC);
+				else
+				{
+					if (!replaced)
+					{
+						replaced = true;
+						for (Page np: pages)
+						{
+							OggIO.writePageToStream(np, out, oggCRC);
+							newSize += np.size();
+						}
+					}
+					oldSize += p.size();
+				}
+			}
+			
+			int oldNumPagesUsed = headers[2].getEndingPage().sequence - commentPage.sequence + 1;
+			pageSequenceAdjust = pages.size() - oldNumPagesUsed;
+			
+			if (pageSequenceAdjust != 0)
+				result = CommentWriteResult.RENUMBERED;
+			else if (newSize == oldSize)
+				result = CommentWriteResult.OVERWRITTEN;
+			else
+				result = CommentWriteResult.RESIZED;
+		}
+		
+		//copy the rest, renumbering the Vorbis stream's pages
+		while ((page = ps.next()) != null)
+		{
+			if (page.streamSerialNumber == serialNumber)
+				page.sequence += pageSequenceAdjust;
+			OggIO.writePageToStream(page, out, oggCRC);
+		}
+		
+		out.flush();
+		return result;
+	}
+}
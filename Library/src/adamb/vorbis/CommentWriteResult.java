@@ -0,0 +1,38 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+/**
+ Describes what had to be done to an Ogg Vorbis file in order to store new comments.
+ The values are listed from least to most expensive.
+ */
+public enum CommentWriteResult
+{
+	/**The update was aborted by the {@link CommentUpdater} or the new comment packet was identical to the old one.  The file was not modified.*/
+	UNCHANGED,
+	/**The new comment and setup pages were exactly the same size as the old ones and were overwritten in place.*/
+	OVERWRITTEN,
+	/**The comment and setup pages changed size so the remainder of the file was shifted.  The number of pages did not change.*/
+	RESIZED,
+	/**The comment and setup packets required a different number of pages so every following page was renumbered and rewritten.*/
+	RENUMBERED
+}
@@ -0,0 +1,329 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import adamb.util.Util;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Walks a directory tree in parallel and reads the comments of every .ogg and .oga file
+ as it is found.  Directory listing and file reading overlap: each directory is a fork/join
+ task so idle workers steal subdirectories and files from busy ones, and no list of paths
+ is built up front.
+ <p>
+ Each result also carries the file size and modification time.  The walker stats every
+ entry (one {@link Files#readAttributes} call, two for a symbolic link) to tell files from
+ directories; the size and time are taken from that stat rather than a later one.
+ </p>
+ <p>
+ Symbolic links to files are followed; symbolic links to directories are not, which
+ prevents cycles.  A directory which can't be listed is reported to the listener as a
+ {@link FileComments} for the directory with the error.
+ </p>
+ */
+public class DirectoryScanner
+{
+	/**The number of files in one unit of work.  Small enough to balance well, large enough to amortize the task overhead.*/
+	private static final int FILES_PER_TASK = 16;
+
+	private int parallelism;
+	private boolean ignoreAllRecoverableErrorsAndWarnings;
+	/**
+	 bounds the concurrent file reads, of all scans, to the parallelism.  A fork/join pool may add threads
+	 to compensate for workers blocked in join() so the pool size alone doesn't.
+	 */
+	private Semaphore reads;
+
+	/**
+	 @param parallelism the number of worker threads and the most files read at once.  Since
+	 the workers block on file reads this may usefully exceed the number of processors.
+	 */
+	public DirectoryScanner(int parallelism)
+	{
+		this(parallelism, true);
+	}
+
+	/**
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link VorbisIO#readComments(File, boolean)}
+	 */
+	public DirectoryScanner(int parallelism, boolean ignoreAllRecoverableErrorsAndWarnings)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		this.parallelism = parallelism;
+		reads = new Semaphore(parallelism);
+		this.ignoreAllRecoverableErrorsAndWarnings = ignoreAllRecoverableErrorsAndWarnings;
+	}
+
+	/**
+	 Scan the tree and block until every file has been reported.
+	 @param listener a thread safe receiver of the results
+	 */
+	public void scan(File root, BatchCommentReader.Listener listener)
+	throws InterruptedException
+	{
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try
+		{
+			ForkJoinTask<Void> task = pool.submit(new DirectoryTask(root.toPath(), listener));
+			try
+			{
+				task.get();
+			}
+			catch (ExecutionException ee)  //only a bug in a listener could cause this
+			{
+				Throwable cause = ee.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				else if (cause instanceof Error)
+					throw (Error)cause;
+				else
+					throw new RuntimeException(cause);
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**Lists one directory, forking a task per subdirectory and per group of files.*/
+	private class DirectoryTask
+		extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private Path dir;
+		private BatchCommentReader.Listener listener;
+
+		DirectoryTask(Path dir, BatchCommentReader.Listener listener)
+		{
+			this.dir = dir;
+			this.listener = listener;
+		}
+
+		protected void compute()
+		{
+			List<ForkJoinTask<?>> subtasks = new ArrayList<ForkJoinTask<?>>();
+			List<FileComments> files = new ArrayList<FileComments>(FILES_PER_TASK);
+
+			try
+			{
+				DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+				try
+				{
+					for (Path p: entries)
+					{
+						BasicFileAttributes attrs;
+						try
+						{
+							attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+							if (attrs.isSymbolicLink())
+							{
+								attrs = Files.readAttributes(p, BasicFileAttributes.class);
+								if (!attrs.isRegularFile())
+									continue;
+							}
+						}
+						catch (IOException ioe)  //vanished or dangling link
+						{
+							continue;
+						}
+
+						if (attrs.isDirectory())
+							subtasks.add(new DirectoryTask(p, listener).fork());
+						else if (attrs.isRegularFile() && LibraryFiles.isCandidate(p.getFileName().toString()))
+						{
+							//stash the attributes in the result which is completed later
+							FileComments fc = new FileComments(p.toFile(), (VorbisCommentHeader)null);
+							fc.size = attrs.size();
+							fc.lastModified = attrs.lastModifiedTime().toMillis();
+							files.add(fc);
+
+							if (files.size() == FILES_PER_TASK)
+							{
+								subtasks.add(new FileTask(files, listener).fork());
+								files = new ArrayList<FileComments>(FILES_PER_TASK);
+							}
+						}
+					}
+				}
+				finally
+				{
+					entries.close();
+				}
+			}
+			catch (IOException ioe)
+			{
+				listener.fileRead(new FileComments(dir.toFile(), ioe));
+			}
+			catch (DirectoryIteratorException die)
+			{
+				listener.fileRead(new FileComments(dir.toFile(), die.getCause()));
+			}
+
+			//read the remainder here rather than paying for another task
+			if (!files.isEmpty())
+				new FileTask(files, listener).compute();
+
+			for (ForkJoinTask<?> subtask: subtasks)
+				subtask.join();
+		}
+	}
+
+	/**Reads a group of files found in the same directory.*/
+	private class FileTask
+		extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private List<FileComments> files;
+		private BatchCommentReader.Listener listener;
+
+		FileTask(List<FileComments> files, BatchCommentReader.Listener listener)
+		{
+			this.files = files;
+			this.listener = listener;
+		}
+
+		protected void compute()
+		{
+			for (FileComments fc: files)
+			{
+				try
+				{
+					reads.acquire();
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					return;
+				}
+				
+				try
+				{
+					FileComments read = FileComments.read(fc.file, ignoreAllRecoverableErrorsAndWarnings);
+					fc.comments = read.comments;
+					fc.error = read.error;
+				}
+				finally
+				{
+					reads.release();
+				}
+
+				listener.fileRead(fc);
+			}
+		}
+	}
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void directoryScannerTest()
+		throws Exception
+		{
+			File root = new File("deleteme scanner");
+			List<File> created = new ArrayList<File>();
+			try
+			{
+				//enough files in one directory to need several file tasks
+				Set<File> expected = new HashSet<File>();
+				for (int i = 0; i < 40; i++)
+				{
+					File f = new File(root, (i < 35 ? "a" : "b/c") + "/" + i + (i % 2 == 0 ? ".ogg" : ".oga"));
+					f.getParentFile().mkdirs();
+					Util.copyFile(new File("test oggs", "error free.ogg"), f);
+					f.setLastModified(1000000000000L + i * 1000);
+					created.add(f);
+					expected.add(f);
+				}
+				File bad = new File(root, "bad.ogg");
+				Util.copyFile(new File("test oggs", "not really ogg.ogg"), bad);
+				created.add(bad);
+				expected.add(bad);
+				File other = new File(root, "cover.jpg");
+				Util.copyFile(new File("test oggs", "error free.ogg"), other);
+				created.add(other);
+				
+				//a link to a file is followed, a link to a directory is not (it would be a cycle)
+				File fileLink = new File(root, "link.ogg");
+				File dirLink = new File(root, "b/c/loop");
+				boolean links = true;
+				try
+				{
+					Files.createSymbolicLink(fileLink.toPath(), new File("a", "0.ogg").toPath());
+					Files.createSymbolicLink(dirLink.toPath(), root.getAbsoluteFile().toPath());
+					expected.add(fileLink);
+				}
+				catch (IOException | UnsupportedOperationException e)
+				{
+					links = false;
+				}
+				created.add(fileLink);
+				created.add(dirLink);
+				
+				final Map<File, FileComments> results = new ConcurrentHashMap<File, FileComments>();
+				new DirectoryScanner(3).scan(root, new BatchCommentReader.Listener()
+				{
+					public void fileRead(FileComments result)
+					{
+						assertNull(results.put(result.file, result));
+					}
+				});
+				
+				assertEquals(new TreeSet<File>(results.keySet()), new TreeSet<File>(expected));
+				for (FileComments fc: results.values())
+				{
+					if (fc.file.equals(bad))
+						assertNotNull(fc.error);
+					else
+					{
+						assertNull(fc.error);
+						assertEquals(fc.comments.toPacket(), VorbisIO.readComments(fc.file).toPacket());
+					}
+					assertEquals(fc.size, fc.file.length());
+					assertEquals(fc.lastModified, fc.file.lastModified());
+				}
+				if (links)
+					assertEquals(results.get(fileLink).size, new File(root, "a/0.ogg").length());
+			}
+			finally
+			{
+				for (File f: created)
+					f.delete();
+				new File(root, "b/c").delete();
+				new File(root, "b").delete();
+				new File(root, "a").delete();
+				root.delete();
+			}
+		}
+	}
+}
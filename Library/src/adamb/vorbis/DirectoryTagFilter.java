@@ -0,0 +1,536 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Bloom filter summaries of the tags in each directory of a library, for answering "is
+ anything below here tagged X?" without opening any file.  Every directory keeps hashes of
+ the field names and field values of its own files and a filter of its own and all its
+ subdirectories' tags, so a query can skip a whole subtree after one test.  Each subtree
+ filter is sized from the number of tags below it and resized as they are added, so
+ directories near the root keep the same false positive rate, about 1%, as the leaves.
+ <p>
+ A Bloom filter can answer "maybe" for a tag that isn't present but never "no" for one
+ that is.  Values are normalized as by {@link TagIndex#exact(String, String)}.
+ </p>
+ <p>
+ Build the filters by passing this object to a {@link BatchCommentReader} or
+ {@link DirectoryScanner} as the listener, and register it with
+ {@link VorbisIO#addCommentWriteListener(CommentWriteListener)} to add newly written tags.
+ Tags that are removed from a file remain in the filters, which only costs false
+ positives, until the filters are rebuilt.  The filters are held in memory, written by
+ {@link #save()} and are thread safe.
+ </p>
+ */
+public class DirectoryTagFilter
+	implements BatchCommentReader.Listener, CommentWriteListener
+{
+	private static final int MAGIC = 0x4A564246;  //"JVBF"
+	private static final int VERSION = 2;
+	/**10 bits per tag with 7 hashes gives a false positive rate just under 1%*/
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	private static class Node
+	{
+		/**the distinct tag hashes of the directory's own files, sorted*/
+		long[] own = new long[0];
+		int ownCount;
+		/**the number of tags in the subtree, counting a tag once per directory having it*/
+		long subtreeCount;
+		long[] subtree = new long[1];
+		List<Node> children = new ArrayList<Node>(4);
+		Node parent;
+		String path;
+	}
+
+	private File root;
+	private String rootPath;
+	private File filterFile;
+	private HashMap<String, Node> nodes;
+
+	/**
+	 Open the filters for a library, loading them from the file if it exists.  A file which
+	 can't be read, or which was built for another root, is ignored.
+	 @param root the top directory of the library.  Files outside it are ignored.
+	 */
+	public DirectoryTagFilter(File root, File filterFile)
+	{
+		this.root = root.getAbsoluteFile();
+		this.rootPath = this.root.getPath();
+		this.filterFile = filterFile;
+		clear();
+
+		if (filterFile.exists())
+		{
+			try
+			{
+				load();
+			}
+			catch (IOException ioe)
+			{
+				clear();
+			}
+		}
+	}
+
+	/**
+	 Forget everything, in preparation for rebuilding the filters from a fresh scan.
+	 */
+	public synchronized void clear()
+	{
+		nodes = new HashMap<String, Node>();
+		node(root);
+	}
+
+	/**
+	 Add the tags of a file read by a batch read.  Files which could not be read are ignored.
+	 */
+	public void fileRead(FileComments result)
+	{
+		if (result.comments != null)
+			add(result.file, result.comments);
+	}
+
+	/**
+	 Add the tags of a file whose comments have just been written.
+	 */
+	public void commentsWritten(File f, VorbisCommentHeader comments)
+	{
+		add(f, comments);
+	}
+
+	/**
+	 Add a file's tags to its directory and every directory above it up to the root.
+	 */
+	public synchronized void add(File f, VorbisCommentHeader comments)
+	{
+		File dir = f.getAbsoluteFile().getParentFile();
+		if (dir == null || !isWithinRoot(dir.getPath()))
+			return;
+
+		Node node = node(dir);
+		long[] added = new long[comments.fields.size() * 2];
+		int nAdded = 0;
+		for (CommentField cf: comments.fields)
+		{
+			String field = cf.name.toUpperCase(Locale.ROOT);
+			long h = hash(field);
+			if (addOwn(node, h))
+				added[nAdded++] = h;
+			h = hash(field + '=' + TagIndex.normalizeValue(cf.value));
+			if (addOwn(node, h))
+				added[nAdded++] = h;
+		}
+
+		for (Node n = node; n != null; n = n.parent)
+		{
+			n.subtreeCount += nAdded;
+			if (filterBits(n.subtreeCount) > (long)n.subtree.length * 64)
+				rebuildSubtree(n);
+			else
+			{
+				for (int i = 0; i < nAdded; i++)
+					set(n.subtree, added[i]);
+			}
+		}
+	}
+
+	/**
+	 @param field a field name
+	 @param value the value or null to ask only whether the field is present
+	 @return true if a file in the directory or below might have the tag.  False if none has.
+	 */
+	public synchronized boolean mightContain(File dir, String field, String value)
+	{
+		Node node = nodes.get(dir.getAbsolutePath());
+		return node != null && contains(node.subtree, hash(key(field, value)));
+	}
+
+	/**
+	 Find the directories whose files might have a tag.  Subtrees which can't contain it are
+	 skipped after a single test.
+	 @param value the value or null to ask only whether the field is present
+	 @return the directories, in no particular order, which contain at least one file which
+	 might have the tag
+	 */
+	public synchronized List<File> find(String field, String value)
+	{
+		long h = hash(key(field, value));
+		List<File> found = new ArrayList<File>();
+		ArrayDeque<Node> pending = new ArrayDeque<Node>();
+		pending.push(nodes.get(rootPath));
+		while (!pending.isEmpty())
+		{
+			Node node = pending.pop();
+			if (contains(node.subtree, h))
+			{
+				if (Arrays.binarySearch(node.own, 0, node.ownCount, h) >= 0)
+					found.add(new File(node.path));
+				for (Node child: node.children)
+					pending.push(child);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 @return the number of directories with a filter
+	 */
+	public synchronized int size()
+	{
+		return nodes.size();
+	}
+
+	private static String key(String field, String value)
+	{
+		field = field.toUpperCase(Locale.ROOT);
+		return value != null ? field + '=' + TagIndex.normalizeValue(value) : field;
+	}
+
+	private boolean isWithinRoot(String path)
+	{
+		return path.startsWith(rootPath)
+			&& (path.length() == rootPath.length() || path.charAt(rootPath.length()) == File.separatorChar || rootPath.endsWith(File.separator));
+	}
+
+	/**
+	 Get or create the node for a directory, linking it to its parent.
+	 */
+	private Node node(File dir)
+	{
+		Node node = nodes.get(dir.getPath());
+		if (node == null)
+		{
+			node = new Node();
+			node.path = dir.getPath();
+			nodes.put(node.path, node);
+
+			if (!node.path.equals(rootPath))
+			{
+				node.parent = node(dir.getParentFile());
+				node.parent.children.add(node);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 @return true if the hash was not already among the directory's own
+	 */
+	private static boolean addOwn(Node node, long h)
+	{
+		int i = Arrays.binarySearch(node.own, 0, node.ownCount, h);
+		if (i >= 0)
+			return false;
+
+		i = -(i + 1);
+		if (node.ownCount == node.own.length)
+			node.own = Arrays.copyOf(node.own, Math.max(8, node.own.length * 2));
+		System.arraycopy(node.own, i, node.own, i + 1, node.ownCount - i);
+		node.own[i] = h;
+		node.ownCount++;
+		return true;
+	}
+
+	/**
+	 @return the size of filter, a power of two, which holds the given number of tags at
+	 the target false positive rate
+	 */
+	private static long filterBits(long keys)
+	{
+		long want = Math.max(64, keys * BITS_PER_KEY);
+		return Long.highestOneBit(want - 1) << 1;
+	}
+
+	/**
+	 Recreate a subtree filter at the size for its count from the hashes below it.
+	 */
+	private static void rebuildSubtree(Node node)
+	{
+		long[] filter = new long[(int)(filterBits(node.subtreeCount) / 64)];
+		ArrayDeque<Node> pending = new ArrayDeque<Node>();
+		pending.push(node);
+		while (!pending.isEmpty())
+		{
+			Node n = pending.pop();
+			for (int i = 0; i < n.ownCount; i++)
+				set(filter, n.own[i]);
+			for (Node child: n.children)
+				pending.push(child);
+		}
+		node.subtree = filter;
+	}
+
+	private static void set(long[] filter, long h)
+	{
+		int mask = filter.length * 64 - 1;
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		for (int i = 0; i < HASHES; i++)
+		{
+			int bit = (h1 + i * h2) & mask;
+			filter[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	private static boolean contains(long[] filter, long h)
+	{
+		int mask = filter.length * 64 - 1;
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32);
+		for (int i = 0; i < HASHES; i++)
+		{
+			int bit = (h1 + i * h2) & mask;
+			if ((filter[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**64 bit FNV-1a over the characters, with a final mix so both halves are usable*/
+	private static long hash(String s)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++)
+		{
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h | 1L << 32;  //an odd step so every probe differs
+	}
+
+	/**
+	 Write the filters to their file.  Only each directory's own tag hashes are stored; the
+	 subtree filters are rebuilt on load.
+	 */
+	public synchronized void save()
+	throws IOException
+	{
+		File tmp = new File(filterFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 128 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(rootPath);
+			out.writeInt(nodes.size());
+			for (Node node: nodes.values())
+			{
+				out.writeUTF(node.path);
+				out.writeInt(node.ownCount);
+				for (int i = 0; i < node.ownCount; i++)
+					out.writeLong(node.own[i]);
+			}
+			out.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (!tmp.renameTo(filterFile))
+		{
+			filterFile.delete();
+			if (!tmp.renameTo(filterFile))
+				throw new IOException("Unable to replace " + filterFile.getPath());
+		}
+	}
+
+	private void load()
+	throws IOException
+	{
+		FileInputStream fis = new FileInputStream(filterFile);
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 128 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a directory filter file or incompatible version");
+			if (!in.readUTF().equals(rootPath))
+				throw new IOException("Directory filters were built for another library");
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				String path = in.readUTF();
+				if (!isWithinRoot(path))
+					throw new IOException("Directory filter outside the library: " + path);
+
+				Node node = node(new File(path));
+				int n = in.readInt();
+				if (n < 0)
+					throw new IOException("Directory filter file is corrupt");
+				node.own = new long[n];
+				for (int j = 0; j < n; j++)
+					node.own[j] = in.readLong();
+				node.ownCount = n;
+				Arrays.sort(node.own);
+			}
+
+			//count each level's tags, then size and fill its filter
+			for (Node node: nodes.values())
+			{
+				for (Node n = node; n != null; n = n.parent)
+					n.subtreeCount += node.ownCount;
+			}
+			for (Node node: nodes.values())
+				rebuildSubtree(node);
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void directoryTagFilterTest()
+		throws IOException
+		{
+			File root = new File("library").getAbsoluteFile();
+			File filterFile = new File("deleteme.dirfilter");
+			try
+			{
+				DirectoryTagFilter filter = new DirectoryTagFilter(root, filterFile);
+				filter.fileRead(result(new File(root, "Beatles/Help/1.ogg"), "ARTIST", "The Beatles", "ALBUM", "Help!"));
+				filter.fileRead(result(new File(root, "Beatles/Abbey Road/1.ogg"), "ARTIST", "The Beatles"));
+				filter.fileRead(result(new File(root, "Wings/1.ogg"), "ARTIST", "Wings"));
+				filter.fileRead(result(new File("elsewhere/1.ogg").getAbsoluteFile(), "ARTIST", "Outsider"));
+				filter.fileRead(new FileComments(new File(root, "Broken/1.ogg"), new IOException()));
+				assertEquals(filter.size(), 5);  //root, Beatles and its two albums, Wings
+
+				assertTrue(filter.mightContain(root, "artist", "the BEATLES"));
+				assertTrue(filter.mightContain(new File(root, "Beatles"), "ALBUM", null));
+				assertFalse(filter.mightContain(new File(root, "Wings"), "ALBUM", null));
+				assertFalse(filter.mightContain(root, "ARTIST", "Outsider"));
+				assertFalse(filter.mightContain(new File(root, "Nowhere"), "ARTIST", "Wings"));
+
+				assertEquals(filter.find("ALBUM", "help").size(), 1);
+				assertEquals(filter.find("ALBUM", "help").get(0), new File(root, "Beatles/Help"));
+				assertEquals(filter.find("ARTIST", "the beatles").size(), 2);
+				assertEquals(filter.find("ARTIST", "Nobody").size(), 0);
+
+				filter.commentsWritten(new File(root, "Wings/1.ogg"), result(null, "ALBUM", "Band on the Run").comments);
+				assertTrue(filter.mightContain(root, "ALBUM", "band on the run"));
+
+				filter.save();
+				DirectoryTagFilter loaded = new DirectoryTagFilter(root, filterFile);
+				assertEquals(loaded.size(), 5);
+				assertTrue(loaded.mightContain(root, "ALBUM", "band on the run"));
+				assertEquals(loaded.find("ARTIST", "the beatles").size(), 2);
+				assertFalse(loaded.mightContain(root, "ARTIST", "Nobody"));
+
+				//filters for another library are not loaded
+				assertEquals(new DirectoryTagFilter(new File(root, "Beatles"), filterFile).size(), 1);
+			}
+			finally
+			{
+				filterFile.delete();
+			}
+		}
+
+		/**
+		 A library large enough that fixed size filters near the root would fill with ones.
+		 */
+		@Test
+		public void largeLibraryTest()
+		throws IOException
+		{
+			File root = new File("library").getAbsoluteFile();
+			File filterFile = new File("deleteme.dirfilter");
+			try
+			{
+				DirectoryTagFilter filter = new DirectoryTagFilter(root, filterFile);
+				for (int artist = 0; artist < 40; artist++)
+				{
+					for (int album = 0; album < 5; album++)
+					{
+						for (int track = 0; track < 12; track++)
+						{
+							File f = new File(root, "Artist " + artist + "/Album " + album + "/" + track + ".ogg");
+							filter.add(f, result(null, "ARTIST", "Artist " + artist, "ALBUM", "Album " + artist + "." + album,
+								"TITLE", "Title " + artist + "." + album + "." + track, "ISRC", "ISRC" + artist + "x" + album + "x" + track).comments);
+						}
+					}
+				}
+				assertEquals(filter.find("TITLE", "title 3.2.1").size(), 1);
+				checkSkips(filter, root);
+
+				filter.save();
+				filter = new DirectoryTagFilter(root, filterFile);
+				assertEquals(filter.find("TITLE", "title 3.2.1").size(), 1);
+				checkSkips(filter, root);
+			}
+			finally
+			{
+				filterFile.delete();
+			}
+		}
+
+		private static void checkSkips(DirectoryTagFilter filter, File root)
+		{
+			//absent titles are rejected at the root
+			int maybes = 0;
+			for (int i = 0; i < 200; i++)
+			{
+				if (filter.mightContain(root, "TITLE", "missing " + i))
+					maybes++;
+			}
+			assertTrue(maybes < 10, maybes + " false positives at the root");
+
+			//each artist's subtree is skipped for the other artists' titles
+			maybes = 0;
+			for (int artist = 0; artist < 40; artist++)
+			{
+				File dir = new File(root, "Artist " + artist);
+				assertTrue(filter.mightContain(dir, "TITLE", "Title " + artist + ".4.11"));
+				for (int other = 0; other < 40; other++)
+				{
+					if (other != artist && filter.mightContain(dir, "TITLE", "Title " + other + ".0.0"))
+						maybes++;
+				}
+			}
+			assertTrue(maybes < 80, maybes + " false positives among 1560 artist subtrees");
+		}
+
+		private static FileComments result(File f, String... nameValues)
+		{
+			VorbisCommentHeader vch = new VorbisCommentHeader();
+			for (int i = 0; i < nameValues.length; i += 2)
+				vch.fields.add(new CommentField(nameValues[i], nameValues[i + 1]));
+			return new FileComments(f, vch);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+
+/**
+ The result of reading the comments from one file during a batch operation.
+ Exactly one of {@link #comments} and {@link #error} is non-null.
+ */
+public class FileComments
+{
+	/**The file that was read.*/
+	public File file;
+	/**The parsed comments or null if the file could not be read.*/
+	public VorbisCommentHeader comments;
+	/**Why the file could not be read or null if it was read successfully.*/
+	public IOException error;
+	/**The file size in bytes or -1 if it was not collected.*/
+	public long size = -1;
+	/**The file modification time in milliseconds since the epoch or -1 if it was not collected.*/
+	public long lastModified = -1;
+
+	public FileComments(File file, VorbisCommentHeader comments)
+	{
+		this.file = file;
+		this.comments = comments;
+	}
+
+	public FileComments(File file, IOException error)
+	{
+		this.file = file;
+		this.error = error;
+	}
+
+	/**
+	 Read the comments from the file, capturing any error rather than throwing it.
+	 */
+	static FileComments read(File f, boolean ignoreAllRecoverableErrorsAndWarnings)
+	{
+		try
+		{
+			return new FileComments(f, VorbisIO.readComments(f, ignoreAllRecoverableErrorsAndWarnings, BatchCommentReader.BUFFER_SIZE));
+		}
+		catch (IOException ioe)
+		{
+			return new FileComments(f, ioe);
+		}
+	}
+	
+	/**
+	 Get the comments from the cache, which reads the file only if it has changed.
+	 */
+	static FileComments read(File f, TagCache cache)
+	{
+		try
+		{
+			return new FileComments(f, cache.readComments(f));
+		}
+		catch (IOException ioe)
+		{
+			return new FileComments(f, ioe);
+		}
+	}
+}
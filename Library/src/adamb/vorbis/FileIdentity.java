@@ -0,0 +1,114 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.Map;
+
+/**
+ The identity of a file's contents as far as can be told from its metadata: path, size,
+ modification time and inode number.  If any of these change the file must be re-read.
+ */
+public class FileIdentity
+{
+	/**The absolute path.*/
+	public final String path;
+	public final long size;
+	/**Modification time in milliseconds since the epoch.*/
+	public final long lastModified;
+	/**The inode number or -1 if the file system does not have them.*/
+	public final long inode;
+
+	public FileIdentity(String path, long size, long lastModified, long inode)
+	{
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.inode = inode;
+	}
+
+	/**
+	 Stat the file.  Only the file's metadata is read.
+	 @throws FileNotFoundException if the file does not exist
+	 */
+	public static FileIdentity of(File f)
+	throws IOException
+	{
+		Path p = f.toPath();
+		String path = f.getAbsolutePath();
+		try
+		{
+			//one stat call for everything where the "unix" view is available
+			Map<String, Object> attrs = Files.readAttributes(p, "unix:size,lastModifiedTime,ino");
+			return new FileIdentity(path,
+				((Number)attrs.get("size")).longValue(),
+				((FileTime)attrs.get("lastModifiedTime")).toMillis(),
+				((Number)attrs.get("ino")).longValue());
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+		}
+		catch (IllegalArgumentException iae)
+		{
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			throw new FileNotFoundException(f.getPath() + " does not exist!");
+		}
+
+		try
+		{
+			BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+			return new FileIdentity(path, attrs.size(), attrs.lastModifiedTime().toMillis(), -1);
+		}
+		catch (NoSuchFileException nsfe)
+		{
+			throw new FileNotFoundException(f.getPath() + " does not exist!");
+		}
+	}
+
+	public boolean equals(Object o)
+	{
+		if (o instanceof FileIdentity)
+		{
+			FileIdentity fi = (FileIdentity)o;
+			return size == fi.size
+				&& lastModified == fi.lastModified
+				&& inode == fi.inode
+				&& path.equals(fi.path);
+		}
+		else
+			return false;
+	}
+
+	public int hashCode()
+	{
+		return path.hashCode() ^ (int)(lastModified ^ (lastModified >>> 32)) ^ (int)size;
+	}
+
+	public String toString()
+	{
+		return path + " size=" + size + " mtime=" + lastModified + " ino=" + inode;
+	}
+}
@@ -0,0 +1,258 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ The order a batch operation visits its files in.  On spinning disks, visiting files in
+ roughly their physical order turns random header reads into mostly forward seeks.
+ Neither order guarantees physical placement but both are good approximations on common
+ Unix file systems.
+ @see BatchCommentReader#setOrder(FileOrder)
+ */
+public enum FileOrder
+{
+	/**The order the files were given in.*/
+	AS_GIVEN,
+
+	/**
+	 Files are grouped by directory and, within a directory, ordered as the file system
+	 lists them.  Listing order tends to follow allocation order.  Each directory is listed
+	 once.
+	 */
+	DIRECTORY,
+
+	/**
+	 Files are ordered by inode number (<code>unix:ino</code>).  Most Unix file systems
+	 allocate inodes and data blocks close together so this approximates the physical
+	 order.  Falls back to {@link #DIRECTORY} order when inode numbers are not available.
+	 */
+	INODE;
+
+	/**
+	 @return a new list containing the files in this order
+	 */
+	public List<File> arrange(Iterable<File> files)
+	{
+		List<File> list = new ArrayList<File>();
+		for (File f: files)
+			list.add(f);
+
+		switch (this)
+		{
+			case DIRECTORY:
+				return byDirectory(list);
+			case INODE:
+				return byInode(list, getInodes(list));
+			default:
+				return list;
+		}
+	}
+
+	private static List<File> byDirectory(List<File> files)
+	{
+		//group by directory, directories in path order
+		TreeMap<File, List<File>> dirs = new TreeMap<File, List<File>>();
+		for (File f: files)
+		{
+			File parent = f.getAbsoluteFile().getParentFile();
+			List<File> group = dirs.get(parent);
+			if (group == null)
+			{
+				group = new ArrayList<File>();
+				dirs.put(parent, group);
+			}
+			group.add(f);
+		}
+
+		List<File> ordered = new ArrayList<File>(files.size());
+		for (Map.Entry<File, List<File>> entry: dirs.entrySet())
+		{
+			List<File> group = entry.getValue();
+
+			//position of each name in the directory listing
+			final Map<String, Integer> listingPos = new HashMap<String, Integer>();
+			String[] names = entry.getKey().list();
+			if (names != null)
+			{
+				for (int i = 0; i < names.length; i++)
+					listingPos.put(names[i], i);
+			}
+
+			//files which weren't listed (deleted?) go last
+			Collections.sort(group, new Comparator<File>()
+			{
+				public int compare(File a, File b)
+				{
+					Integer pa = listingPos.get(a.getName());
+					Integer pb = listingPos.get(b.getName());
+					int ia = pa != null ? pa.intValue() : Integer.MAX_VALUE;
+					int ib = pb != null ? pb.intValue() : Integer.MAX_VALUE;
+					return ia < ib ? -1 : (ia == ib ? 0 : 1);
+				}
+			});
+			ordered.addAll(group);
+		}
+
+		return ordered;
+	}
+
+	/**
+	 @return the inode number of each file that could be stat'ed, or null if the file
+	 system doesn't expose inode numbers
+	 */
+	private static Map<File, Long> getInodes(List<File> files)
+	{
+		Map<File, Long> inodes = new HashMap<File, Long>(Util.calcHashCapacity(files.size()));
+		for (File f: files)
+		{
+			Long ino = getInode(f);
+			if (ino != null)
+				inodes.put(f, ino);
+			else if (f.exists())
+				return null;
+		}
+		return inodes;
+	}
+
+	/**
+	 @param inodes from {@link #getInodes(List)}.  If null the files are put in DIRECTORY order.
+	 */
+	static List<File> byInode(List<File> files, final Map<File, Long> inodes)
+	{
+		if (inodes == null)
+			return byDirectory(files);
+
+		//files that could not be stat'ed (deleted?) go last
+		List<File> ordered = new ArrayList<File>(files);
+		Collections.sort(ordered, new Comparator<File>()
+		{
+			public int compare(File a, File b)
+			{
+				Long ia = inodes.get(a);
+				Long ib = inodes.get(b);
+				long la = ia != null ? ia.longValue() : Long.MAX_VALUE;
+				long lb = ib != null ? ib.longValue() : Long.MAX_VALUE;
+				return la < lb ? -1 : (la == lb ? 0 : 1);
+			}
+		});
+
+		return ordered;
+	}
+
+	/**
+	 @return the inode number or null if it is not available
+	 */
+	static Long getInode(File f)
+	{
+		try
+		{
+			Object ino = Files.getAttribute(f.toPath(), "unix:ino");
+			if (ino instanceof Number)
+				return Long.valueOf(((Number)ino).longValue());
+			else
+				return null;
+		}
+		catch (UnsupportedOperationException uoe)
+		{
+			return null;
+		}
+		catch (IllegalArgumentException iae)  //no "unix" attribute view
+		{
+			return null;
+		}
+		catch (java.io.IOException ioe)
+		{
+			return null;
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void fileOrderTest()
+		throws Exception
+		{
+			File root = new File("deleteme order").getAbsoluteFile();
+			List<File> given = new ArrayList<File>();
+			try
+			{
+				//interleave two directories, plus one file that doesn't exist
+				for (int i = 0; i < 10; i++)
+				{
+					File f = new File(root, (i % 2 == 0 ? "b" : "a") + "/" + (char)('z' - i) + ".ogg");
+					f.getParentFile().mkdirs();
+					Util.copyFile(new File("test oggs", "error free.ogg"), f);
+					given.add(f);
+				}
+				File missing = new File(root, "a/missing.ogg");
+				given.add(3, missing);
+
+				assertEquals(AS_GIVEN.arrange(given), given);
+
+				//directories in path order, each in listing order, unlisted files last
+				List<File> byDir = DIRECTORY.arrange(given);
+				assertEquals(byDir.size(), given.size());
+				List<File> expected = new ArrayList<File>();
+				for (String dir: new String[]{"a", "b"})
+				{
+					for (String name: new File(root, dir).list())
+						expected.add(new File(new File(root, dir), name));
+				}
+				expected.add(5, missing);
+				assertEquals(byDir, expected);
+
+				//ascending inode numbers, unstattable files last
+				List<File> byInode = INODE.arrange(given);
+				assertEquals(byInode.size(), given.size());
+				if (getInode(given.get(0)) != null)
+				{
+					for (int i = 1; i < byInode.size() - 1; i++)
+						assertTrue(getInode(byInode.get(i - 1)).longValue() < getInode(byInode.get(i)).longValue());
+					assertEquals(byInode.get(byInode.size() - 1), missing);
+				}
+				else
+					assertEquals(byInode, byDir);
+
+				//where inode numbers aren't available INODE falls back to DIRECTORY order
+				assertEquals(byInode(given, null), byDir);
+			}
+			finally
+			{
+				for (File f: given)
+					f.delete();
+				new File(root, "a").delete();
+				new File(root, "b").delete();
+				root.delete();
+			}
+		}
+	}
+}
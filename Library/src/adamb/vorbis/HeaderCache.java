@@ -0,0 +1,490 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ A bounded in-memory cache of parsed headers for servers which read the same files over
+ and over.  Unlike {@link TagCache} nothing is persisted and the cache never grows beyond
+ its capacity.
+ <p>
+ The capacity is in bytes of comment header.  When a new entry doesn't fit, the least
+ recently used entries are candidates for eviction but the new entry is only admitted if
+ it has been requested more often than each entry it would replace (TinyLFU admission).
+ Request frequencies are kept approximately, in a small count-min sketch which is halved
+ periodically so that old popularity fades.  A one-off scan of many files therefore can't
+ flush the popular ones.
+ </p>
+ <p>
+ Every lookup stats the file and an entry whose size or modification time no longer
+ matches is reloaded.  Register the cache with
+ {@link VorbisIO#addCommentWriteListener(CommentWriteListener)} to have entries dropped
+ as soon as their comments are written.  Files are read ignoring recoverable errors, as
+ with {@link VorbisIO#readComments(File)}, and files which can't be read are not cached.
+ The cache is thread safe; files are loaded outside the lock.
+ </p>
+ */
+public class HeaderCache
+	implements CommentWriteListener
+{
+	private static class Entry
+	{
+		FileIdentity identity;
+		byte[] commentPacket;
+		VorbisIDHeader idHeader;
+	}
+
+	/**
+	 A snapshot of the cache's counters.
+	 */
+	public static class Stats
+	{
+		private long hits;
+		private long misses;
+		private long evictions;
+		private long rejections;
+		private long loads;
+		private long loadNanos;
+
+		/**@return the number of lookups answered from the cache*/
+		public long getHitCount()
+		{
+			return hits;
+		}
+
+		/**@return the number of lookups which had to read the file*/
+		public long getMissCount()
+		{
+			return misses;
+		}
+
+		/**@return hits / (hits + misses), or 1 if there have been no lookups*/
+		public double getHitRate()
+		{
+			long lookups = hits + misses;
+			return lookups == 0 ? 1.0 : (double)hits / lookups;
+		}
+
+		/**@return the number of entries removed to make room, not counting invalidations*/
+		public long getEvictionCount()
+		{
+			return evictions;
+		}
+
+		/**@return the number of loaded files which were not admitted to the cache*/
+		public long getRejectionCount()
+		{
+			return rejections;
+		}
+
+		/**@return the number of files read, whether or not they could be parsed*/
+		public long getLoadCount()
+		{
+			return loads;
+		}
+
+		/**@return the total time spent reading files, in nanoseconds*/
+		public long getTotalLoadTime()
+		{
+			return loadNanos;
+		}
+
+		/**@return the mean time to read a file in nanoseconds, or 0 if none have been read*/
+		public double getAverageLoadPenalty()
+		{
+			return loads == 0 ? 0.0 : (double)loadNanos / loads;
+		}
+
+		public String toString()
+		{
+			return "hits=" + hits + " misses=" + misses
+				+ " evictions=" + evictions + " rejections=" + rejections
+				+ " averageLoad=" + (long)(getAverageLoadPenalty() / 1000) + "us";
+		}
+	}
+
+	private final long capacity;
+	/**guarded by this; in access order, eldest first*/
+	private LinkedHashMap<String, Entry> entries;
+	/**guarded by this*/
+	private long weight;
+	/**guarded by this*/
+	private FrequencySketch sketch;
+	/**guarded by this*/
+	private Stats stats;
+
+	/**
+	 @param capacity the maximum total size in bytes of the cached comment headers
+	 */
+	public HeaderCache(long capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+
+		this.capacity = capacity;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		stats = new Stats();
+
+		//a typical comment header is a few hundred bytes
+		sketch = new FrequencySketch((int)Math.min(capacity / 256, 1 << 20));
+	}
+
+	/**
+	 Get the comments of a file, from the cache if the file hasn't changed.
+	 */
+	public VorbisCommentHeader readComments(File f)
+	throws IOException
+	{
+		return new VorbisCommentHeader(get(f).commentPacket);
+	}
+
+	/**
+	 Get the ID header of a file, from the cache if the file hasn't changed.
+	 */
+	public VorbisIDHeader readIdHeader(File f)
+	throws IOException
+	{
+		VorbisIDHeader id = get(f).idHeader;
+		VorbisIDHeader c = new VorbisIDHeader();
+		c.audioChannels = id.audioChannels;
+		c.audioSampleRate = id.audioSampleRate;
+		c.maxBitRate = id.maxBitRate;
+		c.minBitRate = id.minBitRate;
+		c.nominalBitRate = id.nominalBitRate;
+		c.blockSize0 = id.blockSize0;
+		c.blockSize1 = id.blockSize1;
+		return c;
+	}
+
+	private Entry get(File f)
+	throws IOException
+	{
+		//stat before reading so a change made during the read is noticed next time
+		FileIdentity identity = FileIdentity.of(f);
+
+		synchronized (this)
+		{
+			sketch.increment(identity.path);
+
+			Entry entry = entries.get(identity.path);
+			if (entry != null && entry.identity.equals(identity))
+			{
+				stats.hits++;
+				return entry;
+			}
+			else
+				stats.misses++;
+		}
+
+		Entry entry = new Entry();
+		entry.identity = identity;
+		long start = System.nanoTime();
+		try
+		{
+			VorbisPacketStream vps = VorbisIO.readHeaders(f, true, BatchCommentReader.BUFFER_SIZE);
+			entry.idHeader = vps.getIDHeader();
+			entry.commentPacket = vps.getCommentHeader().toPacket();
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				stats.loads++;
+				stats.loadNanos += System.nanoTime() - start;
+			}
+		}
+
+		synchronized (this)
+		{
+			//drop the stale entry, if any, before deciding whether the new one fits
+			Entry stale = entries.remove(identity.path);
+			if (stale != null)
+				weight -= stale.commentPacket.length;
+
+			if (admit(entry))
+			{
+				entries.put(identity.path, entry);
+				weight += entry.commentPacket.length;
+			}
+			else
+				stats.rejections++;
+		}
+
+		return entry;
+	}
+
+	/**
+	 Make room for a new entry if it is more popular than the entries it would displace.
+	 @return true if there is now room for the entry
+	 */
+	private boolean admit(Entry candidate)
+	{
+		long needed = weight + candidate.commentPacket.length - capacity;
+		if (needed <= 0)
+			return true;
+		else if (candidate.commentPacket.length > capacity)
+			return false;
+
+		int candidateFreq = sketch.frequency(candidate.identity.path);
+
+		//find the victims without removing anything yet
+		List<String> victims = new ArrayList<String>();
+		for (Map.Entry<String, Entry> me: entries.entrySet())
+		{
+			if (sketch.frequency(me.getKey()) >= candidateFreq)
+				return false;
+
+			victims.add(me.getKey());
+			needed -= me.getValue().commentPacket.length;
+			if (needed <= 0)
+				break;
+		}
+
+		for (String path: victims)
+			weight -= entries.remove(path).commentPacket.length;
+		stats.evictions += victims.size();
+
+		return true;
+	}
+
+	/**
+	 Drop a file whose comments have just been written.
+	 */
+	public void commentsWritten(File f, VorbisCommentHeader comments)
+	{
+		remove(f);
+	}
+
+	/**
+	 Drop a file from the cache.
+	 */
+	public synchronized void remove(File f)
+	{
+		Entry entry = entries.remove(f.getAbsolutePath());
+		if (entry != null)
+			weight -= entry.commentPacket.length;
+	}
+
+	/**
+	 Drop everything.  The statistics and frequency history are kept.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		weight = 0;
+	}
+
+	/**
+	 @return the number of cached files
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 @return the total size in bytes of the cached comment headers
+	 */
+	public synchronized long getWeight()
+	{
+		return weight;
+	}
+
+	public long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 @return a copy of the current statistics
+	 */
+	public synchronized Stats getStats()
+	{
+		Stats s = new Stats();
+		s.hits = stats.hits;
+		s.misses = stats.misses;
+		s.evictions = stats.evictions;
+		s.rejections = stats.rejections;
+		s.loads = stats.loads;
+		s.loadNanos = stats.loadNanos;
+		return s;
+	}
+
+	/**
+	 A count-min sketch of 4-bit counters, four rows deep.  Once the number of increments
+	 reaches ten times the width every counter is halved.
+	 */
+	private static class FrequencySketch
+	{
+		private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+		/**16 counters per long*/
+		private long[] table;
+		private int mask;
+		private int additions;
+		private int sampleSize;
+
+		FrequencySketch(int expectedEntries)
+		{
+			int width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+			table = new long[width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		/**@return the estimated number of recent occurrences, at most 15*/
+		int frequency(String key)
+		{
+			int hash = spread(key.hashCode());
+			int freq = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++)
+			{
+				int index = indexOf(hash, i);
+				int shift = counterShift(hash, i);
+				freq = Math.min(freq, (int)((table[index] >>> shift) & 0xfL));
+			}
+			return freq;
+		}
+
+		void increment(String key)
+		{
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int i = 0; i < 4; i++)
+			{
+				int index = indexOf(hash, i);
+				int shift = counterShift(hash, i);
+				if (((table[index] >>> shift) & 0xfL) != 0xfL)
+				{
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+
+			if (added && ++additions == sampleSize)
+				reset();
+		}
+
+		private void reset()
+		{
+			//halve every counter at once; the mask drops the bit shifted in from the next counter
+			for (int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			additions /= 2;
+		}
+
+		private int indexOf(int hash, int row)
+		{
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int)h & mask;
+		}
+
+		/**each row uses a different counter within the long*/
+		private static int counterShift(int hash, int row)
+		{
+			return (((hash >>> (row << 3)) & 3) << 2 | row) << 2;
+		}
+
+		private static int spread(int h)
+		{
+			h ^= h >>> 17;
+			h *= 0xed5eb4bb;
+			h ^= h >>> 11;
+			h *= 0xac4c1b51;
+			h ^= h >>> 15;
+			return h;
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void headerCacheTest()
+		throws IOException
+		{
+			File a = new File("deleteme a.ogg");
+			File b = new File("deleteme b.ogg");
+			File c = new File("deleteme c.ogg");
+			for (File f: new File[] {a, b, c})
+				Util.copyFile(new File("test oggs", "error free.ogg"), f);
+
+			int entryWeight = VorbisIO.readComments(a).toPacket().length;
+			HeaderCache cache = new HeaderCache(2 * entryWeight);
+			VorbisIO.addCommentWriteListener(cache);
+			try
+			{
+				cache.readComments(b);
+				for (int i = 0; i < 5; i++)
+					cache.readComments(a);
+				assertEquals(cache.size(), 2);
+				assertEquals(cache.getStats().getHitCount(), 4);
+				assertEquals(cache.getStats().getMissCount(), 2);
+
+				//c is no more popular than b, the least recently used, so it is not admitted
+				cache.readComments(c);
+				assertEquals(cache.getStats().getRejectionCount(), 1);
+				assertEquals(cache.getStats().getEvictionCount(), 0);
+
+				//once it is, b makes way
+				cache.readComments(c);
+				assertEquals(cache.getStats().getEvictionCount(), 1);
+				assertEquals(cache.size(), 2);
+				assertEquals(cache.getWeight(), 2 * entryWeight);
+				long misses = cache.getStats().getMissCount();
+				cache.readComments(a);
+				cache.readComments(c);
+				assertEquals(cache.getStats().getMissCount(), misses);
+
+				//invalidated by a write
+				VorbisCommentHeader vch = cache.readComments(a);
+				vch.fields.add(new CommentField("NEW", "field"));
+				VorbisIO.writeComments(a, vch);
+				assertEquals(cache.size(), 1);
+				assertEquals(cache.readComments(a).fields.size(), 1);
+				assertEquals(cache.getStats().getMissCount(), misses + 1);
+
+				//a change made behind the cache's back is noticed
+				Util.copyFile(new File("test oggs", "error free.ogg"), c);
+				c.setLastModified(c.lastModified() + 2000);
+				assertEquals(cache.readComments(c).fields.size(), 0);
+				assertEquals(cache.getStats().getMissCount(), misses + 2);
+				assertEquals(cache.getStats().getLoadCount(), cache.getStats().getMissCount());
+			}
+			finally
+			{
+				VorbisIO.removeCommentWriteListener(cache);
+				a.delete();
+				b.delete();
+				c.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ The result of {@link VorbisIO#splitHeaders(InputStream)}: the parsed headers and a stream
+ which replays every byte read while parsing them followed by the unread remainder.  An
+ upload can therefore be inspected and then forwarded unchanged in one pass.
+ */
+public class HeaderSplit
+{
+	/**The size of each read from the source stream.*/
+	private static final int READ_SIZE = 8 * 1024;
+	/**
+	 The default limit on the bytes read to find the headers.  Real comment headers are far
+	 smaller unless they embed large cover art.
+	 */
+	public static final long DEFAULT_MAX_HEADER_BYTES = 4 * 1024 * 1024;
+	
+	/**The identification header.*/
+	public final VorbisIDHeader idHeader;
+	/**The comments.*/
+	public final VorbisCommentHeader comments;
+	/**The whole original stream, starting from the first byte.*/
+	public final InputStream stream;
+	/**The number of bytes that were read from the source to find the headers.*/
+	public final long bytesConsumed;
+	
+	private HeaderSplit(VorbisIDHeader idHeader, VorbisCommentHeader comments, InputStream stream, long bytesConsumed)
+	{
+		this.idHeader = idHeader;
+		this.comments = comments;
+		this.stream = stream;
+		this.bytesConsumed = bytesConsumed;
+	}
+	
+	/**
+	 Read until the comment header is complete.  At most one read beyond the end of the
+	 comment header's page is made, and none beyond maxHeaderBytes.
+	 @param maxHeaderBytes how many bytes may be read, and held, looking for the headers
+	 @throws CorruptHeaderException if the headers are not complete within maxHeaderBytes
+	 */
+	static HeaderSplit read(InputStream is, boolean ignoreAllRecoverableErrorsAndWarnings, long maxHeaderBytes)
+	throws IOException
+	{
+		if (maxHeaderBytes < 1 || maxHeaderBytes > Integer.MAX_VALUE - READ_SIZE)
+			throw new IllegalArgumentException("Invalid header limit " + maxHeaderBytes);
+		
+		final VorbisIDHeader[] id = new VorbisIDHeader[1];
+		final VorbisCommentHeader[] comments = new VorbisCommentHeader[1];
+		VorbisHeaderParser parser = new VorbisHeaderParser(new VorbisHeaderParser.Listener()
+		{
+			public void idHeader(VorbisIDHeader header)
+			{
+				id[0] = header;
+			}
+			
+			public void commentHeader(VorbisCommentHeader c)
+			{
+				comments[0] = c;
+			}
+			
+			public void setupComplete(long audioOffset)
+			{
+			}
+		}, ignoreAllRecoverableErrorsAndWarnings);
+		
+		//everything read is kept so it can be replayed
+		ByteArrayOutputStream consumed = new ByteArrayOutputStream(READ_SIZE * 2);
+		byte[] buf = new byte[READ_SIZE];
+		while (comments[0] == null)
+		{
+			//never read past the limit; the headers may end anywhere before it
+			long room = maxHeaderBytes - consumed.size();
+			if (room == 0)
+				throw new CorruptHeaderException("No Vorbis comment header within the first " + maxHeaderBytes + " bytes");
+			
+			int n = is.read(buf, 0, (int)Math.min(buf.length, room));
+			if (n == -1)
+			{
+				//throws because the comments are missing
+				parser.endOfStream();
+				break;
+			}
+			consumed.write(buf, 0, n);
+			parser.push(ByteBuffer.wrap(buf, 0, n));
+		}
+		
+		InputStream replay = new SequenceInputStream(new ByteArrayInputStream(consumed.toByteArray()), is);
+		return new HeaderSplit(id[0], comments[0], replay, consumed.size());
+	}
+}
@@ -0,0 +1,120 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ Locates Ogg Vorbis files beneath a directory.
+ */
+class LibraryFiles
+{
+	/**
+	 @return true if the file name has an extension commonly used for Ogg Vorbis audio (.ogg or .oga)
+	 */
+	static boolean isCandidate(String fileName)
+	{
+		int dot = fileName.lastIndexOf('.');
+		if (dot != -1)
+		{
+			String ext = fileName.substring(dot + 1);
+			return ext.equalsIgnoreCase("ogg") || ext.equalsIgnoreCase("oga");
+		}
+		else
+			return false;
+	}
+
+	/**
+	 Lazily iterate the candidate files beneath the root, depth first.  Only one directory
+	 listing is held in memory per level of the tree.  Unreadable directories are skipped.
+	 */
+	static Iterable<File> iterate(final File root)
+	{
+		return new Iterable<File>()
+		{
+			public Iterator<File> iterator()
+			{
+				return new TreeIterator(root);
+			}
+		};
+	}
+
+	private static class TreeIterator
+		implements Iterator<File>
+	{
+		/**one listing per directory level currently being visited*/
+		private ArrayDeque<Iterator<File>> stack;
+		private File next;
+
+		TreeIterator(File root)
+		{
+			stack = new ArrayDeque<Iterator<File>>();
+			push(root);
+		}
+
+		private void push(File dir)
+		{
+			File[] children = dir.listFiles();
+			if (children != null)
+			{
+				Arrays.sort(children);
+				stack.push(Arrays.asList(children).iterator());
+			}
+		}
+
+		public boolean hasNext()
+		{
+			while (next == null && !stack.isEmpty())
+			{
+				Iterator<File> level = stack.peek();
+				if (level.hasNext())
+				{
+					File f = level.next();
+					if (f.isDirectory())
+						push(f);
+					else if (isCandidate(f.getName()))
+						next = f;
+				}
+				else
+					stack.pop();
+			}
+
+			return next != null;
+		}
+
+		public File next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			File f = next;
+			next = null;
+			return f;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
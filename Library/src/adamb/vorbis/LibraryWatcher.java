@@ -0,0 +1,554 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Watches a library for changes and re-reads only the files which changed, so a catalog
+ can follow the disk without full rescans.
+ <p>
+ Every directory below the root is registered with a {@link WatchService}.  A file is
+ re-read once it has had no events for the quiet period, so a burst of writes to one file
+ costs one read.  Results go to the listeners as {@link FileComments}, exactly as from a
+ {@link BatchCommentReader}: {@link TagIndex} and {@link DirectoryTagFilter} can be
+ registered directly.  A file which was deleted is reported with a
+ {@link FileNotFoundException} as its error.
+ </p>
+ <p>
+ When the watch service loses events (an overflow) the watcher falls back to a sweep: the
+ tree is walked and every file whose size or modification time differs from when it was
+ last seen is re-read.  {@link #requestSweep()} starts one on demand.
+ </p>
+ <p>
+ The watcher only reports changes; scan the library once first to build the catalog.
+ Files are read and listeners are called on the watcher's own thread.  A listener which
+ throws does not stop the watcher; the first such exception is kept for
+ {@link #getListenerFailure()}.
+ </p>
+ */
+public class LibraryWatcher
+	implements Closeable
+{
+	/**how long the thread waits for events before checking for a sweep request*/
+	private static final long IDLE_POLL_MILLIS = 1000;
+
+	private Path root;
+	private long quietNanos;
+	private CopyOnWriteArrayList<BatchCommentReader.Listener> listeners;
+	private volatile TagCache cache;
+	private volatile boolean sweepRequested;
+	private volatile boolean closed;
+	private volatile RuntimeException listenerFailure;
+
+	//used only on the watcher thread once started
+	private WatchService watchService;
+	private HashMap<WatchKey, Path> keys;
+	private HashSet<Path> registered;
+	/**size and modification time of each known file when last read*/
+	private HashMap<Path, long[]> known;
+	/**
+	 files awaiting a read, in order of when they become due.  Every file waits the same
+	 quiet period from when it is queued so insertion order is due order.
+	 */
+	private LinkedHashMap<Path, Long> pending;
+	private Thread thread;
+
+	/**
+	 @param quietMillis how long a file must go without changing before it is read
+	 */
+	public LibraryWatcher(File root, long quietMillis)
+	{
+		this.root = root.getAbsoluteFile().toPath();
+		this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+		listeners = new CopyOnWriteArrayList<BatchCommentReader.Listener>();
+		keys = new HashMap<WatchKey, Path>();
+		registered = new HashSet<Path>();
+		known = new HashMap<Path, long[]>();
+		pending = new LinkedHashMap<Path, Long>();
+	}
+
+	/**
+	 @param listener a receiver of changed files' comments
+	 */
+	public void addListener(BatchCommentReader.Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(BatchCommentReader.Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 Read changed files through a cache, which is updated as a side effect.
+	 @param cache the cache or null to read the files directly
+	 */
+	public void setCache(TagCache cache)
+	{
+		this.cache = cache;
+	}
+
+	/**
+	 Register the directories, note the current state of every file and start watching.
+	 The registration walk happens on the calling thread so changes made after this returns
+	 are seen.
+	 */
+	public synchronized void start()
+	throws IOException
+	{
+		if (thread != null)
+			throw new IllegalStateException("Already started");
+
+		watchService = root.getFileSystem().newWatchService();
+		walk(root, false);
+
+		thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				watch();
+			}
+		}, "LibraryWatcher " + root);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 Ask the watcher to sweep the whole tree for changes it may have missed.
+	 */
+	public void requestSweep()
+	{
+		sweepRequested = true;
+	}
+
+	/**
+	 @return the first exception thrown by a listener, or null if none has failed
+	 */
+	public RuntimeException getListenerFailure()
+	{
+		return listenerFailure;
+	}
+
+	/**
+	 Stop watching and wait for the watcher thread to finish.
+	 */
+	public void close()
+	throws IOException
+	{
+		closed = true;
+		if (watchService != null)
+			watchService.close();
+
+		if (thread != null && thread != Thread.currentThread())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void watch()
+	{
+		try
+		{
+			while (!closed)
+			{
+				long wait = TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS);
+				if (!pending.isEmpty())
+					wait = Math.max(0, Math.min(wait, pending.values().iterator().next().longValue() - System.nanoTime()));
+
+				WatchKey key = watchService.poll(wait, TimeUnit.NANOSECONDS);
+				while (key != null)
+				{
+					handle(key);
+					key = watchService.poll();
+				}
+
+				if (sweepRequested)
+				{
+					sweepRequested = false;
+					sweep();
+				}
+
+				readDue();
+			}
+		}
+		catch (ClosedWatchServiceException cwse)  //closed
+		{
+		}
+		catch (InterruptedException ie)
+		{
+		}
+	}
+
+	private void handle(WatchKey key)
+	{
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event: key.pollEvents())
+		{
+			if (event.kind() == OVERFLOW)
+				sweepRequested = true;
+			else if (dir != null)
+			{
+				Path child = dir.resolve((Path)event.context());
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+				{
+					//a directory replacing a deleted one may still be registered under its old key
+					for (Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator(); it.hasNext(); )
+					{
+						Map.Entry<WatchKey, Path> me = it.next();
+						if (me.getValue().startsWith(child))
+						{
+							me.getKey().cancel();
+							registered.remove(me.getValue());
+							it.remove();
+						}
+					}
+					walk(child, true);  //files may have been added before it was registered
+				}
+				else if (LibraryFiles.isCandidate(child.getFileName().toString()))
+					queue(child);
+				else if (event.kind() == ENTRY_DELETE && registered.contains(child))
+					forgetTree(child);  //a directory deleted or moved away
+			}
+		}
+
+		if (!key.reset() && keys.remove(key) != null)  //the directory is gone
+		{
+			registered.remove(dir);
+			forgetTree(dir);
+		}
+	}
+
+	/**
+	 Queue a file to be read once it has been quiet, restarting its wait if already queued.
+	 */
+	private void queue(Path file)
+	{
+		pending.remove(file);
+		pending.put(file, Long.valueOf(System.nanoTime() + quietNanos));
+	}
+
+	/**
+	 Queue the known files beneath a path which has been deleted or moved away.
+	 */
+	private void forgetTree(Path path)
+	{
+		for (Path p: new ArrayList<Path>(known.keySet()))
+		{
+			if (p.startsWith(path))
+				queue(p);
+		}
+	}
+
+	private void readDue()
+	{
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator();
+		while (it.hasNext() && !closed)
+		{
+			Map.Entry<Path, Long> entry = it.next();
+			if (entry.getValue().longValue() - now > 0)
+				break;
+
+			it.remove();
+			read(entry.getKey());
+		}
+	}
+
+	private void read(Path p)
+	{
+		File f = p.toFile();
+		FileComments fc;
+		BasicFileAttributes attrs = stat(p);
+		if (attrs != null && attrs.isRegularFile())
+		{
+			TagCache c = cache;
+			try
+			{
+				fc = c != null ? FileComments.read(f, c) : FileComments.read(f, true);
+			}
+			catch (RuntimeException re)  //a header the parser chokes on
+			{
+				fc = new FileComments(f, new IOException(re));
+			}
+			fc.size = attrs.size();
+			fc.lastModified = attrs.lastModifiedTime().toMillis();
+			known.put(p, new long[] {fc.size, fc.lastModified});
+		}
+		else if (known.remove(p) != null)
+			fc = new FileComments(f, new FileNotFoundException(f.getPath() + " was deleted"));
+		else  //created and deleted again before it was read
+			return;
+
+		for (BatchCommentReader.Listener listener: listeners)
+		{
+			try
+			{
+				listener.fileRead(fc);
+			}
+			catch (RuntimeException re)
+			{
+				if (listenerFailure == null)
+					listenerFailure = re;
+			}
+		}
+	}
+
+	/**
+	 Walk the tree comparing every file with what was last seen.  New, changed and deleted
+	 files are queued.
+	 */
+	private void sweep()
+	{
+		Set<Path> seen = walk(root, false);
+		for (Path p: new ArrayList<Path>(known.keySet()))
+		{
+			if (!seen.contains(p))
+				queue(p);
+		}
+	}
+
+	/**
+	 Register every directory beneath and including the given one and note its files.
+	 @param queueAll queue every file for reading rather than only new or changed ones
+	 @return the files found
+	 */
+	private Set<Path> walk(Path start, final boolean queueAll)
+	{
+		final Set<Path> seen = new HashSet<Path>(Util.calcHashCapacity(known.size()));
+		try
+		{
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+			{
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				{
+					if (!registered.contains(dir))
+					{
+						try
+						{
+							keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+							registered.add(dir);
+						}
+						catch (IOException ioe)  //vanished or unreadable
+						{
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					if (attrs.isRegularFile() && LibraryFiles.isCandidate(file.getFileName().toString()))
+					{
+						seen.add(file);
+						long[] last = known.get(file);
+						long mtime = attrs.lastModifiedTime().toMillis();
+						if (queueAll)
+							queue(file);
+						else if (last == null && thread == null)  //the initial walk
+							known.put(file, new long[] {attrs.size(), mtime});
+						else if (last == null || last[0] != attrs.size() || last[1] != mtime)
+							queue(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(Path file, IOException exc)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException ioe)
+		{
+		}
+		return seen;
+	}
+
+	private static BasicFileAttributes stat(Path p)
+	{
+		try
+		{
+			return Files.readAttributes(p, BasicFileAttributes.class);
+		}
+		catch (IOException ioe)
+		{
+			return null;
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void libraryWatcherTest()
+		throws Exception
+		{
+			File root = new File("deleteme library");
+			File album = new File(root, "album");
+			album.mkdirs();
+			File existing = new File(root, "existing.ogg");
+			Util.copyFile(new File("test oggs", "error free.ogg"), existing);
+
+			final LinkedBlockingQueue<FileComments> results = new LinkedBlockingQueue<FileComments>();
+			LibraryWatcher watcher = new LibraryWatcher(root, 100);
+			//a failing listener neither stops the watcher nor the other listeners
+			final IllegalStateException failure = new IllegalStateException("listener failed");
+			watcher.addListener(new BatchCommentReader.Listener()
+			{
+				public void fileRead(FileComments result)
+				{
+					throw failure;
+				}
+			});
+			watcher.addListener(new BatchCommentReader.Listener()
+			{
+				public void fileRead(FileComments result)
+				{
+					results.add(result);
+				}
+			});
+			watcher.start();
+			try
+			{
+				//a new file in an existing subdirectory, written in several steps
+				File added = new File(album, "added.ogg");
+				Util.copyFile(new File("test oggs", "error free.ogg"), added);
+				VorbisCommentHeader vch = VorbisIO.readComments(added);
+				vch.fields.add(new CommentField("TITLE", "added"));
+				VorbisIO.writeComments(added, vch);
+
+				FileComments fc = nextTagged(results, added);
+				assertEquals(fc.comments.fields.get(0).toString(), "TITLE=added");
+				assertEquals(fc.size, added.length());
+
+				//no more reads once it is quiet: the next result is a later file
+				File marker = new File(album, "marker.ogg");
+				Util.copyFile(new File("test oggs", "error free.ogg"), marker);
+				fc = results.poll(30, TimeUnit.SECONDS);
+				assertNotNull(fc);
+				assertEquals(fc.file.getName(), "marker.ogg");
+
+				//deleted
+				assertTrue(existing.delete());
+				fc = nextOtherThan(results, marker);
+				assertEquals(fc.file.getName(), "existing.ogg");
+				assertTrue(fc.error instanceof FileNotFoundException);
+
+				//a directory deleted and created again is still watched
+				assertTrue(added.delete() && marker.delete() && album.delete());
+				Set<String> deleted = new TreeSet<String>();
+				for (int i = 0; i < 2; i++)
+				{
+					fc = results.poll(30, TimeUnit.SECONDS);
+					assertNotNull(fc);
+					assertTrue(fc.error instanceof FileNotFoundException);
+					deleted.add(fc.file.getName());
+				}
+				assertEquals(deleted, new TreeSet<String>(Arrays.asList("added.ogg", "marker.ogg")));
+
+				assertTrue(album.mkdir());
+				File again = new File(album, "again.ogg");
+				Util.copyFile(new File("test oggs", "error free.ogg"), again);
+				fc = results.poll(30, TimeUnit.SECONDS);
+				assertNotNull(fc);
+				assertEquals(fc.file.getName(), "again.ogg");
+				assertNotNull(fc.comments);
+
+				//the new directory reports changes
+				VorbisIO.writeComments(again, vch);
+				fc = nextTagged(results, again);
+				assertEquals(fc.comments.fields.get(0).toString(), "TITLE=added");
+
+				//a sweep finds nothing new: the next result is a file written afterwards
+				watcher.requestSweep();
+				Util.copyFile(new File("test oggs", "error free.ogg"), marker);
+				fc = nextOtherThan(results, again);
+				assertEquals(fc.file.getName(), "marker.ogg");
+				assertSame(watcher.getListenerFailure(), failure);
+			}
+			finally
+			{
+				watcher.close();
+				new File(album, "added.ogg").delete();
+				new File(album, "marker.ogg").delete();
+				new File(album, "again.ogg").delete();
+				existing.delete();
+				album.delete();
+				root.delete();
+			}
+		}
+
+		/**
+		 @return the next result for a file with at least one field, passing over reads of
+		 it made before its comments were written, which a slow machine may allow
+		 */
+		private static FileComments nextTagged(BlockingQueue<FileComments> results, File f)
+		throws InterruptedException
+		{
+			while (true)
+			{
+				FileComments fc = results.poll(30, TimeUnit.SECONDS);
+				assertNotNull(fc);
+				assertEquals(fc.file.getName(), f.getName());
+				if (!fc.comments.fields.isEmpty())
+					return fc;
+			}
+		}
+
+		/**
+		 @param skip a file whose results are passed over, since how many reads a copy
+		 causes depends on how its writes are batched
+		 @return the next result for another file
+		 */
+		private static FileComments nextOtherThan(BlockingQueue<FileComments> results, File skip)
+		throws InterruptedException
+		{
+			while (true)
+			{
+				FileComments fc = results.poll(30, TimeUnit.SECONDS);
+				assertNotNull(fc);
+				if (!fc.file.getName().equals(skip.getName()))
+					return fc;
+			}
+		}
+	}
+}
@@ -0,0 +1,682 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.zip.CRC32;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Scans a whole library into a {@link ScanManifest}, surviving crashes and skipping work
+ already done.
+ <p>
+ The tree is walked in sorted order.  As each file is finished its entry is appended to a
+ checkpoint log (<i>manifest</i>.partial) and, once all of a directory's files are
+ finished, a marker for the directory.  If the scan dies, the next run replays the log:
+ finished files are not read again and directories with a marker are not even listed for
+ files.  A torn record at the end of the log is discarded.  When the scan completes the
+ manifest is written and the log deleted.
+ </p>
+ <p>
+ An incremental scan also compares each file's size and modification time with the
+ previous manifest and only reads the files that changed.
+ </p>
+ <p>
+ The manifest being built and the previous one are held in memory while the scan runs;
+ see {@link ScanManifest}.
+ </p>
+ */
+public class ResumableScan
+{
+	private static final int LOG_MAGIC = 0x4A565350;  //"JVSP"
+	private static final int LOG_VERSION = 1;
+	private static final byte FILE_RECORD = 1;
+	private static final byte DIRECTORY_RECORD = 2;
+
+	private File root;
+	private Path rootPath;
+	private File manifestFile;
+	private File logFile;
+	private BatchExecutor executor;
+	private boolean incremental;
+	private int syncInterval;
+	private int shard;
+	private int shardCount;
+
+	private int readCount;
+	private int reusedCount;
+	private int restoredCount;
+	/**the first exception thrown by the listener, which stops the scan*/
+	private volatile RuntimeException listenerFailure;
+
+	/**
+	 @param manifestFile where the finished manifest is written.  The checkpoint log is kept
+	 beside it.
+	 */
+	public ResumableScan(File root, File manifestFile, BatchExecutor executor)
+	{
+		this.root = root.getAbsoluteFile();
+		this.rootPath = this.root.toPath();
+		this.manifestFile = manifestFile;
+		this.logFile = new File(manifestFile.getPath() + ".partial");
+		this.executor = executor;
+		incremental = true;
+		syncInterval = 1000;
+		shard = 0;
+		shardCount = 1;
+	}
+
+	/**
+	 Whether unchanged files (by size and modification time) are taken from the previous
+	 manifest rather than read.  The default is true.
+	 */
+	public void setIncremental(boolean incremental)
+	{
+		this.incremental = incremental;
+	}
+
+	/**
+	 How many log records may be written between forcing the log to disk.  A crash loses at
+	 most this much work.  The default is 1000.
+	 */
+	public void setSyncInterval(int records)
+	{
+		syncInterval = Math.max(1, records);
+	}
+
+	/**
+	 Scan only the files of one shard of the library.  The manifest will contain only those
+	 files.
+	 @see ShardedScan#shardOf(String, int)
+	 */
+	public void setShard(int shard, int shardCount)
+	{
+		if (shardCount < 1 || shard < 0 || shard >= shardCount)
+			throw new IllegalArgumentException("Invalid shard " + shard + " of " + shardCount);
+		this.shard = shard;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 Scan the library, resuming an interrupted scan if there is one.
+	 @param listener receives each file read or taken from the previous manifest during this
+	 run.  Files restored from the checkpoint log were reported by the run that read them.
+	 May be null.  If it throws, no more files are started, the files already started are
+	 finished and logged but not reported, and the exception is rethrown with the log kept
+	 so the scan can be resumed.
+	 @return the complete manifest, which has also been saved
+	 @throws IOException if the checkpoint log or manifest can't be written.  The log is
+	 kept so the scan can be resumed.
+	 */
+	public ScanManifest run(final BatchCommentReader.Listener listener)
+	throws IOException, InterruptedException
+	{
+		readCount = 0;
+		reusedCount = 0;
+		restoredCount = 0;
+		listenerFailure = null;
+
+		ScanManifest previous = null;
+		if (incremental && manifestFile.exists())
+		{
+			try
+			{
+				previous = ScanManifest.load(manifestFile);
+				if (!previous.getRoot().equals(root.getPath()))
+					previous = null;
+			}
+			catch (IOException ioe)  //unreadable; everything will be read
+			{
+				previous = null;
+			}
+		}
+
+		final ScanManifest manifest = new ScanManifest(root.getPath());
+		final Checkpoint checkpoint = new Checkpoint(manifest);
+		restoredCount = manifest.size();
+		final ScanManifest prev = previous;
+		try
+		{
+			executor.run(new Walker(checkpoint), new BatchExecutor.FileTask()
+			{
+				public void run(File f)
+				{
+					Path p = f.toPath();
+					String rel = ScanManifest.relativePath(rootPath, p);
+					ScanManifest.Entry entry = null;
+					try
+					{
+						BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+						long mtime = attrs.lastModifiedTime().toMillis();
+						ScanManifest.Entry old = prev != null ? prev.get(rel) : null;
+						if (old != null && old.isCurrent(attrs.size(), mtime))
+						{
+							entry = old;
+							synchronized (ResumableScan.this)
+							{
+								reusedCount++;
+							}
+						}
+						else
+						{
+							entry = ScanManifest.Entry.of(rel, attrs.size(), mtime, FileComments.read(f, true));
+							synchronized (ResumableScan.this)
+							{
+								readCount++;
+							}
+						}
+					}
+					catch (IOException ioe)  //deleted since it was listed
+					{
+					}
+
+					checkpoint.fileDone(rel, entry);
+					if (entry != null && listener != null && listenerFailure == null)
+					{
+						try
+						{
+							listener.fileRead(entry.toFileComments(root));
+						}
+						catch (RuntimeException re)
+						{
+							synchronized (ResumableScan.this)
+							{
+								if (listenerFailure == null)
+									listenerFailure = re;
+							}
+						}
+					}
+				}
+			});
+		}
+		finally
+		{
+			checkpoint.close();
+		}
+
+		checkpoint.throwIfFailed();
+		if (listenerFailure != null)
+			throw listenerFailure;
+
+		manifest.save(manifestFile);
+		logFile.delete();
+		return manifest;
+	}
+
+	/**@return the number of files parsed by the last run*/
+	public synchronized int getReadCount()
+	{
+		return readCount;
+	}
+
+	/**@return the number of unchanged files taken from the previous manifest by the last run*/
+	public synchronized int getReusedCount()
+	{
+		return reusedCount;
+	}
+
+	/**@return the number of files restored from the checkpoint log by the last run*/
+	public synchronized int getRestoredCount()
+	{
+		return restoredCount;
+	}
+
+	/**
+	 The checkpoint log and the bookkeeping of which directories are finished.
+	 */
+	private class Checkpoint
+	{
+		private ScanManifest manifest;
+		private Set<String> finishedDirs;
+		/**files still to be finished in each directory being scanned*/
+		private Map<String, int[]> outstanding;
+		private FileOutputStream fos;
+		private DataOutputStream out;
+		private ByteArrayOutputStream record;
+		private DataOutputStream recordOut;
+		private CRC32 crc;
+		private int unsynced;
+		private IOException failure;
+
+		/**
+		 Replay the existing log into the manifest, truncate any torn record and open the log
+		 for appending.
+		 */
+		Checkpoint(ScanManifest manifest)
+		throws IOException
+		{
+			this.manifest = manifest;
+			finishedDirs = new HashSet<String>();
+			outstanding = new HashMap<String, int[]>();
+			record = new ByteArrayOutputStream(1024);
+			recordOut = new DataOutputStream(record);
+			crc = new CRC32();
+
+			long goodLength = replay();
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			try
+			{
+				if (goodLength == 0)
+				{
+					raf.setLength(0);
+					raf.write(header());
+				}
+				else
+					raf.setLength(goodLength);
+			}
+			finally
+			{
+				raf.close();
+			}
+
+			fos = new FileOutputStream(logFile, true);
+			out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+		}
+
+		/**
+		 @return the length of the valid part of the log or 0 if there is no usable log
+		 */
+		private long replay()
+		{
+			if (!logFile.exists())
+				return 0;
+
+			long good = 0;
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+				try
+				{
+					byte[] header = header();
+					byte[] logHeader = new byte[header.length];
+					in.readFully(logHeader);
+					if (!Arrays.equals(header, logHeader))  //another version, library or shard
+						return 0;
+					good = header.length;
+
+					byte[] buf = new byte[1024];
+					while (true)
+					{
+						int len = in.readInt();
+						int sum = in.readInt();
+						if (len < 1)
+							break;
+						if (len > buf.length)
+							buf = new byte[len];
+						in.readFully(buf, 0, len);
+						crc.reset();
+						crc.update(buf, 0, len);
+						if ((int)crc.getValue() != sum)
+							break;
+
+						DataInputStream rec = new DataInputStream(new ByteArrayInputStream(buf, 1, len - 1));
+						if (buf[0] == FILE_RECORD)
+							manifest.put(ScanManifest.readEntry(rec));
+						else if (buf[0] == DIRECTORY_RECORD)
+							finishedDirs.add(rec.readUTF());
+						else
+							break;
+						good += 8 + len;
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch (IOException ioe)  //the end of the log or a torn record
+			{
+			}
+
+			return good;
+		}
+
+		private byte[] header()
+		throws IOException
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			dos.writeInt(LOG_MAGIC);
+			dos.writeInt(LOG_VERSION);
+			dos.writeUTF(root.getPath());
+			dos.writeInt(shard);
+			dos.writeInt(shardCount);
+			return bos.toByteArray();
+		}
+
+		/**@return true if the directory's files were all finished by an earlier run*/
+		synchronized boolean isFinished(String dir)
+		{
+			return finishedDirs.contains(dir);
+		}
+
+		/**@return true if the file was finished by an earlier run*/
+		synchronized boolean isFinished(String dir, String file)
+		{
+			return manifest.get(dir.length() > 0 ? dir + '/' + file : file) != null;
+		}
+
+		/**
+		 Note the number of files about to be scanned in a directory.
+		 */
+		synchronized void directoryListed(String dir, int nFiles)
+		{
+			if (nFiles == 0)
+				directoryDone(dir);
+			else
+				outstanding.put(dir, new int[] {nFiles});
+		}
+
+		/**
+		 @param entry the result or null if the file has vanished
+		 */
+		synchronized void fileDone(String rel, ScanManifest.Entry entry)
+		{
+			if (entry != null)
+			{
+				manifest.put(entry);
+				try
+				{
+					recordOut.writeByte(FILE_RECORD);
+					ScanManifest.writeEntry(recordOut, entry);
+					append();
+				}
+				catch (IOException ioe)
+				{
+					fail(ioe);
+				}
+			}
+
+			int slash = rel.lastIndexOf('/');
+			String dir = slash != -1 ? rel.substring(0, slash) : "";
+			int[] left = outstanding.get(dir);
+			if (left != null && --left[0] == 0)
+			{
+				outstanding.remove(dir);
+				directoryDone(dir);
+			}
+		}
+
+		private void directoryDone(String dir)
+		{
+			finishedDirs.add(dir);
+			try
+			{
+				recordOut.writeByte(DIRECTORY_RECORD);
+				recordOut.writeUTF(dir);
+				append();
+			}
+			catch (IOException ioe)
+			{
+				fail(ioe);
+			}
+		}
+
+		/**Write the buffered record to the log with its length and checksum.*/
+		private void append()
+		throws IOException
+		{
+			if (failure != null)
+			{
+				record.reset();
+				return;
+			}
+
+			crc.reset();
+			crc.update(record.toByteArray());
+			out.writeInt(record.size());
+			out.writeInt((int)crc.getValue());
+			record.writeTo(out);
+			record.reset();
+
+			if (++unsynced >= syncInterval)
+			{
+				out.flush();
+				fos.getFD().sync();
+				unsynced = 0;
+			}
+		}
+
+		private void fail(IOException ioe)
+		{
+			record.reset();
+			if (failure == null)
+				failure = ioe;
+		}
+
+		synchronized void close()
+		throws IOException
+		{
+			try
+			{
+				out.flush();
+				fos.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+
+		synchronized void throwIfFailed()
+		throws IOException
+		{
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 Lists the tree in sorted order, depth first, handing out the files which still need
+	 scanning.  Runs on the thread which calls {@link ResumableScan#run}.
+	 */
+	private class Walker
+		implements Iterable<File>, Iterator<File>
+	{
+		private Checkpoint checkpoint;
+		private ArrayDeque<Iterator<File>> dirs;
+		private Iterator<File> files;
+
+		Walker(Checkpoint checkpoint)
+		{
+			this.checkpoint = checkpoint;
+			dirs = new ArrayDeque<Iterator<File>>();
+			files = Collections.<File>emptyList().iterator();
+			enter(root);
+		}
+
+		public Iterator<File> iterator()
+		{
+			return this;
+		}
+
+		private void enter(File dir)
+		{
+			File[] children = dir.listFiles();
+			if (children == null)
+				return;
+			Arrays.sort(children);
+
+			String rel = ScanManifest.relativePath(rootPath, dir.toPath());
+			boolean finished = checkpoint.isFinished(rel);
+			List<File> subdirs = new ArrayList<File>();
+			List<File> todo = new ArrayList<File>();
+			for (File child: children)
+			{
+				if (child.isDirectory())
+				{
+					//don't follow links to directories, which could form cycles
+					if (!Files.isSymbolicLink(child.toPath()))
+						subdirs.add(child);
+				}
+				else if (!finished && LibraryFiles.isCandidate(child.getName()) && !checkpoint.isFinished(rel, child.getName()))
+				{
+					String path = rel.length() > 0 ? rel + '/' + child.getName() : child.getName();
+					if (shardCount == 1 || ShardedScan.shardOf(path, shardCount) == shard)
+						todo.add(child);
+				}
+			}
+
+			if (!finished)
+				checkpoint.directoryListed(rel, todo.size());
+			dirs.push(subdirs.iterator());
+			files = todo.iterator();
+		}
+
+		public boolean hasNext()
+		{
+			if (listenerFailure != null)
+				return false;
+
+			while (!files.hasNext() && !dirs.isEmpty())
+			{
+				Iterator<File> level = dirs.peek();
+				if (level.hasNext())
+					enter(level.next());
+				else
+					dirs.pop();
+			}
+			return files.hasNext();
+		}
+
+		public File next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return files.next();
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void resumableScanTest()
+		throws Exception
+		{
+			File root = new File("deleteme scan");
+			File manifestFile = new File("deleteme.manifest");
+			String[] names = {"a/1.ogg", "a/2.ogg", "a/b/3.ogg", "a/b/4.ogg", "c/5.ogg", "c/6.ogg", "7.ogg", "c/not ogg.txt"};
+			try
+			{
+				for (String name: names)
+				{
+					File f = new File(root, name);
+					f.getParentFile().mkdirs();
+					Util.copyFile(new File("test oggs", "error free.ogg"), f);
+				}
+				Util.copyFile(new File("test oggs", "not really ogg.ogg"), new File(root, "c/6.ogg"));
+
+				//stopped by the listener after three files, as if killed
+				ResumableScan scan = new ResumableScan(root, manifestFile, new BatchExecutor(1));
+				final int[] heard = new int[1];
+				try
+				{
+					scan.run(new BatchCommentReader.Listener()
+					{
+						public void fileRead(FileComments result)
+						{
+							if (++heard[0] == 3)
+								throw new IllegalStateException("stop");
+						}
+					});
+					fail();
+				}
+				catch (IllegalStateException ise)
+				{
+					assertEquals(ise.getMessage(), "stop");
+				}
+				assertEquals(heard[0], 3);
+				int done = scan.getReadCount();  //files already started were finished
+				assertTrue(done >= 3 && done < 7, String.valueOf(done));
+				assertFalse(manifestFile.exists());
+
+				//a torn record at the end of the log is ignored
+				FileOutputStream fos = new FileOutputStream(scan.logFile, true);
+				fos.write(new byte[] {0, 0, 1, 0, 1, 2});
+				fos.close();
+
+				//resumed
+				scan = new ResumableScan(root, manifestFile, new BatchExecutor(2));
+				final List<String> reported = Collections.synchronizedList(new ArrayList<String>());
+				ScanManifest manifest = scan.run(new BatchCommentReader.Listener()
+				{
+					public void fileRead(FileComments result)
+					{
+						reported.add(result.file.getName());
+					}
+				});
+				assertEquals(scan.getRestoredCount(), done);
+				assertEquals(scan.getReadCount(), 7 - done);
+				assertEquals(reported.size(), 7 - done);
+				assertEquals(manifest.size(), 7);
+				assertFalse(scan.logFile.exists());
+				assertEquals(manifest.getEntries().iterator().next().path, "7.ogg");
+				assertNotNull(manifest.get("a/b/3.ogg").getComments());
+				assertNotNull(manifest.get("c/6.ogg").getError());
+
+				//incremental: nothing changed
+				scan = new ResumableScan(root, manifestFile, new BatchExecutor(2));
+				scan.run(null);
+				assertEquals(scan.getReadCount(), 0);
+				assertEquals(scan.getReusedCount(), 7);
+
+				//one file changed and one deleted
+				File changed = new File(root, "a/b/4.ogg");
+				VorbisCommentHeader vch = VorbisIO.readComments(changed);
+				vch.fields.add(new CommentField("TITLE", "changed"));
+				VorbisIO.writeComments(changed, vch);
+				changed.setLastModified(changed.lastModified() + 2000);
+				new File(root, "c/5.ogg").delete();
+				manifest = scan.run(null);
+				assertEquals(scan.getReadCount(), 1);
+				assertEquals(scan.getReusedCount(), 5);
+				assertEquals(manifest.size(), 6);
+				assertEquals(manifest.get("a/b/4.ogg").getComments().fields.get(0).toString(), "TITLE=changed");
+				assertEquals(ScanManifest.load(manifestFile).size(), 6);
+			}
+			finally
+			{
+				for (String name: names)
+					new File(root, name).delete();
+				new File(root, "a/b").delete();
+				new File(root, "a").delete();
+				new File(root, "c").delete();
+				root.delete();
+				manifestFile.delete();
+				new File(manifestFile.getPath() + ".partial").delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ The result of scanning a library: for every file, its size, modification time and either
+ its comments or why they couldn't be read.  Files are identified by their path relative to
+ the library root, with '/' separators on every platform, and are kept in path order.
+ <p>
+ A manifest object holds all its entries, with their encoded comments, in memory.  Its
+ file is a stream of entries in path order, so {@link ShardedScan} merges shard manifests
+ an entry at a time without loading them.
+ </p>
+ */
+public class ScanManifest
+{
+	static final int MAGIC = 0x4A56534D;  //"JVSM"
+	static final int VERSION = 1;
+
+	/**One file's scan result.*/
+	public static class Entry
+	{
+		/**The path relative to the library root, '/' separated.*/
+		public final String path;
+		public final long size;
+		/**Modification time in milliseconds since the epoch.*/
+		public final long lastModified;
+		/**encoded by CommentCodec, null for an error*/
+		byte[] comments;
+		String error;
+
+		Entry(String path, long size, long lastModified, byte[] comments, String error)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.comments = comments;
+			this.error = error;
+		}
+
+		/**
+		 Make an entry from a read result.
+		 */
+		static Entry of(String path, long size, long lastModified, FileComments fc)
+		{
+			if (fc.comments != null)
+				return new Entry(path, size, lastModified, CommentCodec.encode(fc.comments), null);
+			else
+				return new Entry(path, size, lastModified, null, fc.error.getMessage() != null ? fc.error.getMessage() : fc.error.toString());
+		}
+
+		/**
+		 @return the comments or null if the file couldn't be read
+		 */
+		public VorbisCommentHeader getComments()
+		throws IOException
+		{
+			return comments != null ? CommentCodec.decode(comments) : null;
+		}
+
+		/**
+		 @return why the file couldn't be read or null if it was read
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+		/**
+		 @return the entry as a batch read result, for passing to a {@link BatchCommentReader.Listener}
+		 */
+		public FileComments toFileComments(File root)
+		{
+			File f = new File(root, path.replace('/', File.separatorChar));
+			FileComments fc;
+			try
+			{
+				fc = comments != null ? new FileComments(f, getComments()) : new FileComments(f, new IOException(error));
+			}
+			catch (IOException ioe)
+			{
+				fc = new FileComments(f, ioe);
+			}
+			fc.size = size;
+			fc.lastModified = lastModified;
+			return fc;
+		}
+
+		/**
+		 @return true if the file has not changed since the entry was made, judging by its metadata
+		 */
+		boolean isCurrent(long size, long lastModified)
+		{
+			return this.size == size && this.lastModified == lastModified;
+		}
+	}
+
+	private String root;
+	private TreeMap<String, Entry> entries;
+
+	/**
+	 @param root the library root the paths are relative to
+	 */
+	public ScanManifest(String root)
+	{
+		this.root = root;
+		entries = new TreeMap<String, Entry>();
+	}
+
+	/**
+	 @return the library root the paths are relative to, as given when the manifest was made
+	 */
+	public String getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 @return the entry for a relative path or null
+	 */
+	public Entry get(String path)
+	{
+		return entries.get(path);
+	}
+
+	/**
+	 Add or replace an entry.
+	 */
+	public void put(Entry entry)
+	{
+		entries.put(entry.path, entry);
+	}
+
+	/**
+	 @return the entries in path order
+	 */
+	public Collection<Entry> getEntries()
+	{
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 @return the path of a file relative to the root, '/' separated
+	 */
+	static String relativePath(Path root, Path file)
+	{
+		Path rel = root.relativize(file);
+		StringBuilder sb = new StringBuilder(64);
+		for (Path part: rel)
+		{
+			if (sb.length() > 0)
+				sb.append('/');
+			sb.append(part.toString());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 Write the manifest to a file, replacing it atomically where the platform allows.
+	 */
+	public void save(File f)
+	throws IOException
+	{
+		File tmp = new File(f.getPath() + ".tmp");
+		Writer w = new Writer(new FileOutputStream(tmp), root);
+		try
+		{
+			for (Entry entry: entries.values())
+				w.write(entry);
+		}
+		finally
+		{
+			w.close();
+		}
+
+		if (!tmp.renameTo(f))
+		{
+			f.delete();
+			if (!tmp.renameTo(f))
+				throw new IOException("Unable to replace " + f.getPath());
+		}
+	}
+
+	/**
+	 Read a manifest written by {@link #save(File)}.
+	 */
+	public static ScanManifest load(File f)
+	throws IOException
+	{
+		Reader r = new Reader(new FileInputStream(f));
+		try
+		{
+			ScanManifest manifest = new ScanManifest(r.getRoot());
+			Entry entry;
+			while ((entry = r.read()) != null)
+				manifest.put(entry);
+			return manifest;
+		}
+		finally
+		{
+			r.close();
+		}
+	}
+
+	static void writeEntry(DataOutput out, Entry entry)
+	throws IOException
+	{
+		out.writeUTF(entry.path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.lastModified);
+		if (entry.comments != null)
+		{
+			out.writeBoolean(true);
+			out.writeInt(entry.comments.length);
+			out.write(entry.comments);
+		}
+		else
+		{
+			out.writeBoolean(false);
+			out.writeUTF(entry.error.length() > 1024 ? entry.error.substring(0, 1024) : entry.error);
+		}
+	}
+
+	static Entry readEntry(DataInput in)
+	throws IOException
+	{
+		String path = in.readUTF();
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		if (in.readBoolean())
+		{
+			int len = in.readInt();
+			if (len < 0)
+				throw new IOException("Manifest entry is corrupt");
+			byte[] comments = new byte[len];
+			in.readFully(comments);
+			return new Entry(path, size, lastModified, comments, null);
+		}
+		else
+			return new Entry(path, size, lastModified, null, in.readUTF());
+	}
+
+	/**
+	 Writes a manifest one entry at a time.  Entries should be written in path order.
+	 */
+	static class Writer
+		implements Closeable
+	{
+		private DataOutputStream out;
+
+		Writer(OutputStream os, String root)
+		throws IOException
+		{
+			out = new DataOutputStream(new BufferedOutputStream(os, 128 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(root);
+		}
+
+		void write(Entry entry)
+		throws IOException
+		{
+			out.writeBoolean(true);
+			writeEntry(out, entry);
+		}
+
+		/**Write the end marker and close the stream.*/
+		public void close()
+		throws IOException
+		{
+			try
+			{
+				out.writeBoolean(false);
+				out.flush();
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 Reads a manifest one entry at a time.
+	 */
+	static class Reader
+		implements Closeable
+	{
+		private DataInputStream in;
+		private String root;
+
+		Reader(InputStream is)
+		throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(is, 128 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				in.close();
+				throw new IOException("Not a scan manifest or incompatible version");
+			}
+			root = in.readUTF();
+		}
+
+		String getRoot()
+		{
+			return root;
+		}
+
+		/**
+		 @return the next entry or null at the end of the manifest
+		 @throws EOFException if the manifest is truncated
+		 */
+		Entry read()
+		throws IOException
+		{
+			return in.readBoolean() ? readEntry(in) : null;
+		}
+
+		public void close()
+		throws IOException
+		{
+			in.close();
+		}
+	}
+}
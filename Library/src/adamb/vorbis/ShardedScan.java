@@ -0,0 +1,278 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.util.Util;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ Splits one library scan across several processes or hosts.  Each worker scans the files
+ of one shard, chosen by a hash of the file's path relative to the library root, and
+ writes its own sorted {@link ScanManifest}.  {@link #merge(List, File)} then combines the
+ shard manifests into one with a streaming k-way merge.
+ <p>
+ Shard assignment depends only on the relative path so workers may mount the library at
+ different places.  Each worker is a {@link ResumableScan} and so can be restarted and
+ run incrementally.  From the command line:
+ <pre>
+ java adamb.vorbis.ShardedScan scan &lt;root&gt; &lt;shard&gt; &lt;shardCount&gt; &lt;manifest&gt; [threads]
+ java adamb.vorbis.ShardedScan merge &lt;output&gt; &lt;manifest&gt;...
+ </pre>
+ </p>
+ */
+public class ShardedScan
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ShardedScan()
+	{
+	}
+
+	/**
+	 @param path a path relative to the library root, '/' separated
+	 @return the shard the file belongs to, from 0 to shardCount - 1.  The same on every JVM.
+	 */
+	public static int shardOf(String path, int shardCount)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(path.getBytes(UTF8));
+		return (int)(crc.getValue() % shardCount);
+	}
+
+	/**
+	 Scan one shard of a library.
+	 @return the shard's manifest, which has also been saved
+	 */
+	public static ScanManifest scan(File root, int shard, int shardCount, File manifestFile, BatchExecutor executor)
+	throws IOException, InterruptedException
+	{
+		ResumableScan scan = new ResumableScan(root, manifestFile, executor);
+		scan.setShard(shard, shardCount);
+		return scan.run(null);
+	}
+
+	/**
+	 Merge sorted manifests into one.  Only one entry per input is held in memory at a time.
+	 If a path appears in more than one input (shards overlapped) the entry with the later
+	 modification time wins.  The output's root is that of the first input.
+	 */
+	public static void merge(List<File> manifests, File output)
+	throws IOException
+	{
+		if (manifests.isEmpty())
+			throw new IllegalArgumentException("Nothing to merge");
+
+		List<ScanManifest.Reader> readers = new ArrayList<ScanManifest.Reader>(manifests.size());
+		File tmp = new File(output.getPath() + ".tmp");
+		try
+		{
+			for (File f: manifests)
+				readers.add(new ScanManifest.Reader(new FileInputStream(f)));
+
+			PriorityQueue<Head> heads = new PriorityQueue<Head>(manifests.size());
+			for (ScanManifest.Reader r: readers)
+			{
+				ScanManifest.Entry first = r.read();
+				if (first != null)
+					heads.add(new Head(first, r));
+			}
+
+			ScanManifest.Writer w = new ScanManifest.Writer(new FileOutputStream(tmp), readers.get(0).getRoot());
+			try
+			{
+				ScanManifest.Entry last = null;
+				while (!heads.isEmpty())
+				{
+					Head head = heads.poll();
+					ScanManifest.Entry entry = head.entry;
+					if (last != null && last.path.equals(entry.path))
+					{
+						if (entry.lastModified > last.lastModified)
+							last = entry;
+					}
+					else
+					{
+						if (last != null)
+							w.write(last);
+						last = entry;
+					}
+
+					head.entry = head.reader.read();
+					if (head.entry != null)
+						heads.add(head);
+				}
+				if (last != null)
+					w.write(last);
+			}
+			finally
+			{
+				w.close();
+			}
+		}
+		finally
+		{
+			for (ScanManifest.Reader r: readers)
+				r.close();
+		}
+
+		if (!tmp.renameTo(output))
+		{
+			output.delete();
+			if (!tmp.renameTo(output))
+				throw new IOException("Unable to replace " + output.getPath());
+		}
+	}
+
+	/**The current entry of one input to the merge.*/
+	private static class Head
+		implements Comparable<Head>
+	{
+		ScanManifest.Entry entry;
+		ScanManifest.Reader reader;
+
+		Head(ScanManifest.Entry entry, ScanManifest.Reader reader)
+		{
+			this.entry = entry;
+			this.reader = reader;
+		}
+
+		public int compareTo(Head h)
+		{
+			return entry.path.compareTo(h.entry.path);
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			if (args.length >= 5 && args[0].equals("scan"))
+			{
+				int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+				ScanManifest m = scan(new File(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+					new File(args[4]), new BatchExecutor(threads));
+				System.out.println("shard " + args[2] + " of " + args[3] + ": " + m.size() + " files");
+			}
+			else if (args.length >= 3 && args[0].equals("merge"))
+			{
+				List<File> inputs = new ArrayList<File>();
+				for (int i = 2; i < args.length; i++)
+					inputs.add(new File(args[i]));
+				merge(inputs, new File(args[1]));
+			}
+			else
+			{
+				System.err.println("usage: ShardedScan scan <root> <shard> <shardCount> <manifest> [threads]");
+				System.err.println("       ShardedScan merge <output> <manifest>...");
+				System.exit(2);
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void shardedScanTest()
+		throws Exception
+		{
+			File root = new File("deleteme shards");
+			List<File> files = new ArrayList<File>();
+			List<File> manifests = new ArrayList<File>();
+			File merged = new File("deleteme merged.manifest");
+			File single = new File("deleteme single.manifest");
+			try
+			{
+				for (int i = 0; i < 12; i++)
+				{
+					File f = new File(root, "dir" + (i % 3) + "/" + i + ".ogg");
+					f.getParentFile().mkdirs();
+					Util.copyFile(new File("test oggs", "error free.ogg"), f);
+					files.add(f);
+				}
+
+				//one JVM per shard, as on separate hosts
+				String java = new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath();
+				List<Process> workers = new ArrayList<Process>();
+				for (int shard = 0; shard < 3; shard++)
+				{
+					File m = new File("deleteme shard" + shard + ".manifest");
+					manifests.add(m);
+					ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						ShardedScan.class.getName(), "scan", root.getPath(), String.valueOf(shard), "3", m.getPath(), "2");
+					pb.redirectErrorStream(true);
+					pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+					workers.add(pb.start());
+				}
+				for (Process p: workers)
+					assertEquals(p.waitFor(), 0);
+
+				int total = 0;
+				for (File m: manifests)
+					total += ScanManifest.load(m).size();
+				assertEquals(total, 12);
+
+				merge(manifests, merged);
+				ScanManifest all = ScanManifest.load(merged);
+				ScanManifest expected = new ResumableScan(root, single, new BatchExecutor(2)).run(null);
+				assertEquals(all.size(), 12);
+				Iterator<ScanManifest.Entry> it = expected.getEntries().iterator();
+				for (ScanManifest.Entry e: all.getEntries())
+				{
+					ScanManifest.Entry x = it.next();
+					assertEquals(e.path, x.path);
+					assertEquals(e.size, x.size);
+					assertEquals(e.lastModified, x.lastModified);
+					assertTrue(Arrays.equals(e.comments, x.comments));
+				}
+
+				//overlapping inputs don't produce duplicates
+				merge(Arrays.asList(merged, manifests.get(0)), merged);
+				assertEquals(ScanManifest.load(merged).size(), 12);
+			}
+			finally
+			{
+				for (File f: files)
+					f.delete();
+				for (int i = 0; i < 3; i++)
+					new File(root, "dir" + i).delete();
+				root.delete();
+				for (File m: manifests)
+					m.delete();
+				merged.delete();
+				single.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.ogg.*;
+import adamb.util.Util;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ A persistent cache of parsed comment and ID headers.  Entries are keyed by
+ {@link FileIdentity} (path, size, modification time and inode) so an unchanged file is
+ answered from the cache after a single stat and is never opened.  Files which are not Ogg
+ Vorbis are remembered too so they are not re-parsed on every scan.  Failures to read a
+ file, as opposed to parse it, are not cached.
+ <p>
+ The cache is held in memory and written to its file by {@link #save()}.  Register it with
+ {@link VorbisIO#addCommentWriteListener(CommentWriteListener)} to have comment changes
+ written through to the cache.  Files are always read ignoring recoverable errors, as
+ with {@link VorbisIO#readComments(File)}.  The cache is thread safe.
+ </p>
+ */
+public class TagCache
+	implements CommentWriteListener
+{
+	private static final int MAGIC = 0x4A564343;  //"JVCC"
+	private static final int VERSION = 3;
+	
+	//kinds of negative entry, saved so a cached failure is thrown as the same type
+	private static final byte CORRUPT_HEADER = 0;
+	private static final byte INVALID_HEADER = 1;
+	private static final byte CHECKSUM_MISMATCH = 2;
+	private static final byte FOREIGN_PAGE = 3;
+	private static final byte END_OF_STREAM = 4;
+
+	private static class Entry
+	{
+		FileIdentity identity;
+		/**the comments encoded by {@link CommentCodec} or null for a negative entry*/
+		byte[] comments;
+		VorbisIDHeader idHeader;
+		/**why the file could not be read, for a negative entry*/
+		String error;
+		/**the kind of exception for a negative entry, such as CORRUPT_HEADER*/
+		int errorKind;
+	}
+
+	private File cacheFile;
+	private ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 Open a cache, loading it from the file if the file exists.  A cache file that can't be
+	 read (corrupt or from an incompatible version) is ignored and will be overwritten by
+	 the next {@link #save()}.
+	 */
+	public TagCache(File cacheFile)
+	{
+		this.cacheFile = cacheFile;
+		entries = new ConcurrentHashMap<String, Entry>();
+
+		if (cacheFile.exists())
+		{
+			try
+			{
+				load();
+			}
+			catch (IOException ioe)
+			{
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 Get the comments from the cache or, if the file has changed, from the file.
+	 @throws IOException if the file can't be read now or could not be parsed when last read
+	 */
+	public VorbisCommentHeader readComments(File f)
+	throws IOException
+	{
+		return CommentCodec.decode(get(f).comments);
+	}
+
+	/**
+	 Get the ID header from the cache or, if the file has changed, from the file.
+	 @throws IOException if the file can't be read now or could not be parsed when last read
+	 */
+	public VorbisIDHeader readIdHeader(File f)
+	throws IOException
+	{
+		return copy(get(f).idHeader);
+	}
+
+	/**
+	 @return a positive entry for the file
+	 @throws IOException for a negative entry
+	 */
+	private Entry get(File f)
+	throws IOException
+	{
+		//stat before reading so a change made during the read is noticed next time
+		FileIdentity identity = FileIdentity.of(f);
+
+		Entry entry = entries.get(identity.path);
+		if (entry == null || !entry.identity.equals(identity))
+		{
+			entry = new Entry();
+			entry.identity = identity;
+			try
+			{
+				VorbisPacketStream vps = VorbisIO.readHeaders(f, true, BatchCommentReader.BUFFER_SIZE);
+				entry.idHeader = vps.getIDHeader();
+				entry.comments = CommentCodec.encode(vps.getCommentHeader());
+			}
+			catch (IOException ioe)
+			{
+				/*only remember failures caused by the file's contents.  Others, such as a
+				 file deleted since the stat or an I/O error on a network share, may not
+				 happen next time*/
+				int kind = errorKind(ioe);
+				if (kind < 0)
+				{
+					entries.remove(identity.path);
+					throw ioe;
+				}
+				
+				entry.errorKind = kind;
+				entry.error = ioe.getMessage() != null ? ioe.getMessage() : ioe.toString();
+				entry.comments = null;
+				entry.idHeader = null;
+			}
+
+			entries.put(identity.path, entry);
+		}
+
+		if (entry.error != null)
+			throw formatError(entry.errorKind, entry.error);
+		else
+			return entry;
+	}
+
+	/**
+	 @return true if the exception means the file is not valid Ogg Vorbis, rather than that
+	 it couldn't be read
+	 */
+	static boolean isFormatError(IOException ioe)
+	{
+		return errorKind(ioe) >= 0;
+	}
+	
+	/**
+	 @return the kind of format error or -1 if the exception is not one
+	 */
+	private static int errorKind(IOException ioe)
+	{
+		if (ioe instanceof CorruptHeaderException)
+			return CORRUPT_HEADER;
+		else if (ioe instanceof InvalidHeaderException)
+			return INVALID_HEADER;
+		else if (ioe instanceof ChecksumMismatchException)
+			return CHECKSUM_MISMATCH;
+		else if (ioe instanceof ForeignPageException)
+			return FOREIGN_PAGE;
+		else if (ioe instanceof EOFException)  //the file ends before the headers do
+			return END_OF_STREAM;
+		else
+			return -1;
+	}
+	
+	/**
+	 @return an exception of the type recorded by {@link #errorKind(IOException)}
+	 */
+	private static IOException formatError(int kind, String message)
+	{
+		switch (kind)
+		{
+			case CORRUPT_HEADER:
+				return new CorruptHeaderException(message);
+			case INVALID_HEADER:
+				return new InvalidHeaderException(message);
+			case CHECKSUM_MISMATCH:
+				return new ChecksumMismatchException();
+			case FOREIGN_PAGE:
+				return new ForeignPageException(message);
+			default:
+				return new EOFException(message);
+		}
+	}
+	
+	/**
+	 Update the cached comments of a file that has just been written.
+	 */
+	public void commentsWritten(File f, VorbisCommentHeader comments)
+	{
+		String path = f.getAbsolutePath();
+		Entry old = entries.get(path);
+		try
+		{
+			//the ID header is never changed by a comment update
+			if (old != null && old.idHeader != null)
+			{
+				Entry entry = new Entry();
+				entry.identity = FileIdentity.of(f);
+				entry.idHeader = old.idHeader;
+				entry.comments = CommentCodec.encode(comments);
+				entries.put(path, entry);
+			}
+			else
+				entries.remove(path);
+		}
+		catch (IOException ioe)
+		{
+			entries.remove(path);
+		}
+	}
+
+	/**
+	 Forget a file.
+	 */
+	public void remove(File f)
+	{
+		entries.remove(f.getAbsolutePath());
+	}
+
+	/**
+	 @return the number of cached files, including negative entries
+	 */
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 Write the cache to its file.  The file is replaced atomically where the platform allows
+	 so a crash during save leaves the previous cache intact.
+	 */
+	public void save()
+	throws IOException
+	{
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 128 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			//snapshot the entries so the count matches what is written
+			List<Entry> snapshot = new ArrayList<Entry>(entries.values());
+			out.writeInt(snapshot.size());
+			for (Entry entry: snapshot)
+			{
+				out.writeUTF(entry.identity.path);
+				out.writeLong(entry.identity.size);
+				out.writeLong(entry.identity.lastModified);
+				out.writeLong(entry.identity.inode);
+				if (entry.error != null)
+				{
+					out.writeBoolean(false);
+					out.writeByte(entry.errorKind);
+					out.writeUTF(entry.error.length() > 1024 ? entry.error.substring(0, 1024) : entry.error);
+				}
+				else
+				{
+					out.writeBoolean(true);
+					VorbisIDHeader id = entry.idHeader;
+					out.writeByte(id.audioChannels);
+					out.writeLong(id.audioSampleRate);
+					out.writeInt(id.maxBitRate);
+					out.writeInt(id.minBitRate);
+					out.writeInt(id.nominalBitRate);
+					out.writeShort(id.blockSize0);
+					out.writeShort(id.blockSize1);
+					out.writeInt(entry.comments.length);
+					out.write(entry.comments);
+				}
+			}
+			out.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (!tmp.renameTo(cacheFile))
+		{
+			//some platforms won't rename over an existing file
+			cacheFile.delete();
+			if (!tmp.renameTo(cacheFile))
+				throw new IOException("Unable to replace " + cacheFile.getPath());
+		}
+	}
+
+	private void load()
+	throws IOException
+	{
+		FileInputStream fis = new FileInputStream(cacheFile);
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 128 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a tag cache file or incompatible version");
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				Entry entry = new Entry();
+				entry.identity = new FileIdentity(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+				if (in.readBoolean())
+				{
+					VorbisIDHeader id = new VorbisIDHeader();
+					id.audioChannels = in.readUnsignedByte();
+					id.audioSampleRate = in.readLong();
+					id.maxBitRate = in.readInt();
+					id.minBitRate = in.readInt();
+					id.nominalBitRate = in.readInt();
+					id.blockSize0 = in.readUnsignedShort();
+					id.blockSize1 = in.readUnsignedShort();
+					entry.idHeader = id;
+					entry.comments = new byte[in.readInt()];
+					in.readFully(entry.comments);
+				}
+				else
+				{
+					entry.errorKind = in.readByte();
+					if (entry.errorKind < CORRUPT_HEADER || entry.errorKind > END_OF_STREAM)
+						throw new IOException("Tag cache is corrupt");
+					entry.error = in.readUTF();
+				}
+
+				entries.put(entry.identity.path, entry);
+			}
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	private static VorbisIDHeader copy(VorbisIDHeader id)
+	{
+		VorbisIDHeader c = new VorbisIDHeader();
+		c.audioChannels = id.audioChannels;
+		c.audioSampleRate = id.audioSampleRate;
+		c.maxBitRate = id.maxBitRate;
+		c.minBitRate = id.minBitRate;
+		c.nominalBitRate = id.nominalBitRate;
+		c.blockSize0 = id.blockSize0;
+		c.blockSize1 = id.blockSize1;
+		return c;
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void tagCacheTest()
+		throws IOException
+		{
+			File cacheFile = new File("deleteme.tagcache");
+			File good = new File("deleteme.ogg");
+			File bad = new File("deleteme (not ogg).ogg");
+			Util.copyFile(new File("test oggs", "comment padding bugfix1.ogg"), good);
+			Util.copyFile(new File("test oggs", "not really ogg.ogg"), bad);
+
+			TagCache cache = new TagCache(cacheFile);
+			VorbisIO.addCommentWriteListener(cache);
+			try
+			{
+				VorbisCommentHeader vch = cache.readComments(good);
+				assertEquals(vch.fields.get(0).toString(), "ARTIST=VanillaMusic test");
+				assertTrue(cache.readIdHeader(good).audioSampleRate > 0);
+
+				IOException uncached = null;
+				try
+				{
+					cache.readComments(bad);
+					fail();
+				}
+				catch (IOException ioe)
+				{
+					uncached = ioe;
+				}
+				assertTrue(isFormatError(uncached));
+				//a cached failure is thrown as the same type
+				assertSame(cachedError(cache, bad).getClass(), uncached.getClass());
+				assertEquals(cachedError(cache, bad).getMessage(), uncached.getMessage());
+
+				//a transient failure is not cached
+				File unreadable = new File("deleteme (unreadable).ogg");
+				unreadable.mkdir();
+				try
+				{
+					try
+					{
+						cache.readComments(unreadable);
+						fail();
+					}
+					catch (IOException ioe)
+					{
+						assertFalse(isFormatError(ioe));
+					}
+					assertEquals(cache.size(), 2);
+				}
+				finally
+				{
+					unreadable.delete();
+				}
+				
+				//survives a save and load, including the negative entry
+				cache.save();
+				TagCache loaded = new TagCache(cacheFile);
+				assertEquals(loaded.size(), 2);
+				assertEquals(loaded.readComments(good).fields.size(), vch.fields.size());
+				assertEquals(loaded.readIdHeader(good).audioSampleRate, cache.readIdHeader(good).audioSampleRate);
+				assertSame(cachedError(loaded, bad).getClass(), uncached.getClass());
+
+				//write-through
+				vch.fields.add(new CommentField("NEW", "field"));
+				VorbisIO.writeComments(good, vch);
+				List<CommentField> fields = cache.readComments(good).fields;
+				assertEquals(fields.get(fields.size() - 1).toString(), "NEW=field");
+
+				//a change made behind the cache's back is noticed
+				Util.copyFile(new File("test oggs", "error free.ogg"), good);
+				good.setLastModified(good.lastModified() + 2000);
+				assertEquals(cache.readComments(good).fields.size(), 0);
+			}
+			finally
+			{
+				VorbisIO.removeCommentWriteListener(cache);
+				cacheFile.delete();
+				good.delete();
+				bad.delete();
+			}
+		}
+		
+		private static IOException cachedError(TagCache cache, File f)
+		{
+			try
+			{
+				cache.readComments(f);
+			}
+			catch (IOException ioe)
+			{
+				return ioe;
+			}
+			fail("no error for " + f);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,737 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ A persistent inverted index from tag values to files, for searching a library without
+ reading it.  Values are normalized before indexing and querying: case is folded, accents
+ are removed and punctuation separates words.  Field names are case insensitive, as the
+ Vorbis comment specification requires.
+ <p>
+ Three kinds of query are supported, each on one field or (with a null field) on any:
+	<ul>
+	<li>{@link #exact(String, String) exact}: the whole value matches</li>
+	<li>{@link #prefix(String, String) prefix}: each word of the query matches a word of the
+	value, the last word as a prefix.  "beat" finds "The Beatles".</li>
+	<li>{@link #fieldsOf(File) fieldsOf}: the indexed comments of one file</li>
+	</ul>
+ </p>
+ <p>
+ Files are added with {@link #update(File, VorbisCommentHeader)} or by passing the index
+ to a {@link BatchCommentReader} or {@link DirectoryScanner} as the listener.  Register it
+ with {@link VorbisIO#addCommentWriteListener(CommentWriteListener)} to keep it current as
+ comments are written.  The index is held in memory, written by {@link #save()} and is
+ thread safe.
+ </p>
+ <p>
+ Only the posting keys are kept, not the comments themselves.  Fields holding binary data
+ (cover art) are not indexed, and only the first {@value #MAX_VALUE_LENGTH} characters of
+ a long value such as lyrics are, so exact queries on long values compare those
+ characters.
+ </p>
+ */
+public class TagIndex
+	implements CommentWriteListener, BatchCommentReader.Listener
+{
+	private static final int MAGIC = 0x4A565449;  //"JVTI"
+	private static final int VERSION = 2;
+	
+	/**values are indexed up to this many characters*/
+	public static final int MAX_VALUE_LENGTH = 1024;
+	/**fields holding base64 encoded binary data, which are not indexed*/
+	private static final Set<String> BINARY_FIELDS = new HashSet<String>(Arrays.asList(
+		"METADATA_BLOCK_PICTURE", "COVERART"));
+
+	/**separates the field from the term in a posting key*/
+	private static final char WORD = '\u0000';
+	/**separates the field from the whole value in a posting key*/
+	private static final char VALUE = '\u0001';
+	/**the field name under which every term is also posted*/
+	private static final String ANY = "";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File indexFile;
+	/**file id to path; null for a removed file*/
+	private ArrayList<String> paths;
+	private HashMap<String, Integer> ids;
+	/**
+	 file id to the file's posting keys in the order of its fields, needed to unindex it.
+	 The keys are the instances held by postings so they cost one reference each.
+	 */
+	private ArrayList<String[]> docs;
+	/**posting key to the ids of the files containing it*/
+	private TreeMap<String, IdList> postings;
+
+	/**
+	 Open an index, loading it from the file if the file exists.  An index file that can't
+	 be read is ignored and will be overwritten by the next {@link #save()}.
+	 */
+	public TagIndex(File indexFile)
+	{
+		this.indexFile = indexFile;
+		clear();
+
+		if (indexFile.exists())
+		{
+			try
+			{
+				load();
+			}
+			catch (IOException ioe)
+			{
+				clear();
+			}
+		}
+	}
+
+	private void clear()
+	{
+		paths = new ArrayList<String>();
+		ids = new HashMap<String, Integer>();
+		docs = new ArrayList<String[]>();
+		postings = new TreeMap<String, IdList>();
+	}
+
+	/**
+	 Index a file's comments, replacing any previously indexed for it.
+	 */
+	public synchronized void update(File f, VorbisCommentHeader comments)
+	{
+		String path = f.getAbsolutePath();
+		Integer id = ids.get(path);
+		if (id != null)
+			unindex(id.intValue());
+		else
+		{
+			id = Integer.valueOf(paths.size());
+			paths.add(path);
+			docs.add(null);
+			ids.put(path, id);
+		}
+
+		Set<String> keys = keys(comments);
+		String[] doc = new String[keys.size()];
+		int i = 0;
+		for (String key: keys)
+		{
+			Map.Entry<String, IdList> me = postings.ceilingEntry(key);
+			if (me == null || !me.getKey().equals(key))
+			{
+				postings.put(key, new IdList());
+				me = postings.ceilingEntry(key);
+			}
+			me.getValue().add(id.intValue());
+			doc[i++] = me.getKey();
+		}
+		docs.set(id.intValue(), doc);
+	}
+
+	/**
+	 Drop a file from the index.
+	 */
+	public synchronized void remove(File f)
+	{
+		Integer id = ids.remove(f.getAbsolutePath());
+		if (id != null)
+		{
+			unindex(id.intValue());
+			paths.set(id.intValue(), null);
+			docs.set(id.intValue(), null);
+		}
+	}
+
+	private void unindex(int id)
+	{
+		for (String key: docs.get(id))
+		{
+			IdList list = postings.get(key);
+			if (list != null)
+			{
+				list.remove(id);
+				if (list.size == 0)
+					postings.remove(key);
+			}
+		}
+	}
+
+	/**
+	 Re-index a file whose comments have just been written.
+	 */
+	public void commentsWritten(File f, VorbisCommentHeader comments)
+	{
+		update(f, comments);
+	}
+
+	/**
+	 Index a file found by a batch read.  Files which could not be read are removed.
+	 */
+	public void fileRead(FileComments result)
+	{
+		if (result.comments != null)
+			update(result.file, result.comments);
+		else
+			remove(result.file);
+	}
+
+	/**
+	 @param field the field name or null for any field
+	 @return the files having a field whose whole value equals the given value, after normalization
+	 */
+	public synchronized List<File> exact(String field, String value)
+	{
+		IdList list = postings.get(fieldKey(field) + VALUE + normalizeValue(truncate(value)));
+		return toFiles(list != null ? list.toArray() : new int[0]);
+	}
+
+	/**
+	 @param field the field name or null for any field
+	 @return the files in which every word of the query matches a word in a value of the
+	 field, the last as a prefix.  When a file has several such fields the words may match
+	 in different ones.  A query without words matches nothing.
+	 */
+	public synchronized List<File> prefix(String field, String query)
+	{
+		List<String> words = words(truncate(query));
+		if (words.isEmpty())
+			return new ArrayList<File>();
+
+		String base = fieldKey(field) + WORD;
+		int[] result = null;
+		for (int i = 0; i < words.size() && (result == null || result.length > 0); i++)
+		{
+			int[] ids;
+			if (i < words.size() - 1)
+			{
+				IdList list = postings.get(base + words.get(i));
+				ids = list != null ? list.toArray() : new int[0];
+			}
+			else
+			{
+				//every word beginning with the last word of the query
+				String from = base + words.get(i);
+				ids = union(postings.subMap(from, true, from + Character.MAX_VALUE, false).values());
+			}
+
+			result = result == null ? ids : intersect(result, ids);
+		}
+
+		return toFiles(result);
+	}
+
+	/**
+	 @return the indexed fields of a file, in their original order, or null if the file is
+	 not in the index.  Names are upper case and values are normalized and truncated as they
+	 were indexed.  Repeated fields with the same value appear once.
+	 */
+	public synchronized VorbisCommentHeader fieldsOf(File f)
+	{
+		Integer id = ids.get(f.getAbsolutePath());
+		if (id == null)
+			return null;
+		
+		VorbisCommentHeader vch = new VorbisCommentHeader();
+		for (String key: docs.get(id.intValue()))
+		{
+			int sep = key.indexOf(VALUE);
+			if (sep > 0)  //not ANY and not a word
+				vch.fields.add(new CommentField(key.substring(0, sep), key.substring(sep + 1)));
+		}
+		return vch;
+	}
+
+	/**
+	 @return the number of indexed files
+	 */
+	public synchronized int size()
+	{
+		return ids.size();
+	}
+
+	private List<File> toFiles(int[] ids)
+	{
+		List<File> files = new ArrayList<File>(ids.length);
+		for (int id: ids)
+			files.add(new File(paths.get(id)));
+		return files;
+	}
+	
+	/**
+	 @return the ids in both sorted arrays
+	 */
+	private static int[] intersect(int[] a, int[] b)
+	{
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;)
+		{
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else
+			{
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+	
+	/**
+	 @return the ids in any of the lists, sorted and without duplicates
+	 */
+	private static int[] union(Collection<IdList> lists)
+	{
+		int total = 0;
+		for (IdList list: lists)
+			total += list.size;
+		
+		int[] ids = new int[total];
+		int n = 0;
+		for (IdList list: lists)
+		{
+			System.arraycopy(list.ids, 0, ids, n, list.size);
+			n += list.size;
+		}
+		Arrays.sort(ids);
+		
+		n = 0;
+		for (int i = 0; i < ids.length; i++)
+		{
+			if (n == 0 || ids[i] != ids[n - 1])
+				ids[n++] = ids[i];
+		}
+		return Arrays.copyOf(ids, n);
+	}
+
+	/**
+	 @return every posting key for the comments, without duplicates, in field order
+	 */
+	private static Set<String> keys(VorbisCommentHeader comments)
+	{
+		Set<String> keys = new LinkedHashSet<String>();
+		for (CommentField cf: comments.fields)
+		{
+			String field = fieldKey(cf.name);
+			if (BINARY_FIELDS.contains(field))
+				continue;
+			
+			String raw = truncate(cf.value);
+			String value = normalizeValue(raw);
+			keys.add(field + VALUE + value);
+			keys.add(ANY + VALUE + value);
+			for (String word: words(raw))
+			{
+				keys.add(field + WORD + word);
+				keys.add(ANY + WORD + word);
+			}
+		}
+		return keys;
+	}
+
+	private static String fieldKey(String field)
+	{
+		return field != null ? field.toUpperCase(Locale.ROOT) : ANY;
+	}
+
+	/**
+	 @return the part of a value that is indexed
+	 */
+	private static String truncate(String value)
+	{
+		if (value.length() <= MAX_VALUE_LENGTH)
+			return value;
+		int end = MAX_VALUE_LENGTH;
+		if (Character.isHighSurrogate(value.charAt(end - 1)))
+			end--;
+		return value.substring(0, end);
+	}
+
+	/**
+	 Fold case and strip accents.
+	 */
+	static String normalize(String s)
+	{
+		String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+		StringBuilder sb = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++)
+		{
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) != Character.NON_SPACING_MARK)
+				sb.append(c);
+		}
+		return sb.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 @return the words of a normalized value separated by single spaces
+	 */
+	static String normalizeValue(String value)
+	{
+		StringBuilder sb = new StringBuilder(value.length());
+		for (String word: words(value))
+		{
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(word);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 @return the normalized words of a value.  A word is a run of letters and digits.
+	 */
+	static List<String> words(String value)
+	{
+		String s = normalize(value);
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= s.length(); i++)
+		{
+			boolean inWord = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+			if (inWord && start == -1)
+				start = i;
+			else if (!inWord && start != -1)
+			{
+				words.add(s.substring(start, i));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	/**
+	 Write the index to its file.  The file is replaced atomically where the platform allows.
+	 */
+	public synchronized void save()
+	throws IOException
+	{
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 128 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			//the keys, numbered in order; the files refer to them by number
+			HashMap<String, Integer> keyNumbers = new HashMap<String, Integer>(postings.size() * 2);
+			out.writeInt(postings.size());
+			for (String key: postings.keySet())
+			{
+				keyNumbers.put(key, Integer.valueOf(keyNumbers.size()));
+				writeString(out, key);
+			}
+
+			out.writeInt(paths.size());
+			for (int i = 0; i < paths.size(); i++)
+			{
+				String path = paths.get(i);
+				out.writeBoolean(path != null);
+				if (path != null)
+				{
+					writeString(out, path);
+					String[] doc = docs.get(i);
+					out.writeInt(doc.length);
+					for (String key: doc)
+						out.writeInt(keyNumbers.get(key).intValue());
+				}
+			}
+			out.flush();
+		}
+		finally
+		{
+			fos.close();
+		}
+
+		if (!tmp.renameTo(indexFile))
+		{
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile))
+				throw new IOException("Unable to replace " + indexFile.getPath());
+		}
+	}
+
+	/**
+	 Read the index, rebuilding the postings from each file's keys.
+	 */
+	private void load()
+	throws IOException
+	{
+		FileInputStream fis = new FileInputStream(indexFile);
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 128 * 1024));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a tag index file or incompatible version");
+
+			int nKeys = in.readInt();
+			String[] keys = new String[nKeys];
+			IdList[] lists = new IdList[nKeys];
+			for (int i = 0; i < nKeys; i++)
+			{
+				keys[i] = readString(in);
+				lists[i] = new IdList();
+			}
+
+			int nFiles = in.readInt();
+			for (int i = 0; i < nFiles; i++)
+			{
+				if (in.readBoolean())
+				{
+					String path = readString(in);
+					String[] doc = new String[in.readInt()];
+					for (int j = 0; j < doc.length; j++)
+					{
+						int k = in.readInt();
+						if (k < 0 || k >= nKeys)
+							throw new IOException("Tag index is corrupt");
+						doc[j] = keys[k];
+						lists[k].add(i);
+					}
+					ids.put(path, Integer.valueOf(i));
+					paths.add(path);
+					docs.add(doc);
+				}
+				else
+				{
+					paths.add(null);
+					docs.add(null);
+				}
+			}
+
+			for (int i = 0; i < nKeys; i++)
+			{
+				if (lists[i].size > 0)
+				{
+					lists[i].trim();
+					postings.put(keys[i], lists[i]);
+				}
+			}
+		}
+		finally
+		{
+			fis.close();
+		}
+	}
+
+	/**
+	 Write a string as UTF-8 preceded by its length in bytes.  Unlike writeUTF there is no
+	 64K limit.
+	 */
+	private static void writeString(DataOutputStream out, String s)
+	throws IOException
+	{
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in)
+	throws IOException
+	{
+		int len = in.readInt();
+		if (len < 0)
+			throw new IOException("Tag index is corrupt");
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	/**
+	 The ids of the files containing a posting key, in ascending order.  Most keys, such as
+	 whole titles, belong to one or a few files, so the list's size follows its length rather
+	 than the largest id as a bitmap's would.
+	 */
+	private static class IdList
+	{
+		int[] ids = new int[1];
+		int size;
+		
+		void add(int id)
+		{
+			int i;
+			//files are usually indexed in id order
+			if (size == 0 || ids[size - 1] < id)
+				i = size;
+			else
+			{
+				i = Arrays.binarySearch(ids, 0, size, id);
+				if (i >= 0)
+					return;
+				i = -i - 1;
+			}
+			
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size + Math.max(1, size >> 1));
+			System.arraycopy(ids, i, ids, i + 1, size - i);
+			ids[i] = id;
+			size++;
+		}
+		
+		void remove(int id)
+		{
+			int i = Arrays.binarySearch(ids, 0, size, id);
+			if (i < 0)
+				return;
+			System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+			size--;
+			if (size > 0 && size < ids.length / 4)
+				trim();
+		}
+		
+		void trim()
+		{
+			ids = Arrays.copyOf(ids, size);
+		}
+		
+		int[] toArray()
+		{
+			return Arrays.copyOf(ids, size);
+		}
+	}
+
+	/**For unit testing*/
+	public static class Tester
+	{
+		@Test
+		public void tagIndexTest()
+		throws IOException
+		{
+			File indexFile = new File("deleteme.tagindex");
+			File a = new File("a.ogg");
+			File b = new File("b.ogg");
+			File c = new File("c.ogg");
+			try
+			{
+				TagIndex index = new TagIndex(indexFile);
+				index.update(a, comments("ARTIST", "The Beatles", "TITLE", "Help!"));
+				index.update(b, comments("ARTIST", "Beat Happening", "TITLE", "Indian Summer"));
+				index.update(c, comments("artist", "Beyonc\u00e9", "TITLE", "Halo"));
+
+				assertEquals(names(index.prefix("ARTIST", "Beat")), "a.ogg b.ogg");
+				assertEquals(names(index.prefix("ARTIST", "beatl")), "a.ogg");
+				assertEquals(names(index.prefix("ARTIST", "the bea")), "a.ogg");
+				assertEquals(names(index.prefix("TITLE", "beat")), "");
+				assertEquals(names(index.prefix(null, "h")), "a.ogg b.ogg c.ogg");
+				assertEquals(names(index.exact("ARTIST", "beyonce")), "c.ogg");
+				assertEquals(names(index.exact("Artist", "the  BEATLES")), "a.ogg");
+				assertEquals(names(index.exact("ARTIST", "Beatles")), "");
+				assertEquals(names(index.prefix("ARTIST", "  ")), "");
+
+				//incremental update
+				index.update(a, comments("ARTIST", "Wings"));
+				assertEquals(names(index.prefix("ARTIST", "Beat")), "b.ogg");
+				assertEquals(names(index.exact(null, "wings")), "a.ogg");
+				index.fileRead(new FileComments(b, new IOException()));
+				assertEquals(names(index.prefix("ARTIST", "Beat")), "");
+				assertEquals(index.size(), 2);
+
+				//persisted
+				index.save();
+				index = new TagIndex(indexFile);
+				assertEquals(index.size(), 2);
+				assertEquals(names(index.prefix(null, "halo")), "c.ogg");
+				assertEquals(index.fieldsOf(a).fields.get(0).toString(), "ARTIST=wings");
+				assertNull(index.fieldsOf(b));
+				index.update(b, comments("ARTIST", "Beat Happening"));
+				assertEquals(names(index.prefix("ARTIST", "Beat")), "b.ogg");
+
+				//values too long for writeUTF; binary fields aren't indexed
+				StringBuilder lyrics = new StringBuilder("Yesterday");
+				while (lyrics.length() < 100000)
+					lyrics.append(" all my troubles seemed so far away");
+				index.update(c, comments("LYRICS", lyrics.toString(), "METADATA_BLOCK_PICTURE", "AAAAAwAAAAlpbWFnZS9wbmc="));
+				index.save();
+				index = new TagIndex(indexFile);
+				assertEquals(index.size(), 3);
+				assertEquals(names(index.prefix("LYRICS", "yester")), "c.ogg");
+				assertEquals(names(index.exact("LYRICS", lyrics.toString())), "c.ogg");
+				assertEquals(names(index.prefix(null, "AAAAAw")), "");
+				VorbisCommentHeader fields = index.fieldsOf(c);
+				assertEquals(fields.fields.size(), 1);
+				assertEquals(fields.fields.get(0).value.length(), MAX_VALUE_LENGTH);
+				
+				//churn: files indexed out of order, re-indexed and removed
+				index = new TagIndex(indexFile);
+				for (int i = 0; i < 300; i++)
+					index.update(new File("n" + i + ".ogg"), comments("ARTIST", i % 3 == 0 ? "Fizz" : "Buzz", "TITLE", "Track " + i));
+				for (int i = 299; i >= 0; i -= 2)
+					index.update(new File("n" + i + ".ogg"), comments("ARTIST", "Fizz Buzz", "TITLE", "Track " + i));
+				for (int i = 0; i < 300; i += 4)
+					index.remove(new File("n" + i + ".ogg"));
+				index.save();
+				index = new TagIndex(indexFile);
+				int nFizz = 0, nFizzBuzz = 0;
+				for (int i = 0; i < 300; i++)
+				{
+					if (i % 4 == 0)
+						continue;
+					if (i % 2 == 1)
+						nFizzBuzz++;
+					else if (i % 3 == 0)
+						nFizz++;
+				}
+				assertEquals(index.exact("ARTIST", "fizz buzz").size(), nFizzBuzz);
+				assertEquals(index.exact("ARTIST", "fizz").size(), nFizz);
+				assertEquals(index.prefix("ARTIST", "fiz").size(), nFizz + nFizzBuzz);
+				assertEquals(index.prefix("ARTIST", "fizz b").size(), nFizzBuzz);
+				assertEquals(names(index.prefix("TITLE", "track 29")), "n29.ogg n290.ogg n291.ogg n293.ogg n294.ogg n295.ogg n297.ogg n298.ogg n299.ogg");
+				assertEquals(names(index.exact("TITLE", "track 5")), "n5.ogg");
+			}
+			finally
+			{
+				indexFile.delete();
+			}
+		}
+
+		private static VorbisCommentHeader comments(String... nameValues)
+		{
+			VorbisCommentHeader vch = new VorbisCommentHeader();
+			for (int i = 0; i < nameValues.length; i += 2)
+				vch.fields.add(new CommentField(nameValues[i], nameValues[i + 1]));
+			return vch;
+		}
+
+		private static String names(List<File> files)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (File f: files)
+			{
+				if (sb.length() > 0)
+					sb.append(' ');
+				sb.append(f.getName());
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -50,6 +50,7 @@ import java.io.*;
 	<li>ISRC</li>
 	</ul>
  </p>
+ @see CommentCodec
  */
 public class VorbisCommentHeader
 	implements Serializable
@@ -78,9 +79,24 @@ public class VorbisCommentHeader
 	VorbisCommentHeader(Packet packet)
 	throws IOException
 	{
-		this();
+		this(validate(packet).getBytes());
+	}
+	
+	private static Packet validate(Packet packet)
+	throws IOException
+	{
 		VorbisPacketStream.validateHeaderPacket(packet, VorbisPacketStream.COMMENT_HEADER_TYPE);
-		byte[] data = packet.getBytes();
+		return packet;
+	}
+	
+	/**
+	 Parse the bytes of a comment header packet (as returned by {@link #toPacket()}) which
+	 are already known to be valid.
+	 */
+	VorbisCommentHeader(byte[] data)
+	throws IOException
+	{
+		this();
 		
 		int i = 1 + VorbisPacketStream.VORBIS.length;
 		
@@ -93,7 +109,7 @@ public class VorbisCommentHeader
 		ensureData(i, len, data);
 		vendor = Util.asUTF8(data, i, len).trim();  //trim is used here because of the white-space buffering scheme used in VorbisIO.writeComments
 		if (vendor == null)
-			throw new IOException("Invalid UTF-8 in vendor string");
+			throw new CorruptHeaderException("Invalid UTF-8 in vendor string");
 		i += len;
 		
 		//number of user fields
@@ -116,7 +132,7 @@ public class VorbisCommentHeader
 			if (str != null)
 				fields.add(new CommentField(str));
 			else
-				throw new IOException("Invalid UTF-8 in vendor string");
+				throw new CorruptHeaderException("Invalid UTF-8 in vendor string");
 		}
 		
 		//skip framing byte
@@ -132,8 +148,13 @@ public class VorbisCommentHeader
 	 @return -1 if the comment structure is corrupt*/
 	static int getCommentStructureLength(Packet packet)
 	{
-		byte[] data = packet.getBytes();
+		return getCommentStructureLength(packet.getBytes());
+	}
 
+	/**Return the offset of the end of the comment structure in the bytes of a comment header packet.
+	 @return -1 if the comment structure is corrupt*/
+	static int getCommentStructureLength(byte[] data)
+	{
 		int i = 1 + VorbisPacketStream.VORBIS.length;
 
 		//vendor length
@@ -213,7 +234,7 @@ public class VorbisCommentHeader
 	throws IOException
 	{
 		if (offset + amount > data.length)
-			throw new IOException("Vorbis comment header is incomplete.");
+			throw new CorruptHeaderException("Vorbis comment header is incomplete.");
 	}
 	
 	/**Debugging printout of the values in this object.*/
@@ -0,0 +1,316 @@
+/* (The MIT License)
+Copyright (c) 2006 Adam Bennett (cruxic@gmail.com)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of
+this software and associated documentation files (the "Software"), to deal in
+the Software without restriction, including without limitation the rights to
+use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+of the Software, and to permit persons to whom the Software is furnished to do
+so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package adamb.vorbis;
+
+import adamb.ogg.*;
+import adamb.util.ByteBufferChannel;
+import adamb.util.ChannelInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+//For unit testing
+import org.testng.annotations.*;
+import static org.testng.Assert.*;
+
+/**
+ A non-blocking parser for the three Vorbis header packets.  Chunks of the stream are
+ pushed in as they arrive, for example from a NIO socket, and a {@link Listener} is told
+ of each header as soon as enough bytes are present.  Partial pages and packets are kept
+ between chunks so one thread can serve any number of streams.
+ <p>
+ Pages are parsed as by {@link PhysicalPageStream} and packets checked as by
+ {@link VorbisPacketStream}, so the results and errors are the same as
+ {@link VorbisIO#readComments(InputStream, boolean)}.
+ </p>
+ */
+public class VorbisHeaderParser
+{
+	/**
+	 Told of each header as it is parsed.  Methods are called on the thread calling
+	 {@link VorbisHeaderParser#push(ByteBuffer)}.
+	 */
+	public interface Listener
+	{
+		public void idHeader(VorbisIDHeader header);
+		
+		public void commentHeader(VorbisCommentHeader comments);
+		
+		/**
+		 @param audioOffset the stream offset of the first page after the setup header
+		 */
+		public void setupComplete(long audioOffset);
+	}
+	
+	private Listener listener;
+	private boolean ignoreAllRecoverableErrorsAndWarnings;
+	private PageAssembler pages;
+	private PacketAssembler packets;
+	private boolean haveSerialNumber;
+	private int serialNumber;
+	private int expectedSequence;
+	/**the number of header packets parsed*/
+	private int packetNumber;
+	private long audioOffset;
+	
+	/**
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link VorbisIO#readComments(File, boolean)}
+	 */
+	public VorbisHeaderParser(Listener listener, boolean ignoreAllRecoverableErrorsAndWarnings)
+	{
+		this.listener = listener;
+		this.ignoreAllRecoverableErrorsAndWarnings = ignoreAllRecoverableErrorsAndWarnings;
+		pages = new PageAssembler(ignoreAllRecoverableErrorsAndWarnings);
+		packets = new PacketAssembler();
+		haveSerialNumber = false;
+		packetNumber = 0;
+		audioOffset = -1;
+	}
+	
+	/**
+	 Parse the remaining bytes of the chunk, all of which are consumed.  Bytes pushed after
+	 the headers are complete are ignored.
+	 @return true once the setup header has been parsed
+	 @throws IOException if the stream is not Ogg Vorbis.  The parser can't be used further.
+	 */
+	public boolean push(ByteBuffer chunk)
+	throws IOException
+	{
+		if (isComplete())
+		{
+			chunk.position(chunk.limit());
+			return true;
+		}
+		
+		pages.push(chunk);
+		parsePages();
+		return isComplete();
+	}
+	
+	private void parsePages()
+	throws IOException
+	{
+		Page page;
+		while (!isComplete() && (page = pages.next()) != null)
+		{
+			if (!haveSerialNumber)
+			{
+				haveSerialNumber = true;
+				serialNumber = page.streamSerialNumber;
+				if (!ignoreAllRecoverableErrorsAndWarnings && !page.isFirst)
+					throw new IOException(ValidatingPageStream.Warning.MISSING_FIRST_FLAG.getMessage());
+			}
+			else if (page.streamSerialNumber != serialNumber)
+			{
+				if (ignoreAllRecoverableErrorsAndWarnings)
+					continue;
+				else
+					throw new ForeignPageException("Found Ogg page from a different stream, #" + page.streamSerialNumber + "; expected #" + serialNumber + "!");
+			}
+			else if (!ignoreAllRecoverableErrorsAndWarnings)
+			{
+				if (page.isFirst)
+					throw new IOException(ValidatingPageStream.Warning.UNEXPECTED_FIRST_FLAG.getMessage());
+				if (page.sequence != expectedSequence)
+					throw new IOException(ValidatingPageStream.Warning.OUT_OF_SEQUENCE.getMessage());
+			}
+			expectedSequence = page.sequence + 1;
+			
+			packets.add(page);
+			Packet packet;
+			while (!isComplete() && (packet = packets.next()) != null)
+				headerPacket(packet);
+		}
+	}
+	
+	private void headerPacket(Packet packet)
+	throws IOException
+	{
+		packetNumber++;
+		if (packetNumber == 1)
+		{
+			VorbisPacketStream.validateHeaderPacket(packet, VorbisPacketStream.ID_HEADER_TYPE);
+			listener.idHeader(new VorbisIDHeader(packet));
+		}
+		else if (packetNumber == 2)
+		{
+			VorbisPacketStream.validateHeaderPacket(packet, VorbisPacketStream.COMMENT_HEADER_TYPE);
+			listener.commentHeader(new VorbisCommentHeader(packet));
+		}
+		else
+		{
+			VorbisPacketStream.validateHeaderPacket(packet, VorbisPacketStream.SETUP_HEADER_TYPE);
+			//the setup header ends its page so the next page holds audio
+			audioOffset = pages.getPosition();
+			listener.setupComplete(audioOffset);
+		}
+	}
+	
+	/**
+	 Tell the parser the stream has ended.  Listeners may still be called if pages were
+	 held back, which only happens in corrupt streams.
+	 @throws EOFException if the headers are incomplete
+	 */
+	public void endOfStream()
+	throws IOException
+	{
+		if (!isComplete())
+		{
+			pages.endOfStream();
+			parsePages();
+		}
+		
+		if (!isComplete())
+			throw new EOFException("Incomplete Vorbis stream!  Missing " + (3 - packetNumber) + " of the 3 required header packets.");
+	}
+	
+	/**
+	 @return true once all three headers have been parsed
+	 */
+	public boolean isComplete()
+	{
+		return audioOffset != -1;
+	}
+	
+	/**
+	 @return the least number of further bytes before another page can be parsed.  Useful
+	 for sizing reads.
+	 */
+	public int getBytesNeeded()
+	{
+		return isComplete() ? 0 : pages.getBytesNeeded();
+	}
+	
+	/**
+	 @return the stream offset of the first audio page or -1 if the headers are incomplete
+	 */
+	public long getAudioOffset()
+	{
+		return audioOffset;
+	}
+	
+	/**For unit testing*/
+	public static class Tester
+	{
+		private static class Recorder
+			implements Listener
+		{
+			VorbisIDHeader id;
+			VorbisCommentHeader comments;
+			long audioOffset = -1;
+			int events;
+			
+			public void idHeader(VorbisIDHeader header)
+			{
+				assertEquals(events++, 0);
+				id = header;
+			}
+			
+			public void commentHeader(VorbisCommentHeader c)
+			{
+				assertEquals(events++, 1);
+				comments = c;
+			}
+			
+			public void setupComplete(long offset)
+			{
+				assertEquals(events++, 2);
+				audioOffset = offset;
+			}
+		}
+		
+		@Test
+		public void pushTest()
+		throws IOException
+		{
+			Random rand = new Random(7);
+			for (String name: new String[]{"error free.ogg", "pages from foreign stream.ogg", "vorbis headers with garbage after both pages.ogg"})
+			{
+				File f = new File("test oggs", name);
+				byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+				
+				//where the blocking pipeline finishes the setup header
+				ByteBufferChannel ch = new ByteBufferChannel(bytes);
+				VorbisPacketStream vps = VorbisIO.readHeaders(new ChannelInputStream(ch), true);
+				vps.next();
+				long expectedOffset = ch.position();
+				
+				for (int maxChunk: new int[]{1, 7, 300, bytes.length})
+				{
+					Recorder r = new Recorder();
+					VorbisHeaderParser parser = new VorbisHeaderParser(r, true);
+					int pos = 0;
+					while (pos < bytes.length && !parser.isComplete())
+					{
+						int n = Math.min(1 + rand.nextInt(maxChunk), bytes.length - pos);
+						ByteBuffer chunk = ByteBuffer.wrap(bytes, pos, n);
+						parser.push(chunk);
+						assertFalse(chunk.hasRemaining());
+						pos += n;
+					}
+					parser.endOfStream();
+					
+					assertEquals(r.events, 3);
+					assertEquals(r.comments.toPacket(), VorbisIO.readComments(f).toPacket());
+					assertEquals(r.id.audioSampleRate, VorbisIO.readIdHeader(f).audioSampleRate);
+					assertEquals(r.audioOffset, expectedOffset);
+					assertEquals(parser.getAudioOffset(), expectedOffset);
+					assertEquals(parser.getBytesNeeded(), 0);
+				}
+			}
+		}
+		
+		@Test
+		public void errorTest()
+		throws IOException
+		{
+			//a missing header is reported at the end of the stream
+			byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "id header only.ogg").toPath());
+			Recorder r = new Recorder();
+			VorbisHeaderParser parser = new VorbisHeaderParser(r, true);
+			assertFalse(parser.push(ByteBuffer.wrap(bytes)));
+			assertTrue(parser.getBytesNeeded() > 0);
+			try
+			{
+				parser.endOfStream();
+				fail();
+			}
+			catch (EOFException eof)
+			{
+				assertEquals(eof.getMessage(), "Incomplete Vorbis stream!  Missing 2 of the 3 required header packets.");
+			}
+			
+			//strict parsing rejects junk as soon as it arrives
+			bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "vorbis headers with garbage after both pages.ogg").toPath());
+			parser = new VorbisHeaderParser(new Recorder(), false);
+			try
+			{
+				parser.push(ByteBuffer.wrap(bytes));
+				fail();
+			}
+			catch (InvalidHeaderException ihe)
+			{
+				//expected
+			}
+		}
+	}
+}
@@ -35,6 +35,11 @@ public class VorbisIDHeader
 	public int blockSize0;
 	public int blockSize1;
 	
+	/**For restoring a previously parsed header*/
+	VorbisIDHeader()
+	{
+	}
+	
 	VorbisIDHeader(Packet packet)
 		throws IOException
 	{
@@ -88,19 +93,19 @@ public class VorbisIDHeader
 							return;		
 						}
 						else
-							throw new IOException("Invalid block size values (" + blockSize0 + "," + blockSize1 + ")");
+							throw new CorruptHeaderException("Invalid block size values (" + blockSize0 + "," + blockSize1 + ")");
 					}
 					else
-						throw new IOException("Audio sample rate must be greater than 0");
+						throw new CorruptHeaderException("Audio sample rate must be greater than 0");
 				}
 				else
-					throw new IOException("Audio channels must be > 0");
+					throw new CorruptHeaderException("Audio channels must be > 0");
 			}
 			else
-				throw new IOException("Incompatible Voribis version " + vorbisVersion);
+				throw new CorruptHeaderException("Incompatible Voribis version " + vorbisVersion);
 		}
 		else
-			throw new IOException("Invalid packet size " + data.length + " for Vorbis ID header");
+			throw new CorruptHeaderException("Invalid packet size " + data.length + " for Vorbis ID header");
 	}
 	
 	public void print()
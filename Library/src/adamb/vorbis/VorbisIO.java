@@ -25,7 +25,10 @@ import adamb.util.*;
 import adamb.ogg.*;
 import java.io.*;
 import java.util.*;
-import org.archive.io.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 
 //For unit testing
 import org.testng.annotations.*;
@@ -140,6 +143,8 @@ import static org.testng.Assert.*;
  */
 public class VorbisIO
 {
+	private static final CopyOnWriteArrayList<CommentWriteListener> writeListeners = new CopyOnWriteArrayList<CommentWriteListener>();
+	
 	/**
 	 Equivalent to {@link #readComments(File,boolean) readComments(f, true)}.
 	 */
@@ -158,20 +163,169 @@ public class VorbisIO
 	 */
 	public static VorbisCommentHeader readComments(File f, boolean ignoreAllRecoverableErrorsAndWarnings)
 	throws IOException
+	{
+		return readComments(f, ignoreAllRecoverableErrorsAndWarnings, 256 * 1024);
+	}
+	
+	/**
+	 @param bufferSize the initial read buffer size.  Batch readers keep many files open at
+	 once and pass a small value; the buffer still grows if error recovery needs it.
+	 */
+	static VorbisCommentHeader readComments(File f, boolean ignoreAllRecoverableErrorsAndWarnings, int bufferSize)
+	throws IOException
+	{
+		return readHeaders(f, ignoreAllRecoverableErrorsAndWarnings, bufferSize).getCommentHeader();
+	}
+	
+	/**
+	 Read comments from the beginning of an Ogg stream.  Reading stops after the comment header.
+	 @param is must support mark and reset if ignoreAllRecoverableErrorsAndWarnings is true
+	 */
+	static VorbisCommentHeader readComments(InputStream is, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		return readHeaders(is, ignoreAllRecoverableErrorsAndWarnings).getCommentHeader();
+	}
+	
+	/**
+	 Equivalent to {@link #splitHeaders(InputStream,boolean) splitHeaders(is, true)}.
+	 */
+	public static HeaderSplit splitHeaders(InputStream is)
+	throws IOException
+	{
+		return splitHeaders(is, true);
+	}
+	
+	/**
+	 Equivalent to {@link #splitHeaders(InputStream,boolean,long) splitHeaders(is,
+	 ignoreAllRecoverableErrorsAndWarnings, HeaderSplit.DEFAULT_MAX_HEADER_BYTES)}.
+	 */
+	public static HeaderSplit splitHeaders(InputStream is, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		return splitHeaders(is, ignoreAllRecoverableErrorsAndWarnings, HeaderSplit.DEFAULT_MAX_HEADER_BYTES);
+	}
+	
+	/**
+	 Read the ID and comment headers from the beginning of a stream without losing any of
+	 it.  The returned {@link HeaderSplit#stream} replays the bytes read while parsing
+	 followed by the rest of the given stream, so the whole stream can be passed on, for
+	 example to storage, after inspecting the comments.  Only the bytes up to a little past
+	 the comment header are held in memory, and never more than maxHeaderBytes, so a
+	 large upload that is not Ogg Vorbis fails early.
+	 @param is any stream; mark and reset are not needed.  It is closed when the returned stream is.
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link #readComments(File, boolean)}
+	 @param maxHeaderBytes the most bytes to read looking for the headers
+	 @throws EOFException if the stream ends before the comment header
+	 @throws CorruptHeaderException if the comment header does not end within maxHeaderBytes
+	 */
+	public static HeaderSplit splitHeaders(InputStream is, boolean ignoreAllRecoverableErrorsAndWarnings, long maxHeaderBytes)
+	throws IOException
+	{
+		return HeaderSplit.read(is, ignoreAllRecoverableErrorsAndWarnings, maxHeaderBytes);
+	}
+	
+	/**
+	 Equivalent to {@link #readIdHeader(File,boolean) readIdHeader(f, true)}.
+	 */
+	public static VorbisIDHeader readIdHeader(File f)
+	throws IOException
+	{
+		return readIdHeader(f, true);
+	}
+	
+	/**
+	 Read the identification header (channels, sample rate, bit rates) from an Ogg Vorbis file.
+	 The comment header must also be present for the file to be considered valid.
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link #readComments(File, boolean)}
+	 */
+	public static VorbisIDHeader readIdHeader(File f, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		return readHeaders(f, ignoreAllRecoverableErrorsAndWarnings, 256 * 1024).getIDHeader();
+	}
+	
+	/**
+	 Read comments from the beginning of an Ogg Vorbis stream held in memory, such as the
+	 first chunk of an upload, ignoring recoverable errors.  Use <code>ByteBuffer.wrap</code>
+	 for a byte array.  Parsing begins at the buffer's position, which is not changed.
+	 @throws NeedMoreBytesException if the headers continue beyond the buffer's limit.
+	 {@link NeedMoreBytesException#getBytesNeeded()} tells at least how many more bytes to
+	 supply before trying again.
+	 */
+	public static VorbisCommentHeader readComments(ByteBuffer buffer)
+	throws IOException
+	{
+		return readComments(buffer, true);
+	}
+	
+	/**
+	 @see #readComments(ByteBuffer)
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link #readComments(File, boolean)}
+	 */
+	public static VorbisCommentHeader readComments(ByteBuffer buffer, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		return readHeaders(new BufferPageStream(buffer, ignoreAllRecoverableErrorsAndWarnings), ignoreAllRecoverableErrorsAndWarnings).getCommentHeader();
+	}
+	
+	/**
+	 Read the identification header from the beginning of an Ogg Vorbis stream held in memory.
+	 As with {@link #readIdHeader(File)} the comment header must also be present.
+	 @throws NeedMoreBytesException if the headers continue beyond the buffer's limit
+	 @see #readComments(ByteBuffer)
+	 */
+	public static VorbisIDHeader readIdHeader(ByteBuffer buffer)
+	throws IOException
+	{
+		return readHeaders(new BufferPageStream(buffer, true), true).getIDHeader();
+	}
+	
+	/**
+	 Read comments from an Ogg Vorbis stream beginning at the channel's current position,
+	 ignoring recoverable errors.  The channel may be a FileChannel, an in-memory
+	 {@link ByteBufferChannel} or any other seekable source.  It is left positioned after
+	 the comment header and is not closed.
+	 */
+	public static VorbisCommentHeader readComments(SeekableByteChannel channel)
+	throws IOException
+	{
+		return readComments(channel, true);
+	}
+	
+	/**
+	 @see #readComments(SeekableByteChannel)
+	 @param ignoreAllRecoverableErrorsAndWarnings see {@link #readComments(File, boolean)}
+	 */
+	public static VorbisCommentHeader readComments(SeekableByteChannel channel, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		return readHeaders(new ChannelInputStream(channel), ignoreAllRecoverableErrorsAndWarnings).getCommentHeader();
+	}
+	
+	/**
+	 Read the identification header from an Ogg Vorbis stream beginning at the channel's
+	 current position, ignoring recoverable errors.  The channel is not closed.
+	 */
+	public static VorbisIDHeader readIdHeader(SeekableByteChannel channel)
+	throws IOException
+	{
+		return readHeaders(new ChannelInputStream(channel), true).getIDHeader();
+	}
+	
+	/**
+	 Read the ID and comment header packets from a file.
+	 @return a stream positioned after the comment header.  The file has already been closed
+	 so the stream can only be used to get the headers.
+	 */
+	static VorbisPacketStream readHeaders(File f, boolean ignoreAllRecoverableErrorsAndWarnings, int bufferSize)
+	throws IOException
 	{
 		FileInputStream fis = new FileInputStream(f);
 		
 		try
 		{
-			PhysicalPageStream pps = new PhysicalPageStream(new BufferedInputStream(fis, 256 * 1024));
-			LogicalPageStream lps;
-			
-			if (ignoreAllRecoverableErrorsAndWarnings)
-				lps = new StreamSerialFilter(new ErrorTolerantPageStream(pps), false);
-			else
-				lps = new ValidatingPageStream(new StreamSerialFilter(pps, true));
-			
-			return readComments(lps);
+			return readHeaders(new BufferedInputStream(fis, bufferSize), ignoreAllRecoverableErrorsAndWarnings);
 		}
 		finally
 		{
@@ -179,16 +333,142 @@ public class VorbisIO
 		}
 	}
 	
-	private static VorbisCommentHeader readComments(LogicalPageStream lps)
+	/**
+	 Read the ID and comment header packets from the beginning of an Ogg stream.
+	 @param is must support mark and reset if ignoreAllRecoverableErrorsAndWarnings is true
+	 @return a stream positioned after the comment header
+	 */
+	static VorbisPacketStream readHeaders(InputStream is, boolean ignoreAllRecoverableErrorsAndWarnings)
+	throws IOException
+	{
+		PhysicalPageStream pps = new PhysicalPageStream(is);
+		
+		if (ignoreAllRecoverableErrorsAndWarnings)
+			return readHeaders(new ErrorTolerantPageStream(pps), true);
+		else
+			return readHeaders(pps, false);
+	}
+	
+	/**
+	 @param ps already error tolerant if ignoreAllRecoverableErrorsAndWarnings is true
+	 */
+	private static VorbisPacketStream readHeaders(PageStream ps, boolean ignoreAllRecoverableErrorsAndWarnings)
 	throws IOException
 	{
+		LogicalPageStream lps;
+		
+		if (ignoreAllRecoverableErrorsAndWarnings)
+			lps = new StreamSerialFilter(ps, false);
+		else
+			lps = new ValidatingPageStream(new StreamSerialFilter(ps, true));
+		
 		VorbisPacketStream vps = new VorbisPacketStream(new PacketStream(new PacketSegmentStream(lps)));
-		//read id and comments
+		//read id
 		vps.next();
 		//read comments
 		vps.next();
 		
-		return vps.getCommentHeader();
+		return vps;
+	}
+	
+	/**
+	 Read comments from an Ogg Vorbis file without blocking the calling thread.  The header
+	 pages are read with an {@link java.nio.channels.AsynchronousFileChannel} and parsed
+	 in memory once enough bytes have arrived.  Recoverable errors are ignored as with
+	 {@link #readComments(File)}.  The file is opened on the common fork/join pool.
+	 @return a future which completes with the comments or exceptionally with an IOException
+	 */
+	public static CompletableFuture<VorbisCommentHeader> readCommentsAsync(File f)
+	{
+		return readCommentsAsync(f, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 Read comments without blocking the calling thread.
+	 @param executor opens the file.  Opening can block on a slow or remote file system so
+	 this should not be the caller's event loop.  Nothing else runs on it.
+	 @see #readCommentsAsync(File)
+	 */
+	public static CompletableFuture<VorbisCommentHeader> readCommentsAsync(File f, Executor executor)
+	{
+		return AsyncCommentReader.read(f, executor);
+	}
+	
+	/**
+	 Asynchronous version of {@link #writeComments(File, VorbisCommentHeader)}.
+	 <p>Comment updates may need to shift the remainder of the file which is done with
+	 blocking I/O.  The update is therefore run on the given executor, which should not be
+	 an event loop or other thread that must not block.</p>
+	 @return a future which completes with newComments once the file has been updated
+	 */
+	public static CompletableFuture<VorbisCommentHeader> writeCommentsAsync(final File f, final VorbisCommentHeader newComments, Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<VorbisCommentHeader>()
+		{
+			public VorbisCommentHeader get()
+			{
+				try
+				{
+					writeComments(f, newComments, null);
+					return newComments;
+				}
+				catch (IOException ioe)
+				{
+					throw new CompletionException(ioe);
+				}
+			}
+		}, executor);
+	}
+	
+	/**
+	 Asynchronous version of {@link #writeComments(File, CommentUpdater)}.  See
+	 {@link #writeCommentsAsync(File, VorbisCommentHeader, Executor)} regarding the executor.
+	 @return a future which completes with the file's comments as they are after the update.
+	 If the updater aborted the update these are the unchanged comments.
+	 */
+	public static CompletableFuture<VorbisCommentHeader> writeCommentsAsync(final File f, final CommentUpdater commentUpdater, Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<VorbisCommentHeader>()
+		{
+			public VorbisCommentHeader get()
+			{
+				//remember the comments the file ends up with so they can be returned
+				final VorbisCommentHeader[] updated = new VorbisCommentHeader[1];
+				try
+				{
+					writeComments(f, null, new CommentUpdater()
+					{
+						public boolean updateComments(VorbisCommentHeader comments)
+						{
+							//the updater may change the comments before it aborts
+							byte[] original = comments.toPacket();
+							if (commentUpdater.updateComments(comments))
+							{
+								updated[0] = comments;
+								return true;
+							}
+							else
+							{
+								try
+								{
+									updated[0] = new VorbisCommentHeader(original);
+								}
+								catch (IOException ioe)  //can't happen, the packet was just built
+								{
+									throw new CompletionException(ioe);
+								}
+								return false;
+							}
+						}
+					});
+					return updated[0];
+				}
+				catch (IOException ioe)
+				{
+					throw new CompletionException(ioe);
+				}
+			}
+		}, executor);
 	}
 	
 	/**
@@ -214,7 +494,103 @@ public class VorbisIO
 		writeComments(f, null, commentUpdater);
 	}
 	
-	private static void writeComments(File f, VorbisCommentHeader newComments, CommentUpdater commentUpdater)
+	/**
+	 Replace the comments of an Ogg Vorbis stream beginning at the channel's current position.
+	 The channel must be writable and is grown or truncated as needed; it is not closed.
+	 {@link CommentWriteListener}s are not told of changes made through a channel since
+	 there is no file to name.
+	 */
+	public static void writeComments(SeekableByteChannel channel, VorbisCommentHeader newComments)
+	throws IOException
+	{
+		rewriteHeaders(channel, newComments, null);
+	}
+	
+	/**
+	 Read and, optionally, update the comments of an Ogg Vorbis stream in a channel.
+	 @see #writeComments(SeekableByteChannel, VorbisCommentHeader)
+	 @see #writeComments(File, CommentUpdater)
+	 */
+	public static void writeComments(SeekableByteChannel channel, CommentUpdater commentUpdater)
+	throws IOException
+	{
+		rewriteHeaders(channel, null, commentUpdater);
+	}
+	
+	/**
+	 Copy an Ogg Vorbis stream, replacing its comments on the way.  The result is the same
+	 as copying the stream and calling {@link #writeComments(File, VorbisCommentHeader)} on
+	 the copy, but memory use is bounded by a few pages and nothing is written twice.
+	 Corrupt pages and junk between pages are dropped; pages of other multiplexed or
+	 chained streams are passed through.
+	 @param in read to its end but not closed
+	 @param out flushed but not closed
+	 @return what had to be done to store the new comments
+	 */
+	public static CommentWriteResult writeComments(InputStream in, OutputStream out, VorbisCommentHeader newComments)
+	throws IOException
+	{
+		return CommentRewriter.copy(in, out, newComments, null);
+	}
+	
+	/**
+	 Copy an Ogg Vorbis stream, letting the updater change its comments on the way.  If the
+	 update is aborted the stream is copied unchanged.
+	 @see #writeComments(InputStream, OutputStream, VorbisCommentHeader)
+	 */
+	public static CommentWriteResult writeComments(InputStream in, OutputStream out, CommentUpdater commentUpdater)
+	throws IOException
+	{
+		return CommentRewriter.copy(in, out, null, commentUpdater);
+	}
+	
+	/**
+	 Register a listener to be told whenever any file's comments are changed through this
+	 class.  Caches and indexes use this to stay consistent with the files.
+	 */
+	public static void addCommentWriteListener(CommentWriteListener listener)
+	{
+		writeListeners.add(listener);
+	}
+	
+	public static void removeCommentWriteListener(CommentWriteListener listener)
+	{
+		writeListeners.remove(listener);
+	}
+	
+	/**
+	 @return what had to be done to the file to store the new comments
+	 */
+	static CommentWriteResult writeComments(File f, VorbisCommentHeader newComments, final CommentUpdater commentUpdater)
+	throws IOException
+	{
+		//remember the comments the updater produced so listeners can be given them
+		final VorbisCommentHeader[] written = {newComments};
+		CommentUpdater updater = null;
+		if (commentUpdater != null)
+		{
+			updater = new CommentUpdater()
+			{
+				public boolean updateComments(VorbisCommentHeader comments)
+				{
+					written[0] = comments;
+					return commentUpdater.updateComments(comments);
+				}
+			};
+		}
+		
+		CommentWriteResult result = rewriteHeaders(f, newComments, updater);
+		
+		if (result != CommentWriteResult.UNCHANGED)
+		{
+			for (CommentWriteListener listener: writeListeners)
+				listener.commentsWritten(f, written[0]);
+		}
+		
+		return result;
+	}
+	
+	private static CommentWriteResult rewriteHeaders(File f, VorbisCommentHeader newComments, CommentUpdater commentUpdater)
 	throws IOException
 	{
 		assert newComments != null || commentUpdater != null;
@@ -225,12 +601,28 @@ public class VorbisIO
 		if (!f.exists())
 			throw new FileNotFoundException(f.getPath() + " does not exist!");
 		RandomAccessFile raf = new RandomAccessFile(f, "rw");
-		RandomAccessInputStream rais = new RandomAccessInputStream(raf);
-		
+		try
+		{
+			return rewriteHeaders(raf.getChannel(), newComments, commentUpdater);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/**
+	 Rewrite the comment and setup headers of the Ogg stream beginning at the channel's
+	 current position.  The channel is not closed.
+	 */
+	private static CommentWriteResult rewriteHeaders(SeekableByteChannel channel, VorbisCommentHeader newComments, CommentUpdater commentUpdater)
+	throws IOException
+	{
 		//create a logical page stream that tolerates corruption and skips pages from foreign Ogg streams
+		ChannelInputStream cis = new ChannelInputStream(channel);
+		PhysicalPageStream pps = new PhysicalPageStream(cis);
 		LogicalPageStream lps = new StreamSerialFilter(
-			new ErrorTolerantPageStream(
-			new PhysicalPageStream(rais)),
+			new ErrorTolerantPageStream(pps),
 			false);
 		
 		//create a VorbisPacketStream
@@ -238,173 +630,180 @@ public class VorbisIO
 			new PacketStream(
 			new PacketSegmentStream(lps)));
 		
-		try
+		//read id packet
+		Packet idPacket = vps.next();
+		
+		//read comment packet
+		long commentPagePos = cis.position();
+		Packet comments = vps.next();
+		int commentPageNum = comments.getStartingPage().sequence;
+		
+		CommentWriteResult result = CommentWriteResult.UNCHANGED;
+		boolean attemptUpdate = true;
+		if (commentUpdater != null)
 		{
-			//read id packet
-			Packet idPacket = vps.next();
+			//parse the comment packet
+			newComments = new VorbisCommentHeader(comments);
 			
-			//read comment packet
-			long commentPagePos = raf.getFilePointer();
-			Packet comments = vps.next();
-			int commentPageNum = comments.getStartingPage().sequence;
+			//ask the comment updater if we should change anything
+			if (!commentUpdater.updateComments(newComments))
+				attemptUpdate = false;
+		}
+		//else assume newComments was given
+		
+		if (attemptUpdate)
+		{
+			byte[] newCommentPacket = commentPacket(newComments, comments.getBytes().length);
 			
-			boolean attemptUpdate = true;
-			if (commentUpdater != null)
+			//only continue with the update if the new comments are different at all
+			if (!Arrays.equals(newCommentPacket, comments.getBytes()))
 			{
-				//parse the comment packet
-				newComments = new VorbisCommentHeader(comments);
+				//read the setup packet
+				Packet setup = vps.next();
+				long firstAudioPagePos = cis.position();
+				int setupLastPageNum = setup.getLastSegment().getSourcePage().sequence;
+				
+				//System.out.println("writeComments: preparing to write");
+				
+			/*number of pages used for the comment and setup packets.  we will try
+				to match this so that we can avoid changing the page sequence numbers
+				for the entire stream*/
+				int oldNumPagesUsed = setupLastPageNum - commentPageNum + 1;
+
+				ArrayList<Page> pages = headerPages(idPacket.getStartingPage(), newCommentPacket, setup.getBytes());
+				
+				//System.out.println("writeComments: nPages_old=" + oldNumPagesUsed + " nPages_new=" + pages.size());
+				
+				//create the page data array
+				ByteArrayOutputStream bbos = new ByteArrayOutputStream(1024 * 8);
+				OggCRC oggCRC = new OggCRC();
+				for (Page p: pages)
+					OggIO.writePageToStream(p, bbos, oggCRC);
+				byte[] data = bbos.toByteArray();
+				bbos = null; //free the memory
+				
+				//the amount to increase or decrease the page sequence number
+				int pageSequenceAdjust = pages.size() - oldNumPagesUsed;
+				
+				//System.out.println("writeComments: inserting " + data.length);
+				
+				//replace the old comment and setup pages with the new ones
+				FileInsert fileInsert = new FileInsert(1024 * 512);
+				fileInsert.insert(channel, commentPagePos, firstAudioPagePos, data, 0, data.length);
+				
+				if (pageSequenceAdjust != 0)
+					result = CommentWriteResult.RENUMBERED;
+				else if (data.length == firstAudioPagePos - commentPagePos)
+					result = CommentWriteResult.OVERWRITTEN;
+				else
+					result = CommentWriteResult.RESIZED;
+				
+				//System.out.println("writeComments: page sequence adjust=" + pageSequenceAdjust);
 				
-				//ask the comment updater if we should change anything
-				if (!commentUpdater.updateComments(newComments))
-					attemptUpdate = false;
+				//need to adjust?
+				if (pageSequenceAdjust != 0)
+				{
+					//the audio packet page may have shifted from the insert operation
+					firstAudioPagePos = commentPagePos + data.length;
+					cis.discardBuffer();
+					channel.position(firstAudioPagePos);
+					
+					//only the headers change so the content need never be read
+					OggIO.renumberPages(pps, lps, pageSequenceAdjust);
+				}
 			}
-			//else assume newComments was given
+		}
+		
+		return result;
+	}
+	
+	/**
+	 Build the comment packet to store in place of one of the given length.
+	 */
+	static byte[] commentPacket(VorbisCommentHeader newComments, int oldLength)
+	{
+		/*build the new comments.  Ideally we will keep the exact same comment
+		 size so that the entire file does not have to be re-written.  Therefore
+		 we will use spaces at the end of the vendor string to give breathing room.*/
+		byte[] newCommentPacket = newComments.toPacket();
+		{
+			int sizeDiff = oldLength - newCommentPacket.length;
+			
+		/* The maxium amount of padding characters to use. Since we are
+		 padding with spaces after the vendor string it is best to keep this
+		 small.  That way, those programs that read the vendor string,
+		 without first trimming the whitespace, will not be flooded with
+		 an unexpectedly large number of characters.*/
+			final int RESIZE_THRESHOLD = 128;
+			
+			int fillAmount;
+			//if new comments are just a bit smaller then use filler to make up the difference
+			if (sizeDiff >= 0 && sizeDiff <= RESIZE_THRESHOLD)
+				fillAmount = sizeDiff;
+			//else, since we are going to have to grow the file we might as well add a little breathing room
+			else
+				fillAmount = RESIZE_THRESHOLD;
 			
-			if (attemptUpdate)
+			if (fillAmount > 0)
 			{
-				/*build the new comments.  Ideally we will keep the exact same comment
-				 size so that the entire file does not have to be re-written.  Therefore
-				 we will use spaces at the end of the vendor string to give breathing room.*/
-				byte[] newCommentPacket = newComments.toPacket();
+				StringBuilder sb = new StringBuilder(newComments.vendor.length() + fillAmount);
+				sb.append(newComments.vendor);
+				while (fillAmount > 0)
 				{
-					int sizeDiff = comments.getBytes().length - newCommentPacket.length;
-					
-				/* The maxium amount of padding characters to use. Since we are
-				 padding with spaces after the vendor string it is best to keep this
-				 small.  That way, those programs that read the vendor string,
-				 without first trimming the whitespace, will not be flooded with
-				 an unexpectedly large number of characters.*/
-					final int RESIZE_THRESHOLD = 128;
-					
-					int fillAmount;
-					//if new comments are just a bit smaller then use filler to make up the difference
-					if (sizeDiff >= 0 && sizeDiff <= RESIZE_THRESHOLD)
-						fillAmount = sizeDiff;
-					//else, since we are going to have to grow the file we might as well add a little breathing room
-					else
-						fillAmount = RESIZE_THRESHOLD;
-					
-					if (fillAmount > 0)
-					{
-						StringBuilder sb = new StringBuilder(newComments.vendor.length() + fillAmount);
-						sb.append(newComments.vendor);
-						while (fillAmount > 0)
-						{
-							sb.append(' ');
-							fillAmount--;
-						}
-						
-						String oldVendor = newComments.vendor;
-						newComments.vendor = sb.toString();
-						newCommentPacket = newComments.toPacket();
-						newComments.vendor = oldVendor;
-					}
+					sb.append(' ');
+					fillAmount--;
 				}
 				
-				//only continue with the update if the new comments are different at all
-				if (!Arrays.equals(newCommentPacket, comments.getBytes()))
-				{
-					//read the setup packet
-					Packet setup = vps.next();
-					long firstAudioPagePos = raf.getFilePointer();
-					int setupLastPageNum = setup.getLastSegment().getSourcePage().sequence;
-					
-					//System.out.println("writeComments: preparing to write");
-					
-				/*number of pages used for the comment and setup packets.  we will try
-					to match this so that we can avoid changing the page sequence numbers
-					for the entire stream*/
-					int oldNumPagesUsed = setupLastPageNum - commentPageNum + 1;
-
-					ArrayList<Page> pages = pagify(new byte[][]{newCommentPacket, setup.getBytes()}, true);					
-					
-					/*
-						This is the old way I used to pagify.  This didn't work for my iAudio U2
-					 because the setup packet is almost always > 4kb and thus, after adding
-					 the nominal flag to pagify it would have created too many pages.
-					 
-					ArrayList<Page> pages = new ArrayList<Page>(4);
-					if (oldNumPagesUsed == 1)
-						pages.addAll(pagify(new byte[][]{newCommentPacket, setup.getBytes()}));
-					else
-					{
-						pages.addAll(pagify(new byte[][]{newCommentPacket}));
-						pages.addAll(pagify(new byte[][]{setup.getBytes()}));
-					}*/
-					
-					//System.out.println("writeComments: nPages_old=" + oldNumPagesUsed + " nPages_new=" + pages.size());
-					
-					//fill out the page header values
-					{
-						Page firstPage = idPacket.getStartingPage();
-						int lastSequenceNumber = firstPage.sequence;
-						for (Page page: pages)
-						{
-							page.streamSerialNumber = firstPage.streamSerialNumber;
-							/*Vorbis I specification: "The granule position of these first pages containing only headers is zero."*/
-							page.absGranulePos = 0;
-							page.sequence = ++lastSequenceNumber;
-							//currently this will always be zero but just to be flexible...
-							page.streamStructureVersion = firstPage.streamStructureVersion;
-							page.isFirst = false;
-							page.isLast = false;
-							//isContinued was filled out by pagify
-						}
-					}
-					
-					//create the page data array
-					ByteArrayOutputStream bbos = new ByteArrayOutputStream(1024 * 8);
-					OggCRC oggCRC = new OggCRC();
-					for (Page p: pages)
-						OggIO.writePageToStream(p, bbos, oggCRC);
-					byte[] data = bbos.toByteArray();
-					bbos = null; //free the memory
-					
-					//the amount to increase or decrease the page sequence number
-					int pageSequenceAdjust = pages.size() - oldNumPagesUsed;
-					
-					//System.out.println("writeComments: inserting " + data.length);
-					
-					//replace the old comment and setup pages with the new ones
-					FileInsert fileInsert = new FileInsert(1024 * 512);
-					fileInsert.insert(raf, commentPagePos, firstAudioPagePos, data, 0, data.length);
-					
-					//System.out.println("writeComments: page sequence adjust=" + pageSequenceAdjust);
-					
-					//need to adjust?
-					if (pageSequenceAdjust != 0)
-					{
-						//the audio packet page may have shifted from the insert operation
-						firstAudioPagePos = commentPagePos + data.length;
-						raf.seek(firstAudioPagePos);
-						
-						RandomAccessOutputStream raos = new RandomAccessOutputStream(raf);
-						
-					/*IMPORTANT: remember that the page stream might not
-					 be continguous in the file if there is corruption or the
-					 stream is multiplexed*/
-						Page page = lps.next();
-						while (page != null)
-						{
-							//adjust the page sequence number
-							page.sequence += pageSequenceAdjust;
-							
-							//seek back to the start of the page and rewrite the page
-							raf.seek(raf.getFilePointer() - page.size());
-							OggIO.writePageToStream(page, raos, oggCRC);  //todo: would it be faster to simply write the fixed header and skip over the content?
-							
-							//next page
-							page = lps.next();
-						}
-					}
-				}
+				String oldVendor = newComments.vendor;
+				newComments.vendor = sb.toString();
+				newCommentPacket = newComments.toPacket();
+				newComments.vendor = oldVendor;
 			}
 		}
-		finally
+		
+		return newCommentPacket;
+	}
+	
+	/**
+	 Put the comment and setup packets on pages which follow the ID header's page.
+	 */
+	static ArrayList<Page> headerPages(Page idPage, byte[] commentPacket, byte[] setupPacket)
+	{
+		ArrayList<Page> pages = pagify(new byte[][]{commentPacket, setupPacket}, true);					
+		
+		/*
+			This is the old way I used to pagify.  This didn't work for my iAudio U2
+		 because the setup packet is almost always > 4kb and thus, after adding
+		 the nominal flag to pagify it would have created too many pages.
+		 
+		ArrayList<Page> pages = new ArrayList<Page>(4);
+		if (oldNumPagesUsed == 1)
+			pages.addAll(pagify(new byte[][]{newCommentPacket, setup.getBytes()}));
+		else
 		{
-			raf.close();
+			pages.addAll(pagify(new byte[][]{newCommentPacket}));
+			pages.addAll(pagify(new byte[][]{setup.getBytes()}));
+		}*/
+		
+		//fill out the page header values
+		{
+			Page firstPage = idPage;
+			int lastSequenceNumber = firstPage.sequence;
+			for (Page page: pages)
+			{
+				page.streamSerialNumber = firstPage.streamSerialNumber;
+				/*Vorbis I specification: "The granule position of these first pages containing only headers is zero."*/
+				page.absGranulePos = 0;
+				page.sequence = ++lastSequenceNumber;
+				//currently this will always be zero but just to be flexible...
+				page.streamStructureVersion = firstPage.streamStructureVersion;
+				page.isFirst = false;
+				page.isLast = false;
+				//isContinued was filled out by pagify
+			}
 		}
-		//System.out.println("writeComments: done");
+		
+		return pages;
 	}
 	
 	/**put one or more packets on the minimum number of required pages
@@ -647,6 +1046,397 @@ public class VorbisIO
 		//java -enableassertions -cp /home/cruxic/tmp/emma-2.0.5312/lib/emma.jar emmarun -r html -sp src -cp dist/JVorbisComment.jar:dist/lib/junit-4.1.jar org.junit.runner.JUnitCore adamb.vorbis.VorbisIO
 		
 		
+		@Test
+		public void asyncTest()
+		throws Exception
+		{
+			//the same results and errors as a blocking read, including for an empty file
+			for (File f: new File("test oggs").listFiles())
+			{
+				if (!f.getName().endsWith(".ogg"))
+					continue;
+				
+				try
+				{
+					VorbisCommentHeader expected = readComments(f);
+					assertEquals(readCommentsAsync(f).get().toPacket(), expected.toPacket());
+				}
+				catch (IOException ioe)
+				{
+					try
+					{
+						readCommentsAsync(f).get();
+						fail(f.getName() + " should have failed");
+					}
+					catch (ExecutionException ee)
+					{
+						assertEquals(ee.getCause().getClass(), ioe.getClass());
+						assertEquals(ee.getCause().getMessage(), ioe.getMessage());
+					}
+				}
+			}
+			
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			File tmp = new File("deleteme async.ogg");
+			try
+			{
+				Util.copyFile(new File("test oggs", "error free.ogg"), tmp);
+				
+				//large enough that the reader must grow its buffer
+				VorbisCommentHeader vch = new VorbisCommentHeader();
+				vch.fields.add(new CommentField("PICTURE", makeRandomString(100 * 1024)));
+				assertSame(writeCommentsAsync(tmp, vch, executor).get(), vch);
+				assertEquals(readCommentsAsync(tmp, executor).get().fields.get(0).value, vch.fields.get(0).value);
+				
+				//an aborted update yields the unchanged comments even if the updater changed them
+				VorbisCommentHeader result = writeCommentsAsync(tmp, new CommentUpdater()
+				{
+					public boolean updateComments(VorbisCommentHeader comments)
+					{
+						comments.fields.clear();
+						return false;
+					}
+				}, executor).get();
+				assertEquals(result.fields.size(), 1);
+				assertEquals(result.fields.get(0).value, vch.fields.get(0).value);
+				
+				result = writeCommentsAsync(tmp, new CommentUpdater()
+				{
+					public boolean updateComments(VorbisCommentHeader comments)
+					{
+						comments.fields.clear();
+						return true;
+					}
+				}, executor).get();
+				assertEquals(result.fields.size(), 0);
+				assertEquals(readComments(tmp).fields.size(), 0);
+				
+				try
+				{
+					readCommentsAsync(new File("test oggs", "no such file.ogg"), executor).get();
+					fail("missing file not detected");
+				}
+				catch (ExecutionException ee)
+				{
+					assertTrue(ee.getCause() instanceof FileNotFoundException);
+				}
+			}
+			finally
+			{
+				executor.shutdown();
+				tmp.delete();
+			}
+		}
+		
+		@Test
+		public void channelIOTest()
+		throws IOException
+		{
+			File tmp = new File("deleteme channel.ogg");
+			try
+			{
+				for (String name: new String[]{"error free.ogg", "pages from foreign stream.ogg"})
+				{
+					File orig = new File("test oggs", name);
+					byte[] bytes = java.nio.file.Files.readAllBytes(orig.toPath());
+					
+					//small change, then one large enough to renumber the audio pages
+					for (int size: new int[]{10, 1024 * 20})
+					{
+						VorbisCommentHeader vch = new VorbisCommentHeader();
+						vch.fields.add(new CommentField("T", makeRandomString(size)));
+						
+						tmp.delete();
+						Util.copyFile(orig, tmp);
+						writeComments(tmp, vch);
+						
+						ByteBufferChannel ch = new ByteBufferChannel(bytes);
+						writeComments(ch, vch);
+						
+						//the in-memory rewrite must match the file rewrite exactly
+						assertEquals(ch.toByteArray(), java.nio.file.Files.readAllBytes(tmp.toPath()));
+						
+						ch.position(0);
+						VorbisCommentHeader read = readComments(ch);
+						assertEquals(read.fields.get(0).value, vch.fields.get(0).value);
+						ch.position(0);
+						assertEquals(readIdHeader(ch).audioSampleRate, readIdHeader(tmp).audioSampleRate);
+					}
+				}
+			}
+			finally
+			{
+				tmp.delete();
+			}
+		}
+		
+		@Test
+		public void splitHeadersTest()
+		throws IOException
+		{
+			File f = new File("test oggs", "error free.ogg");
+			byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+			
+			//a source that returns short reads, like a socket
+			InputStream source = new FilterInputStream(new ByteArrayInputStream(bytes))
+			{
+				public int read(byte[] b, int off, int len)
+				throws IOException
+				{
+					return super.read(b, off, Math.min(len, 1000));
+				}
+			};
+			
+			HeaderSplit split = splitHeaders(source);
+			assertEquals(split.comments.toPacket(), readComments(f).toPacket());
+			assertEquals(split.idHeader.audioSampleRate, readIdHeader(f).audioSampleRate);
+			assertTrue(split.bytesConsumed < bytes.length);
+			
+			//the whole upload passes through unchanged
+			ByteArrayOutputStream passed = new ByteArrayOutputStream();
+			byte[] buf = new byte[777];
+			int n;
+			while ((n = split.stream.read(buf)) != -1)
+				passed.write(buf, 0, n);
+			assertEquals(passed.toByteArray(), bytes);
+			
+			//junk is read only up to the limit
+			final long[] junkRead = new long[1];
+			InputStream junk = new InputStream()
+			{
+				public int read()
+				{
+					junkRead[0]++;
+					return 'x';
+				}
+				
+				public int read(byte[] b, int off, int len)
+				{
+					Arrays.fill(b, off, off + len, (byte)'x');
+					junkRead[0] += len;
+					return len;
+				}
+			};
+			try
+			{
+				splitHeaders(junk, true, 100000);
+				fail();
+			}
+			catch (CorruptHeaderException che)
+			{
+				assertEquals(junkRead[0], 100000);
+			}
+			
+			//the headers need only fit within the limit, even if it ends within a read
+			long end = 0;
+			HeaderSplit fits = null;
+			for (Page p: pages(bytes))
+			{
+				end += p.size();
+				try
+				{
+					fits = splitHeaders(new ByteArrayInputStream(bytes), true, end);
+					break;
+				}
+				catch (CorruptHeaderException che)
+				{
+				}
+			}
+			assertNotNull(fits);
+			assertEquals(fits.bytesConsumed, end);
+			assertEquals(fits.comments.toPacket(), split.comments.toPacket());
+			
+			//a stream without comments fails
+			FileInputStream fis = new FileInputStream(new File("test oggs", "id header only.ogg"));
+			try
+			{
+				splitHeaders(fis);
+				fail();
+			}
+			catch (EOFException eof)
+			{
+				//expected
+			}
+			finally
+			{
+				fis.close();
+			}
+		}
+		
+		private static ArrayList<Page> pages(byte[] bytes)
+		throws IOException
+		{
+			ArrayList<Page> pages = new ArrayList<Page>();
+			PageStream ps = new PhysicalPageStream(new ByteArrayInputStream(bytes));
+			Page p;
+			while ((p = ps.next()) != null)
+				pages.add(p);
+			return pages;
+		}
+		
+		@Test
+		public void streamRewriteTest()
+		throws IOException
+		{
+			File tmp = new File("deleteme stream.ogg");
+			try
+			{
+				for (String name: new String[]{"error free.ogg", "pages from foreign stream.ogg"})
+				{
+					File orig = new File("test oggs", name);
+					byte[] bytes = java.nio.file.Files.readAllBytes(orig.toPath());
+					
+					//unchanged, the same size, resized and renumbered
+					for (int size: new int[]{-1, 0, 300, 1024 * 20})
+					{
+						VorbisCommentHeader vch = readComments(orig);
+						if (size >= 0)
+						{
+							vch.fields.clear();
+							vch.fields.add(new CommentField("T", makeRandomString(size)));
+						}
+						
+						tmp.delete();
+						Util.copyFile(orig, tmp);
+						CommentWriteResult expected = writeComments(tmp, vch, null);
+						
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						CommentWriteResult result = writeComments(new ByteArrayInputStream(bytes), out, vch);
+						assertEquals(result, expected);
+						assertEquals(out.toByteArray(), java.nio.file.Files.readAllBytes(tmp.toPath()));
+					}
+				}
+				
+				//pages of another stream keep their place among the header pages, so its BOS stays ahead of other pages
+				byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+				ArrayList<Page> vorbis = pages(bytes);
+				ArrayList<Page> foreign = pages(bytes);
+				ByteArrayOutputStream muxed = new ByteArrayOutputStream();
+				OggCRC crc = new OggCRC();
+				for (int i = 0; i < vorbis.size(); i++)
+				{
+					OggIO.writePageToStream(vorbis.get(i), muxed, crc);
+					if (i < 2)
+					{
+						Page fp = foreign.get(i == 0 ? 0 : foreign.size() - 1);
+						fp.streamSerialNumber = vorbis.get(0).streamSerialNumber + 1;
+						fp.sequence = i;
+						fp.isLast = false;
+						OggIO.writePageToStream(fp, muxed, crc);
+					}
+				}
+				VorbisCommentHeader vch = readComments(new File("test oggs", "error free.ogg"));
+				vch.fields.add(new CommentField("T", makeRandomString(1024 * 20)));
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertEquals(writeComments(new ByteArrayInputStream(muxed.toByteArray()), out, vch), CommentWriteResult.RENUMBERED);
+				ArrayList<Page> copied = pages(out.toByteArray());
+				assertTrue(copied.get(0).isFirst && copied.get(1).isFirst);
+				assertEquals(copied.get(1).streamSerialNumber, vorbis.get(0).streamSerialNumber + 1);
+				int nForeign = 0;
+				for (int i = 2; i < copied.size(); i++)
+				{
+					assertFalse(copied.get(i).isFirst);
+					if (copied.get(i).streamSerialNumber != vorbis.get(0).streamSerialNumber)
+						assertEquals(copied.get(i).sequence, ++nForeign);
+				}
+				assertEquals(nForeign, 1);
+				VorbisCommentHeader written = readComments(new ByteArrayInputStream(out.toByteArray()), true);
+				assertEquals(written.fields.toString(), vch.fields.toString());
+				
+				//an aborted update copies the stream as is
+				out = new ByteArrayOutputStream();
+				CommentWriteResult result = writeComments(new ByteArrayInputStream(bytes), out, new CommentUpdater()
+				{
+					public boolean updateComments(VorbisCommentHeader comments)
+					{
+						comments.fields.clear();
+						return false;
+					}
+				});
+				assertEquals(result, CommentWriteResult.UNCHANGED);
+				assertEquals(out.toByteArray(), bytes);
+			}
+			finally
+			{
+				tmp.delete();
+			}
+		}
+		
+		@Test
+		public void bufferReadTest()
+		throws IOException
+		{
+			for (String name: new String[]{"error free.ogg", "pages from foreign stream.ogg", "vorbis headers with garbage after both pages.ogg"})
+			{
+				File f = new File("test oggs", name);
+				byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+				VorbisCommentHeader expected = readComments(f);
+				
+				//supply exactly as many bytes as asked for, as an upload handler would
+				int len = 0;
+				VorbisCommentHeader vch = null;
+				while (vch == null)
+				{
+					try
+					{
+						vch = readComments(ByteBuffer.wrap(bytes, 0, len));
+					}
+					catch (NeedMoreBytesException nmb)
+					{
+						assertTrue(nmb.getBytesNeeded() > 0);
+						//junk may look like the start of a page longer than the file
+						assertTrue(len < bytes.length);
+						len = Math.min(len + nmb.getBytesNeeded(), bytes.length);
+					}
+				}
+				
+				assertEquals(vch.toPacket(), expected.toPacket());
+				assertEquals(readIdHeader(ByteBuffer.wrap(bytes, 0, len)).audioSampleRate, readIdHeader(f).audioSampleRate);
+				
+			}
+			
+			//a clean file is read with the fewest bytes possible
+			byte[] bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "error free.ogg").toPath());
+			int len = 0;
+			while (true)
+			{
+				try
+				{
+					readComments(ByteBuffer.wrap(bytes, 0, len));
+					break;
+				}
+				catch (NeedMoreBytesException nmb)
+				{
+					len += nmb.getBytesNeeded();
+				}
+			}
+			try
+			{
+				readComments(ByteBuffer.wrap(bytes, 0, len - 1));
+				fail();
+			}
+			catch (NeedMoreBytesException nmb)
+			{
+				assertEquals(nmb.getBytesNeeded(), 1);
+			}
+			
+			//strict parsing reports corruption rather than asking for more
+			bytes = java.nio.file.Files.readAllBytes(new File("test oggs", "vorbis headers with garbage after both pages.ogg").toPath());
+			try
+			{
+				readComments(ByteBuffer.wrap(bytes), false);
+				fail();
+			}
+			catch (NeedMoreBytesException nmb)
+			{
+				fail();
+			}
+			catch (IOException ioe)
+			{
+				//expected
+			}
+		}
+		
 		private void hammerTestFile(File originalFile)
 		throws IOException
 		{
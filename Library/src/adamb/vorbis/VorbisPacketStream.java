@@ -134,25 +134,25 @@ public class VorbisPacketStream
 							{
 								//setup header must end the page it is on
 								if (expectedType == SETUP_HEADER_TYPE && !packet.finishesOnPageBoundary())
-									throw new IOException("Vorbis setup header must finish on a page boundary!");
+									throw new CorruptHeaderException("Vorbis setup header must finish on a page boundary!");
 							}
 							else
-								throw new IOException("Vorbis comment header must be on a fresh page!");
+								throw new CorruptHeaderException("Vorbis comment header must be on a fresh page!");
 						}
 						else
-							throw new IOException("Vorbis header with non-zero granule position!");
+							throw new CorruptHeaderException("Vorbis header with non-zero granule position!");
 					}
 					else
-						throw new IOException("Header packet does not have correct framing bit set!" /* + type + " value " + (Util.ubyte(bytes[bytes.length - 1]))*/);
+						throw new CorruptHeaderException("Header packet does not have correct framing bit set!" /* + type + " value " + (Util.ubyte(bytes[bytes.length - 1]))*/);
 				}
 				else
-					throw new IOException("Packet does not contain \"vorbis\"!");
+					throw new CorruptHeaderException("Packet does not contain \"vorbis\"!");
 			}
 			else
-				throw new IOException("Incorrect Vorbis Header type " + type + "!  Expected " + expectedType + ".");
+				throw new CorruptHeaderException("Incorrect Vorbis Header type " + type + "!  Expected " + expectedType + ".");
 		}
 		else
-			throw new IOException("Packet is too small to be a Vorbis header!");
+			throw new CorruptHeaderException("Packet is too small to be a Vorbis header!");
 	}
 	
 	public VorbisIDHeader getIDHeader()